@@ -1,5 +1,7 @@
 package com.rapleaf.hank.compress;
 
+import java.nio.ByteBuffer;
+
 public interface CompressionCodec {
   /**
    * Compress <i>src</i> into <i>dst</i>.
@@ -32,4 +34,27 @@ public interface CompressionCodec {
    * @return
    */
   public int decompress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOff);
+
+  /**
+   * Compress the remaining bytes of <i>src</i> into <i>dst</i>, starting at
+   * its position. Either buffer may be direct. Both buffers' positions are
+   * advanced past the bytes consumed and produced.
+   * 
+   * @param src
+   * @param dst
+   * @return The number of compressed bytes written to dst.
+   */
+  public int compress(ByteBuffer src, ByteBuffer dst);
+
+  /**
+   * Decompress the remaining bytes of <i>src</i> into <i>dst</i>, starting at
+   * its position and writing no further than its limit. Either buffer may be
+   * direct. Both buffers' positions are advanced past the bytes consumed and
+   * produced.
+   * 
+   * @param src
+   * @param dst
+   * @return The number of decompressed bytes written to dst.
+   */
+  public int decompress(ByteBuffer src, ByteBuffer dst);
 }
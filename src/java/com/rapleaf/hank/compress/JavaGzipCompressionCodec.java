@@ -1,51 +1,231 @@
 package com.rapleaf.hank.compress;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
+/**
+ * Gzip, as written by GZIPOutputStream, but without the streams: each thread
+ * gets its own Deflater, Inflater and chunk buffers, which are reset and
+ * reused for every block, so that compressing or decompressing a block
+ * allocates nothing and never leaves native zlib memory waiting for
+ * finalization.
+ */
 public class JavaGzipCompressionCodec implements CompressionCodec {
+  private static final int CHUNK_SIZE = 8192;
+
+  private static final int GZIP_MAGIC = 0x8b1f;
+  private static final int HEADER_SIZE = 10;
+  private static final int TRAILER_SIZE = 8;
+  // header flags
+  private static final int FHCRC = 2;
+  private static final int FEXTRA = 4;
+  private static final int FNAME = 8;
+  private static final int FCOMMENT = 16;
+
+  private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+    @Override
+    protected Scratch initialValue() {
+      return new Scratch();
+    }
+  };
+
+  private static final class Scratch {
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final Inflater inflater = new Inflater(true);
+    private final CRC32 crc = new CRC32();
+    // for copying to and from direct buffers, which zlib can't use directly
+    private final byte[] inputChunk = new byte[CHUNK_SIZE];
+    private final byte[] outputChunk = new byte[CHUNK_SIZE];
+  }
+
   @Override
   public int compress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOff) {
-    if (srcLength - srcOffset == 0) {
+    return gzip(ByteBuffer.wrap(src, srcOffset, srcLength), ByteBuffer.wrap(dst, dstOff, dst.length - dstOff));
+  }
+
+  @Override
+  public int decompress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOff) {
+    return gunzip(ByteBuffer.wrap(src, srcOffset, srcLength), ByteBuffer.wrap(dst, dstOff, dst.length - dstOff));
+  }
+
+  @Override
+  public int compress(ByteBuffer src, ByteBuffer dst) {
+    return gzip(src, dst);
+  }
+
+  @Override
+  public int decompress(ByteBuffer src, ByteBuffer dst) {
+    return gunzip(src, dst);
+  }
+
+  private static int gzip(ByteBuffer src, ByteBuffer dst) {
+    int srcLength = src.remaining();
+    if (srcLength == 0) {
       return 0;
     }
+    Scratch scratch = SCRATCH.get();
+    Deflater deflater = scratch.deflater;
+    CRC32 crc = scratch.crc;
+    crc.reset();
+    int start = dst.position();
     try {
-      ByteArrayOutputStream bytesOut = new ByteArrayOutputStream(srcLength - srcOffset);
-      GZIPOutputStream gzip = new GZIPOutputStream(bytesOut);
-      gzip.write(src, srcOffset, srcLength);
-      gzip.flush();
-      gzip.close();
-      byte[] compressed = bytesOut.toByteArray();
-      System.arraycopy(compressed, 0, dst, dstOff, compressed.length);
-      return compressed.length;
-    } catch (IOException e) {
-      throw new RuntimeException("Unexpected IOException while compressing!", e);
+      writeShort(dst, GZIP_MAGIC);
+      dst.put((byte) Deflater.DEFLATED);
+      // no flags, modification time, extra flags or OS
+      for (int i = 3; i < HEADER_SIZE; i++) {
+        dst.put((byte) 0);
+      }
+
+      if (src.hasArray()) {
+        byte[] array = src.array();
+        int off = src.arrayOffset() + src.position();
+        crc.update(array, off, srcLength);
+        deflater.setInput(array, off, srcLength);
+        src.position(src.limit());
+      } else {
+        while (src.hasRemaining()) {
+          int length = Math.min(CHUNK_SIZE, src.remaining());
+          src.get(scratch.inputChunk, 0, length);
+          crc.update(scratch.inputChunk, 0, length);
+          deflater.setInput(scratch.inputChunk, 0, length);
+          while (!deflater.needsInput()) {
+            deflate(deflater, dst, scratch.outputChunk);
+          }
+        }
+      }
+      deflater.finish();
+      while (!deflater.finished()) {
+        deflate(deflater, dst, scratch.outputChunk);
+      }
+
+      writeInt(dst, (int) crc.getValue());
+      writeInt(dst, srcLength);
+      return dst.position() - start;
+    } finally {
+      deflater.reset();
     }
   }
 
-  @Override
-  public int decompress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOff) {
-    if (srcLength - srcOffset == 0) {
+  private static void deflate(Deflater deflater, ByteBuffer dst, byte[] chunk) {
+    if (!dst.hasRemaining()) {
+      throw new BufferOverflowException();
+    }
+    if (dst.hasArray()) {
+      int n = deflater.deflate(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+      dst.position(dst.position() + n);
+    } else {
+      int n = deflater.deflate(chunk, 0, Math.min(chunk.length, dst.remaining()));
+      dst.put(chunk, 0, n);
+    }
+  }
+
+  private static int gunzip(ByteBuffer src, ByteBuffer dst) {
+    if (!src.hasRemaining()) {
       return 0;
     }
+    Scratch scratch = SCRATCH.get();
+    Inflater inflater = scratch.inflater;
+    CRC32 crc = scratch.crc;
+    crc.reset();
     try {
-      ByteArrayInputStream bytesIn = new ByteArrayInputStream(src, srcOffset, srcLength);
-      GZIPInputStream gzip = new GZIPInputStream(bytesIn);
-      int curOff = dstOff;
-      while (curOff < dst.length - dstOff) {
-        int amtRead = gzip.read(dst, curOff, dst.length - curOff);
-        if (amtRead == -1) {
-          break;
+      skipHeader(src);
+
+      int total = 0;
+      while (dst.hasRemaining() && !inflater.finished()) {
+        if (inflater.needsInput()) {
+          if (!src.hasRemaining()) {
+            throw new RuntimeException("Unexpected end of gzip data while decompressing!");
+          }
+          if (src.hasArray()) {
+            inflater.setInput(src.array(), src.arrayOffset() + src.position(), src.remaining());
+            src.position(src.limit());
+          } else {
+            int length = Math.min(CHUNK_SIZE, src.remaining());
+            src.get(scratch.inputChunk, 0, length);
+            inflater.setInput(scratch.inputChunk, 0, length);
+          }
+        }
+        int n;
+        if (dst.hasArray()) {
+          byte[] array = dst.array();
+          int off = dst.arrayOffset() + dst.position();
+          n = inflater.inflate(array, off, dst.remaining());
+          crc.update(array, off, n);
+          dst.position(dst.position() + n);
+        } else {
+          n = inflater.inflate(scratch.outputChunk, 0, Math.min(CHUNK_SIZE, dst.remaining()));
+          crc.update(scratch.outputChunk, 0, n);
+          dst.put(scratch.outputChunk, 0, n);
+        }
+        if (n == 0 && inflater.needsDictionary()) {
+          throw new RuntimeException("Corrupt gzip data: a preset dictionary is needed!");
         }
-        curOff += amtRead;
+        total += n;
       }
-      return curOff;
-    } catch (IOException e) {
-      throw new RuntimeException("Unexpected IOException while decompressing!", e);
+
+      // a block that didn't fit can't be checked, but a whole one can
+      if (inflater.finished()) {
+        src.position(src.position() - inflater.getRemaining());
+        if (src.remaining() < TRAILER_SIZE
+            || readInt(src) != (int) crc.getValue()
+            || readInt(src) != total) {
+          throw new RuntimeException("Corrupt gzip data: the trailer doesn't match!");
+        }
+      }
+      // the whole of src is one compressed stream
+      src.position(src.limit());
+      return total;
+    } catch (DataFormatException e) {
+      throw new RuntimeException("Corrupt gzip data while decompressing!", e);
+    } finally {
+      inflater.reset();
+    }
+  }
+
+  private static void skipHeader(ByteBuffer src) {
+    if (src.remaining() < HEADER_SIZE || readShort(src) != GZIP_MAGIC || src.get() != Deflater.DEFLATED) {
+      throw new RuntimeException("Not in gzip format!");
     }
+    int flags = src.get() & 0xff;
+    // modification time, extra flags and OS
+    src.position(src.position() + 6);
+    if ((flags & FEXTRA) != 0) {
+      int length = readShort(src);
+      src.position(src.position() + length);
+    }
+    if ((flags & FNAME) != 0) {
+      while (src.get() != 0) {}
+    }
+    if ((flags & FCOMMENT) != 0) {
+      while (src.get() != 0) {}
+    }
+    if ((flags & FHCRC) != 0) {
+      src.position(src.position() + 2);
+    }
+  }
+
+  // gzip is little-endian, whatever order the buffers are in
+
+  private static int readShort(ByteBuffer src) {
+    return (src.get() & 0xff) | ((src.get() & 0xff) << 8);
+  }
+
+  private static int readInt(ByteBuffer src) {
+    return readShort(src) | (readShort(src) << 16);
+  }
+
+  private static void writeShort(ByteBuffer dst, int value) {
+    dst.put((byte) value);
+    dst.put((byte) (value >>> 8));
+  }
+
+  private static void writeInt(ByteBuffer dst, int value) {
+    writeShort(dst, value);
+    writeShort(dst, value >>> 16);
   }
 
   @Override
@@ -1,16 +1,34 @@
 package com.rapleaf.hank.compress;
 
+import java.nio.ByteBuffer;
+
 public class NoCompressionCodec implements CompressionCodec {
   @Override
   public int compress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOff) {
     System.arraycopy(src, srcOffset, dst, dstOff, srcLength);
-    return srcLength - srcOffset;
+    return srcLength;
   }
 
   @Override
   public int decompress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOff) {
     System.arraycopy(src, srcOffset, dst, dstOff, srcLength);
-    return srcLength - srcOffset;
+    return srcLength;
+  }
+
+  @Override
+  public int compress(ByteBuffer src, ByteBuffer dst) {
+    return copy(src, dst);
+  }
+
+  @Override
+  public int decompress(ByteBuffer src, ByteBuffer dst) {
+    return copy(src, dst);
+  }
+
+  private static int copy(ByteBuffer src, ByteBuffer dst) {
+    int length = src.remaining();
+    dst.put(src);
+    return length;
   }
 
   @Override
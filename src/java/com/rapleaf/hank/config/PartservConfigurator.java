@@ -17,6 +17,10 @@ package com.rapleaf.hank.config;
 
 import java.util.Set;
 
+import com.rapleaf.hank.storage.BlockCache;
+import com.rapleaf.hank.storage.RecordHeat;
+import com.rapleaf.hank.storage.ValueCache;
+
 /**
  * Common configurator for any daemon that runs on a Host.
  */
@@ -53,4 +57,28 @@ public interface PartservConfigurator extends Configurator {
    * @return
    */
   public int getNumThreads();
+
+  /**
+   * The cache of decompressed blocks shared by all the readers in the Part
+   * Daemon. Every call must return the same instance.
+   * 
+   * @return the cache, or null if block caching is disabled
+   */
+  public BlockCache getBlockCache();
+
+  /**
+   * The cache of individual values shared by all the readers in the Part
+   * Daemon. Every call must return the same instance.
+   * 
+   * @return the cache, or null if value caching is disabled
+   */
+  public ValueCache getValueCache();
+
+  /**
+   * The read stats of the records of every partition in the Part Daemon.
+   * Every call must return the same instance.
+   * 
+   * @return the stats, or null if they're not being collected
+   */
+  public RecordHeat getRecordHeat();
 }
@@ -24,6 +24,9 @@ import java.util.Set;
 
 import com.rapleaf.hank.config.InvalidConfigurationException;
 import com.rapleaf.hank.config.PartservConfigurator;
+import com.rapleaf.hank.storage.BlockCache;
+import com.rapleaf.hank.storage.RecordHeat;
+import com.rapleaf.hank.storage.ValueCache;
 
 public class YamlPartservConfigurator extends BaseYamlConfigurator implements PartservConfigurator {
   private static final String PARTSERV_SECTION_KEY = "partserv";
@@ -32,9 +35,16 @@ public class YamlPartservConfigurator extends BaseYamlConfigurator implements Pa
   private static final String RING_GROUP_NAME_KEY = "ring_group_name";
   private static final String PART_DAEMON_SECTION_KEY = "part_daemon";
   private static final String NUM_WORKER_THREADS = "num_worker_threads";
+  private static final String BLOCK_CACHE_BYTES_KEY = "block_cache_bytes";
+  private static final String VALUE_CACHE_BYTES_KEY = "value_cache_bytes";
+  private static final String RECORD_HEAT_EXPECTED_RECORDS_KEY = "record_heat_expected_records";
   private static final String UPDATE_DAEMON_SECTION_KEY = "update_daemon";
   private static final String NUM_CONCURRENT_UPDATES_KEY = "num_concurrent_updates";
 
+  private BlockCache blockCache;
+  private ValueCache valueCache;
+  private RecordHeat recordHeat;
+
   public YamlPartservConfigurator(String path) throws IOException,
   InvalidConfigurationException {
     super(path);
@@ -92,6 +102,15 @@ public class YamlPartservConfigurator extends BaseYamlConfigurator implements Pa
     if (!partDaemonSection.containsKey(NUM_WORKER_THREADS) || !(partDaemonSection.get(NUM_WORKER_THREADS) instanceof Integer)) {
       throw new InvalidConfigurationException("'part_daemon' section must contain a 'num_worker_threads' key of type int!");
     }
+    if (partDaemonSection.containsKey(BLOCK_CACHE_BYTES_KEY) && !(partDaemonSection.get(BLOCK_CACHE_BYTES_KEY) instanceof Number)) {
+      throw new InvalidConfigurationException("'part_daemon' section's 'block_cache_bytes' key must be of type long!");
+    }
+    if (partDaemonSection.containsKey(VALUE_CACHE_BYTES_KEY) && !(partDaemonSection.get(VALUE_CACHE_BYTES_KEY) instanceof Number)) {
+      throw new InvalidConfigurationException("'part_daemon' section's 'value_cache_bytes' key must be of type long!");
+    }
+    if (partDaemonSection.containsKey(RECORD_HEAT_EXPECTED_RECORDS_KEY) && !(partDaemonSection.get(RECORD_HEAT_EXPECTED_RECORDS_KEY) instanceof Integer)) {
+      throw new InvalidConfigurationException("'part_daemon' section's 'record_heat_expected_records' key must be of type int!");
+    }
 
     // update daemon section
     if(!partservSection.containsKey(UPDATE_DAEMON_SECTION_KEY)) {
@@ -115,4 +134,44 @@ public class YamlPartservConfigurator extends BaseYamlConfigurator implements Pa
   public int getNumThreads() {
     return ((Integer)((Map<String, Object>) getPartservSection().get(PART_DAEMON_SECTION_KEY)).get(NUM_WORKER_THREADS)).intValue();
   }
+
+  @Override
+  public synchronized BlockCache getBlockCache() {
+    if (blockCache == null) {
+      Number capacity = (Number) getPartDaemonSection().get(BLOCK_CACHE_BYTES_KEY);
+      if (capacity == null || capacity.longValue() <= 0) {
+        return null;
+      }
+      blockCache = new BlockCache(capacity.longValue());
+    }
+    return blockCache;
+  }
+
+  @Override
+  public synchronized ValueCache getValueCache() {
+    if (valueCache == null) {
+      Number capacity = (Number) getPartDaemonSection().get(VALUE_CACHE_BYTES_KEY);
+      if (capacity == null || capacity.longValue() <= 0) {
+        return null;
+      }
+      valueCache = new ValueCache(capacity.longValue());
+    }
+    return valueCache;
+  }
+
+  @Override
+  public synchronized RecordHeat getRecordHeat() {
+    if (recordHeat == null) {
+      Integer expectedRecords = (Integer) getPartDaemonSection().get(RECORD_HEAT_EXPECTED_RECORDS_KEY);
+      if (expectedRecords == null || expectedRecords <= 0) {
+        return null;
+      }
+      recordHeat = new RecordHeat(expectedRecords);
+    }
+    return recordHeat;
+  }
+
+  protected Map<String, Object> getPartDaemonSection() {
+    return (Map<String, Object>) getPartservSection().get(PART_DAEMON_SECTION_KEY);
+  }
 }
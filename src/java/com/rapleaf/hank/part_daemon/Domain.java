@@ -19,6 +19,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 
 import com.rapleaf.hank.partitioner.Partitioner;
+import com.rapleaf.hank.storage.MemoryUsageReporter;
 import com.rapleaf.hank.storage.Reader;
 import com.rapleaf.hank.storage.Result;
 
@@ -54,6 +55,20 @@ class Domain {
     return true;
   }
 
+  /**
+   * @return the number of bytes held in memory by this domain's readers, as
+   *         far as they report it
+   */
+  public long getMemoryUsage() {
+    long total = 0;
+    for (Reader reader : parts) {
+      if (reader instanceof MemoryUsageReporter) {
+        total += ((MemoryUsageReporter) reader).getMemoryUsage();
+      }
+    }
+    return total;
+  }
+
   public String getName() {
     return name;
   }
@@ -17,7 +17,14 @@ package com.rapleaf.hank.part_daemon;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.log4j.Logger;
 import org.apache.thrift.TException;
@@ -42,6 +49,30 @@ import com.rapleaf.hank.storage.StorageEngine;
 class Handler implements Iface {
   private final static Logger LOG = Logger.getLogger(Handler.class);
 
+  // the non-value responses never change, so they can be shared
+  private static final HankResponse NO_SUCH_DOMAIN = HankResponse.no_such_domain(true);
+  private static final HankResponse NOT_FOUND = HankResponse.not_found(true);
+  private static final HankResponse WRONG_HOST = HankResponse.wrong_host(true);
+  private static final HankResponse INTERNAL_ERROR = HankResponse.internal_error(true);
+
+  /**
+   * Per-thread Result and value response, reused from one request to the
+   * next so that serving a value doesn't allocate. This is safe because the
+   * thrift processor serializes the response before the worker thread picks
+   * up another request.
+   */
+  private static final class RequestState {
+    private final Result result = new Result();
+    private final HankResponse response = new HankResponse();
+  }
+
+  private final ThreadLocal<RequestState> requestStates = new ThreadLocal<RequestState>() {
+    @Override
+    protected RequestState initialValue() {
+      return new RequestState();
+    }
+  };
+
   private final Domain[] domains;
 
   public Handler(PartDaemonAddress hostAndPort, PartservConfigurator config) throws DataNotFoundException, IOException {
@@ -75,35 +106,81 @@ class Handler implements Iface {
           domainConfig.getName()));
 
       // instantiate all the readers
-      Reader[] readers = new Reader[domainConfig.getNumParts()];
-      for (HostDomainPartitionConfig part : partitions) {
-        LOG.debug(String.format("Instantiating reader for part num %d", part.getPartNum()));
-        readers[part.getPartNum()] = eng.getReader(config, part.getPartNum());
-      }
+      Reader[] readers = getReaders(config, eng, partitions, domainConfig.getNumParts());
 
       // configure and store the Domain wrapper
       domains[domainId] = new Domain(domainConfig.getName(), readers, domainConfig.getPartitioner());
+      long memoryUsage = domains[domainId].getMemoryUsage();
+      if (memoryUsage > 0) {
+        LOG.info(String.format("Domain %s is holding %d bytes in memory", domainConfig.getName(), memoryUsage));
+      }
+    }
+  }
+
+  /**
+   * Instantiate the readers for a domain's partitions in parallel, since
+   * some storage engines do a lot of work (like loading the whole partition
+   * into memory) in their readers' constructors.
+   */
+  private static Reader[] getReaders(final PartservConfigurator config,
+      final StorageEngine eng,
+      Set<HostDomainPartitionConfig> partitions,
+      int numParts)
+  throws IOException {
+    Reader[] readers = new Reader[numParts];
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(partitions.size(), Runtime.getRuntime().availableProcessors())));
+    try {
+      Map<Integer, Future<Reader>> futures = new HashMap<Integer, Future<Reader>>();
+      for (HostDomainPartitionConfig part : partitions) {
+        final int partNum = part.getPartNum();
+        futures.put(partNum, executor.submit(new Callable<Reader>() {
+          @Override
+          public Reader call() throws IOException {
+            LOG.debug(String.format("Instantiating reader for part num %d", partNum));
+            return eng.getReader(config, partNum);
+          }
+        }));
+      }
+      for (Map.Entry<Integer, Future<Reader>> entry : futures.entrySet()) {
+        try {
+          readers[entry.getKey()] = entry.getValue().get();
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof IOException) {
+            throw (IOException) e.getCause();
+          }
+          throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+          throw new IOException("Interrupted while instantiating readers", e);
+        }
+      }
+    } finally {
+      executor.shutdownNow();
     }
+    return readers;
   }
 
   @Override
   public HankResponse get(int domainId, ByteBuffer key) throws TException {
-    Result result = new Result();
     Domain domain = getDomain(domainId & 0xff);
 
     if (domain == null) {
-      return HankResponse.no_such_domain(true);
+      return NO_SUCH_DOMAIN;
     }
 
+    RequestState state = requestStates.get();
+    Result result = state.result;
+    result.clear();
+
     try {
       if (domain.get(key, result)) {
         if (result.isFound()) {
-          return HankResponse.value(result.getBuffer());
+          state.response.set_value(result.getBuffer());
+          return state.response;
         } else {
-          return HankResponse.not_found(true);
+          return NOT_FOUND;
         }
       } else {
-        return HankResponse.wrong_host(true);
+        return WRONG_HOST;
       }
     } catch (IOException e) {
       LOG.error(String.format("Exception during get! Domain: %d (%s) Key: %s",
@@ -111,7 +188,7 @@ class Handler implements Iface {
           domain.getName(),
           stringifyKey(key)), e);
 
-      return HankResponse.internal_error(true);
+      return INTERNAL_ERROR;
     }
   }
 
@@ -0,0 +1,234 @@
+/**
+ *  Copyright 2011 Rapleaf
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.rapleaf.hank.storage;
+
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A byte-bounded LRU cache of decompressed blocks, keyed by the partition file
+ * the block came from and the block's number within that file (for Cueball,
+ * its hash prefix). One instance is meant to be shared by all the readers in a
+ * part daemon, so that the cache budget follows the traffic rather than being
+ * divided up ahead of time between domains and partitions.
+ * 
+ * Cached blocks are shared between threads and must never be modified.
+ */
+public class BlockCache {
+  /**
+   * A cached block, along with an optional index over its contents. The
+   * index is opaque to the cache - it's built and interpreted by the reader
+   * that cached the block - but it's charged against the capacity too.
+   */
+  public static final class Block {
+    private final byte[] data;
+    private final long[] index;
+
+    public Block(byte[] data) {
+      this(data, null);
+    }
+
+    public Block(byte[] data, long[] index) {
+      this.data = data;
+      this.index = index;
+    }
+
+    public byte[] getData() {
+      return data;
+    }
+
+    /**
+     * @return the index attached to this block, or null if there isn't one
+     */
+    public long[] getIndex() {
+      return index;
+    }
+  }
+
+  /**
+   * Rough per-entry bookkeeping cost (map entry, boxed key, array header)
+   * charged against the capacity in addition to the block itself.
+   */
+  static final int ENTRY_OVERHEAD = 64;
+
+  private static final int DEFAULT_NUM_SEGMENTS = 16;
+  // block numbers get the low bits of the key, file ids the rest
+  private static final int BLOCK_NUM_BITS = 32;
+
+  private final Segment[] segments;
+  private final long capacity;
+  private final CachedFiles files = new CachedFiles();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  public BlockCache(long capacity) {
+    this(capacity, DEFAULT_NUM_SEGMENTS);
+  }
+
+  /**
+   * @param capacity
+   * @param numSegments
+   *          how many independently locked segments to split the cache into.
+   *          Each gets an equal share of <i>capacity</i>, and a block bigger
+   *          than capacity / numSegments is never cached.
+   */
+  public BlockCache(long capacity, int numSegments) {
+    this.capacity = capacity;
+    segments = new Segment[numSegments];
+    for (int i = 0; i < numSegments; i++) {
+      segments[i] = new Segment(capacity / numSegments);
+    }
+  }
+
+  /**
+   * Get the id that identifies <i>path</i> in this cache. Readers that open
+   * the same, unchanged file share an id, and therefore share cached blocks.
+   * 
+   * @param partitionRoot
+   *          the partition the file belongs to, for invalidate()
+   * @param path
+   * @return
+   */
+  public int getFileId(String partitionRoot, String path) {
+    return files.getFileId(partitionRoot, path);
+  }
+
+  /**
+   * Drop the ids and cached blocks of the files in <i>partitionRoot</i> that
+   * have been deleted or changed since they were opened. Updaters call this
+   * once they've replaced a partition's files. Blocks of the files they left
+   * alone stay cached.
+   * 
+   * @param partitionRoot
+   */
+  public void invalidate(String partitionRoot) {
+    Set<Integer> staleFileIds = files.invalidate(partitionRoot);
+    if (staleFileIds.isEmpty()) {
+      return;
+    }
+    for (Segment segment : segments) {
+      segment.removeFiles(staleFileIds, BLOCK_NUM_BITS);
+    }
+  }
+
+  /**
+   * @param fileId
+   * @param blockNum
+   * @return the cached block, or null if it isn't cached
+   */
+  public Block get(int fileId, int blockNum) {
+    long key = toKey(fileId, blockNum);
+    Block block = getSegment(key).get(key);
+    if (block == null) {
+      misses.incrementAndGet();
+    } else {
+      hits.incrementAndGet();
+    }
+    return block;
+  }
+
+  public void put(int fileId, int blockNum, Block block) {
+    long key = toKey(fileId, blockNum);
+    getSegment(key).put(key, block);
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  public long getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * @return the number of bytes currently charged against the capacity.
+   */
+  public long getSize() {
+    long size = 0;
+    for (Segment segment : segments) {
+      size += segment.getSize();
+    }
+    return size;
+  }
+
+  private static long toKey(int fileId, int blockNum) {
+    return ((long) fileId << BLOCK_NUM_BITS) | (blockNum & 0xffffffffL);
+  }
+
+  private Segment getSegment(long key) {
+    return segments[CachedFiles.getSegmentIndex(key, segments.length)];
+  }
+
+  private static long charge(Block block) {
+    long size = block.data.length + ENTRY_OVERHEAD;
+    if (block.index != null) {
+      size += block.index.length * 8L;
+    }
+    return size;
+  }
+
+  private final class Segment extends CachedFiles.Segment<Block> {
+    public Segment(long capacity) {
+      super(capacity);
+    }
+
+    @Override
+    protected long charge(Block block) {
+      return BlockCache.charge(block);
+    }
+
+    public synchronized Block get(long key) {
+      return entries.get(key);
+    }
+
+    public synchronized void put(long key, Block block) {
+      if (charge(block) > capacity) {
+        // never going to fit, so don't churn the whole segment trying
+        return;
+      }
+      Block previous = entries.put(key, block);
+      if (previous != null) {
+        size -= charge(previous);
+      }
+      size += charge(block);
+
+      Iterator<Block> iter = entries.values().iterator();
+      while (size > capacity && iter.hasNext()) {
+        size -= charge(iter.next());
+        iter.remove();
+        evictions.incrementAndGet();
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "BlockCache [capacity=" + capacity + ", size=" + getSize()
+        + ", hits=" + getHitCount() + ", misses=" + getMissCount()
+        + ", evictions=" + getEvictionCount() + "]";
+  }
+}
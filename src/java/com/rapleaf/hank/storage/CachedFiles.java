@@ -0,0 +1,142 @@
+/**
+ *  Copyright 2011 Rapleaf
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.rapleaf.hank.storage;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The files whose contents are held in a shared cache (BlockCache or
+ * ValueCache), along with the segments the cache is split into. Each file is
+ * given an id that goes into the keys of its cached entries. Readers that open
+ * the same, unchanged file share an id, and therefore share cached entries.
+ */
+final class CachedFiles {
+  private final Map<String, Integer> fileIds = new HashMap<String, Integer>();
+  // the paths of each partition's file identities, so that invalidate() can
+  // tell which of them are stale
+  private final Map<String, Map<String, String>> pathsByPartition = new HashMap<String, Map<String, String>>();
+  private int nextFileId = 0;
+
+  public synchronized int getFileId(String partitionRoot, String path) {
+    String identity = getIdentity(path);
+    Integer id = fileIds.get(identity);
+    if (id == null) {
+      id = nextFileId++;
+      fileIds.put(identity, id);
+      String partition = new File(partitionRoot).getAbsolutePath();
+      Map<String, String> partitionPaths = pathsByPartition.get(partition);
+      if (partitionPaths == null) {
+        partitionPaths = new HashMap<String, String>();
+        pathsByPartition.put(partition, partitionPaths);
+      }
+      partitionPaths.put(identity, path);
+    }
+    return id;
+  }
+
+  /**
+   * Forget the files in <i>partitionRoot</i> that have been deleted or changed
+   * since they were given ids. Files that are unchanged keep their ids.
+   * 
+   * @param partitionRoot
+   * @return the ids of the forgotten files, whose entries have to be dropped
+   */
+  public synchronized Set<Integer> invalidate(String partitionRoot) {
+    Set<Integer> staleFileIds = new HashSet<Integer>();
+    String partition = new File(partitionRoot).getAbsolutePath();
+    Map<String, String> partitionPaths = pathsByPartition.get(partition);
+    if (partitionPaths == null) {
+      return staleFileIds;
+    }
+    Iterator<Map.Entry<String, String>> iter = partitionPaths.entrySet().iterator();
+    while (iter.hasNext()) {
+      Map.Entry<String, String> entry = iter.next();
+      if (!new File(entry.getValue()).exists() || !entry.getKey().equals(getIdentity(entry.getValue()))) {
+        staleFileIds.add(fileIds.remove(entry.getKey()));
+        iter.remove();
+      }
+    }
+    if (partitionPaths.isEmpty()) {
+      pathsByPartition.remove(partition);
+    }
+    return staleFileIds;
+  }
+
+  private static String getIdentity(String path) {
+    File f = new File(path);
+    return f.getAbsolutePath() + ":" + f.length() + ":" + f.lastModified();
+  }
+
+  /**
+   * @return which of <i>numSegments</i> segments holds the entry for
+   *         <i>key</i>
+   */
+  public static int getSegmentIndex(long key, int numSegments) {
+    int h = (int) (key ^ (key >>> 32));
+    h ^= (h >>> 16);
+    h *= 0x85ebca6b;
+    h ^= (h >>> 13);
+    return (h & 0x7fffffff) % numSegments;
+  }
+
+  /**
+   * An independently locked part of a cache, so that threads looking up
+   * unrelated entries don't serialize on a single lock. Each segment gets an
+   * equal share of the cache's capacity, and an entry bigger than that share
+   * is never cached. Entries are kept in access order, least recently used
+   * first.
+   */
+  static abstract class Segment<V> {
+    protected final long capacity;
+    protected final LinkedHashMap<Long, V> entries = new LinkedHashMap<Long, V>(16, 0.75f, true);
+    protected long size = 0;
+
+    protected Segment(long capacity) {
+      this.capacity = capacity;
+    }
+
+    /**
+     * @return the number of bytes <i>value</i> is charged against the
+     *         capacity
+     */
+    protected abstract long charge(V value);
+
+    /**
+     * Drop the entries whose keys have one of <i>fileIds</i> above the low
+     * <i>fileIdShift</i> bits.
+     */
+    public synchronized void removeFiles(Set<Integer> fileIds, int fileIdShift) {
+      Iterator<Map.Entry<Long, V>> iter = entries.entrySet().iterator();
+      while (iter.hasNext()) {
+        Map.Entry<Long, V> entry = iter.next();
+        if (fileIds.contains((int) (entry.getKey() >>> fileIdShift))) {
+          size -= charge(entry.getValue());
+          iter.remove();
+        }
+      }
+    }
+
+    public synchronized long getSize() {
+      return size;
+    }
+  }
+}
@@ -0,0 +1,51 @@
+/**
+ *  Copyright 2011 Rapleaf
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.rapleaf.hank.storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Per-thread direct scratch buffers for reading from FileChannels. Reading
+ * into a heap buffer makes the JDK read into a temporary direct buffer of its
+ * own and then copy; reading into one of these skips that copy, and since the
+ * buffer is shared by every reader a thread uses, there's only one per thread
+ * no matter how many partitions are being served.
+ * 
+ * A scratch buffer is only good until the next call to get() on the same
+ * thread, so it must not be held across calls into other readers.
+ */
+public final class DirectBuffers {
+  private static final ThreadLocal<ByteBuffer> SCRATCH = new ThreadLocal<ByteBuffer>();
+
+  private DirectBuffers() {}
+
+  /**
+   * @param size
+   * @return this thread's scratch buffer, with position 0 and limit
+   *         <i>size</i>
+   */
+  public static ByteBuffer get(int size) {
+    ByteBuffer buffer = SCRATCH.get();
+    if (buffer == null || buffer.capacity() < size) {
+      // grow a bit past what was asked for, like Result does
+      buffer = ByteBuffer.allocateDirect(size + size / 10);
+      SCRATCH.set(buffer);
+    }
+    buffer.clear();
+    buffer.limit(size);
+    return buffer;
+  }
+}
@@ -0,0 +1,106 @@
+/**
+ *  Copyright 2011 Rapleaf
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.rapleaf.hank.storage;
+
+/**
+ * A count-min sketch of how often keys have been seen recently, with 4-bit
+ * counters packed sixteen to a long. Each key maps to one counter in each of
+ * four rows, and its estimated frequency is the smallest of them. Once a
+ * sample's worth of increments has been recorded, every counter is halved, so
+ * the estimates favor recent popularity over all-time popularity.
+ * 
+ * This is the frequency half of TinyLFU admission. Not thread safe.
+ */
+final class FrequencySketch {
+  private static final long[] SEEDS = new long[]{
+    0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+  };
+  private static final long RESET_MASK = 0x7777777777777777L;
+
+  private final long[] table;
+  private final int tableMask;
+  private final int sampleSize;
+  private int size = 0;
+
+  /**
+   * @param expectedEntries
+   *          roughly how many distinct keys the sketch has to tell apart
+   */
+  public FrequencySketch(int expectedEntries) {
+    int tableSize = 1;
+    while (tableSize < Math.max(expectedEntries / 4, 1) && tableSize < (1 << 24)) {
+      tableSize <<= 1;
+    }
+    table = new long[tableSize];
+    tableMask = tableSize - 1;
+    sampleSize = Math.max(expectedEntries, 1) * 10;
+  }
+
+  public void increment(long key) {
+    int hash = spread(key);
+    // which quarter of each long this key's counters live in
+    int start = (hash & 3) << 2;
+    boolean added = false;
+    for (int i = 0; i < 4; i++) {
+      added |= incrementAt(indexOf(hash, i), start + i);
+    }
+    if (added && ++size >= sampleSize) {
+      reset();
+    }
+  }
+
+  public int frequency(long key) {
+    int hash = spread(key);
+    int start = (hash & 3) << 2;
+    int frequency = Integer.MAX_VALUE;
+    for (int i = 0; i < 4; i++) {
+      int count = (int) ((table[indexOf(hash, i)] >>> ((start + i) << 2)) & 0xfL);
+      frequency = Math.min(frequency, count);
+    }
+    return frequency;
+  }
+
+  private boolean incrementAt(int index, int counter) {
+    int shift = counter << 2;
+    long mask = 0xfL << shift;
+    if ((table[index] & mask) != mask) {
+      table[index] += 1L << shift;
+      return true;
+    }
+    return false;
+  }
+
+  private void reset() {
+    for (int i = 0; i < table.length; i++) {
+      table[i] = (table[i] >>> 1) & RESET_MASK;
+    }
+    size /= 2;
+  }
+
+  private int indexOf(int hash, int row) {
+    long h = (hash + SEEDS[row]) * SEEDS[row];
+    h += h >>> 32;
+    return (int) h & tableMask;
+  }
+
+  private static int spread(long key) {
+    long h = key * 0x9e3779b97f4a7c15L;
+    h ^= h >>> 29;
+    int x = (int) (h ^ (h >>> 32));
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+    return (x >>> 16) ^ x;
+  }
+}
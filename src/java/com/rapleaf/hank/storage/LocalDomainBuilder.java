@@ -0,0 +1,438 @@
+/**
+ *  Copyright 2011 Rapleaf
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.rapleaf.hank.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+import com.rapleaf.hank.partitioner.Partitioner;
+import com.rapleaf.hank.util.Bytes;
+import com.rapleaf.hank.util.FsUtils;
+
+/**
+ * Builds all of a domain's partitions on the local machine, from key/value
+ * pairs in any order, for when running a Hadoop job (see HadoopDomainBuilder)
+ * would be overkill.
+ * 
+ * Like the Hadoop build, pairs are partitioned with the domain's Partitioner
+ * and sorted by the storage engine's comparable key (for Cueball and Curly,
+ * the key hash) before they're handed to the storage engine's writers. Pairs
+ * are buffered in memory until the buffer is full, and then sorted and
+ * spilled to a run file per partition by a pool of threads, while more pairs
+ * are buffered. build() then merges each partition's runs into its writer,
+ * with the partitions spread over the same pool. Like Hadoop's io.sort.factor,
+ * no more than <i>mergeFactor</i> runs are merged at once: a partition with
+ * more runs than that first has them merged, <i>mergeFactor</i> consecutive
+ * runs at a time, into fewer, longer runs, until few enough are left.
+ * 
+ * While pairs are being added, memory use is bounded by the configured number
+ * of bytes. While merging, each of the <i>numThreads</i> threads has at most
+ * <i>mergeFactor</i> runs open for reading and one open for writing, each
+ * with a 64KB buffer, so the merge takes at most numThreads * (mergeFactor +
+ * 1) * 64KB of buffers and as many open files, no matter how big the input
+ * is. Pairs have to be added from a single thread.
+ */
+public class LocalDomainBuilder {
+  private static final Logger LOG = Logger.getLogger(LocalDomainBuilder.class);
+
+  private static final class Entry {
+    private final int partition;
+    private final ByteBuffer comparableKey;
+    private final byte[] key;
+    private final byte[] value;
+
+    public Entry(int partition, ByteBuffer comparableKey, byte[] key, byte[] value) {
+      this.partition = partition;
+      this.comparableKey = comparableKey;
+      this.key = key;
+      this.value = value;
+    }
+  }
+
+  /**
+   * Writes pairs out in the run file format.
+   */
+  private static final class RunWriter implements Writer {
+    private final DataOutputStream out;
+
+    public RunWriter(File file) throws IOException {
+      file.getParentFile().mkdirs();
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), RUN_BUFFER_SIZE));
+    }
+
+    @Override
+    public void write(ByteBuffer key, ByteBuffer value) throws IOException {
+      write(key.array(), key.arrayOffset() + key.position(), key.remaining());
+      write(value.array(), value.arrayOffset() + value.position(), value.remaining());
+    }
+
+    public void write(byte[] bytes, int off, int len) throws IOException {
+      out.writeInt(len);
+      out.write(bytes, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+
+  /**
+   * Reads back one of a partition's sorted runs during the merge.
+   */
+  private final class Run {
+    private final int runNumber;
+    private final DataInputStream in;
+    private byte[] key;
+    private byte[] value;
+    private ByteBuffer comparableKey;
+
+    public Run(int runNumber, File file) throws IOException {
+      this.runNumber = runNumber;
+      this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), RUN_BUFFER_SIZE));
+    }
+
+    /**
+     * @return false once the run is used up
+     */
+    public boolean next() throws IOException {
+      int keyLength;
+      try {
+        keyLength = in.readInt();
+      } catch (EOFException e) {
+        in.close();
+        return false;
+      }
+      key = new byte[keyLength];
+      in.readFully(key);
+      value = new byte[in.readInt()];
+      in.readFully(value);
+      comparableKey = storageEngine.getComparableKey(ByteBuffer.wrap(key));
+      return true;
+    }
+  }
+
+  private static final Comparator<Entry> ENTRY_ORDER = new Comparator<Entry>() {
+    @Override
+    public int compare(Entry a, Entry b) {
+      if (a.partition != b.partition) {
+        return a.partition < b.partition ? -1 : 1;
+      }
+      return Bytes.compareBytes(a.comparableKey, b.comparableKey);
+    }
+  };
+
+  private static final Comparator<Run> RUN_ORDER = new Comparator<Run>() {
+    @Override
+    public int compare(Run a, Run b) {
+      int c = Bytes.compareBytes(a.comparableKey, b.comparableKey);
+      if (c != 0) {
+        return c;
+      }
+      // keep pairs with the same key in the order they were added
+      return a.runNumber - b.runNumber;
+    }
+  };
+
+  // a rough guess at the heap used by each buffered pair on top of its bytes
+  private static final int ENTRY_OVERHEAD = 96;
+  private static final int RUN_BUFFER_SIZE = 64 * 1024;
+  private static final int DEFAULT_MERGE_FACTOR = 64;
+
+  private final StorageEngine storageEngine;
+  private final Partitioner partitioner;
+  private final int numParts;
+  private final String tmpDir;
+  private final long maxBufferBytes;
+  private final int maxSpillsInFlight;
+  private final int mergeFactor;
+  private final ExecutorService executor;
+
+  private List<Entry> buffer = new ArrayList<Entry>();
+  private long bufferBytes = 0;
+  private int numRuns = 0;
+  private final Queue<Future<Map<Integer, File>>> spills = new ArrayDeque<Future<Map<Integer, File>>>();
+  private final Map<Integer, List<File>> runs = new HashMap<Integer, List<File>>();
+
+  /**
+   * @param tmpDir
+   *          where to spill sorted runs. It's deleted once the build is done.
+   * @param maxMemoryBytes
+   *          roughly how much memory to spend on buffering pairs, across the
+   *          buffer being filled and those being sorted
+   * @param numThreads
+   *          how many threads to sort and merge with
+   */
+  public LocalDomainBuilder(StorageEngine storageEngine,
+      Partitioner partitioner,
+      int numParts,
+      String tmpDir,
+      long maxMemoryBytes,
+      int numThreads)
+  {
+    this(storageEngine, partitioner, numParts, tmpDir, maxMemoryBytes, numThreads, DEFAULT_MERGE_FACTOR);
+  }
+
+  /**
+   * @param mergeFactor
+   *          the most runs to merge at once, which bounds the buffers and
+   *          files each merging thread has open
+   */
+  public LocalDomainBuilder(StorageEngine storageEngine,
+      Partitioner partitioner,
+      int numParts,
+      String tmpDir,
+      long maxMemoryBytes,
+      int numThreads,
+      int mergeFactor)
+  {
+    if (mergeFactor < 2) {
+      throw new IllegalArgumentException("Can't merge runs " + mergeFactor + " at a time!");
+    }
+    this.mergeFactor = mergeFactor;
+    this.storageEngine = storageEngine;
+    this.partitioner = partitioner;
+    this.numParts = numParts;
+    this.tmpDir = tmpDir;
+    // one buffer is being filled while each thread can be sorting another
+    this.maxBufferBytes = Math.max(1, maxMemoryBytes / (numThreads + 1));
+    this.maxSpillsInFlight = numThreads;
+    this.executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+      private int x = 0;
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "LocalDomainBuilder Thread #" + ++x);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Use all of the machine's cores.
+   */
+  public LocalDomainBuilder(StorageEngine storageEngine,
+      Partitioner partitioner,
+      int numParts,
+      String tmpDir,
+      long maxMemoryBytes)
+  {
+    this(storageEngine, partitioner, numParts, tmpDir, maxMemoryBytes, Runtime.getRuntime().availableProcessors());
+  }
+
+  public void add(ByteBuffer key, ByteBuffer value) throws IOException {
+    byte[] keyBytes = new byte[key.remaining()];
+    key.duplicate().get(keyBytes);
+    byte[] valueBytes = new byte[value.remaining()];
+    value.duplicate().get(valueBytes);
+    int partition = partitioner.partition(ByteBuffer.wrap(keyBytes)) % numParts;
+    ByteBuffer comparableKey = storageEngine.getComparableKey(ByteBuffer.wrap(keyBytes));
+
+    buffer.add(new Entry(partition, comparableKey, keyBytes, valueBytes));
+    bufferBytes += keyBytes.length + valueBytes.length + comparableKey.remaining() + ENTRY_OVERHEAD;
+    if (bufferBytes >= maxBufferBytes) {
+      spill();
+    }
+  }
+
+  /**
+   * Write every partition, including empty ones, with the storage engine's
+   * writers.
+   */
+  public void build(final OutputStreamFactory streamFactory, final int versionNumber, final boolean base) throws IOException {
+    try {
+      if (!buffer.isEmpty()) {
+        spill();
+      }
+      while (!spills.isEmpty()) {
+        addRuns(spills.remove());
+      }
+      LOG.info("Merging " + numRuns + " sorted runs into " + numParts + " partitions");
+
+      List<Future<Void>> merges = new ArrayList<Future<Void>>();
+      for (int i = 0; i < numParts; i++) {
+        final int partNum = i;
+        merges.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            merge(storageEngine.getWriter(streamFactory, partNum, versionNumber, base), partNum);
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> merge : merges) {
+        get(merge);
+      }
+    } finally {
+      executor.shutdownNow();
+      FsUtils.rmrf(tmpDir);
+    }
+  }
+
+  /**
+   * Hand the buffer off to be sorted and written out, waiting for an earlier
+   * one first if too many are in flight.
+   */
+  private void spill() throws IOException {
+    if (spills.size() >= maxSpillsInFlight) {
+      addRuns(spills.remove());
+    }
+    final List<Entry> entries = buffer;
+    final int runNumber = numRuns++;
+    buffer = new ArrayList<Entry>();
+    bufferBytes = 0;
+    spills.add(executor.submit(new Callable<Map<Integer, File>>() {
+      @Override
+      public Map<Integer, File> call() throws IOException {
+        return writeRun(entries, runNumber);
+      }
+    }));
+  }
+
+  private Map<Integer, File> writeRun(List<Entry> entries, int runNumber) throws IOException {
+    Collections.sort(entries, ENTRY_ORDER);
+    Map<Integer, File> files = new HashMap<Integer, File>();
+    RunWriter out = null;
+    int partition = -1;
+    for (Entry entry : entries) {
+      if (entry.partition != partition) {
+        if (out != null) {
+          out.close();
+        }
+        partition = entry.partition;
+        File file = new File(tmpDir + "/" + partition + "/" + runNumber + ".run");
+        out = new RunWriter(file);
+        files.put(partition, file);
+      }
+      out.write(entry.key, 0, entry.key.length);
+      out.write(entry.value, 0, entry.value.length);
+    }
+    if (out != null) {
+      out.close();
+    }
+    return files;
+  }
+
+  private void addRuns(Future<Map<Integer, File>> spill) throws IOException {
+    // runs are added in the order they were spilled, which the merge relies
+    // on to keep pairs with the same key in order
+    for (Map.Entry<Integer, File> run : get(spill).entrySet()) {
+      List<File> files = runs.get(run.getKey());
+      if (files == null) {
+        files = new ArrayList<File>();
+        runs.put(run.getKey(), files);
+      }
+      files.add(run.getValue());
+    }
+  }
+
+  private void merge(Writer writer, int partNum) throws IOException {
+    List<File> files = runs.get(partNum);
+    if (files != null) {
+      int numMerged = 0;
+      while (files.size() > mergeFactor) {
+        // only consecutive runs are merged together, so that pairs with the
+        // same key stay in the order they were added
+        List<File> merged = new ArrayList<File>();
+        for (int start = 0; start < files.size(); start += mergeFactor) {
+          List<File> group = files.subList(start, Math.min(files.size(), start + mergeFactor));
+          if (group.size() == 1) {
+            merged.add(group.get(0));
+            continue;
+          }
+          File file = new File(tmpDir + "/" + partNum + "/merged-" + numMerged++ + ".run");
+          RunWriter out = new RunWriter(file);
+          mergeRuns(group, out);
+          out.close();
+          merged.add(file);
+        }
+        files = merged;
+      }
+      mergeRuns(files, writer);
+    }
+    writer.close();
+  }
+
+  /**
+   * Merge <i>files</i>, in order, into <i>writer</i>, and delete them.
+   */
+  private void mergeRuns(List<File> files, Writer writer) throws IOException {
+    List<Run> opened = new ArrayList<Run>(files.size());
+    try {
+      PriorityQueue<Run> queue = new PriorityQueue<Run>(files.size(), RUN_ORDER);
+      for (int i = 0; i < files.size(); i++) {
+        Run run = new Run(i, files.get(i));
+        opened.add(run);
+        if (run.next()) {
+          queue.add(run);
+        }
+      }
+      while (!queue.isEmpty()) {
+        Run run = queue.remove();
+        writer.write(ByteBuffer.wrap(run.key), ByteBuffer.wrap(run.value));
+        if (run.next()) {
+          queue.add(run);
+        }
+      }
+    } finally {
+      for (Run run : opened) {
+        run.in.close();
+      }
+    }
+    for (File file : files) {
+      file.delete();
+    }
+  }
+
+  private static <T> T get(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted while building the domain", e);
+    }
+  }
+}
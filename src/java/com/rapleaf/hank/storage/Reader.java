@@ -23,4 +23,18 @@ import java.nio.ByteBuffer;
  */
 public interface Reader {
   public void get(ByteBuffer key, Result result) throws IOException;
+
+  /**
+   * Look up a batch of keys at once, placing the result for keys[i] in
+   * results[i]. Implementations should take advantage of the whole batch
+   * being known up front, for instance by reading each block only once and
+   * doing their I/O in file order.
+   * 
+   * @param keys
+   * @param results
+   *          must be the same length as <i>keys</i>, and contain distinct
+   *          Result instances
+   * @throws IOException
+   */
+  public void get(ByteBuffer[] keys, Result[] results) throws IOException;
 }
@@ -0,0 +1,128 @@
+/**
+ *  Copyright 2011 Rapleaf
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.rapleaf.hank.storage;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * How often the records of each partition have been read recently, so that
+ * the hot ones can be laid out together when the partition is rewritten (see
+ * CurlyCompactor). Like ValueCache, one instance is meant to be shared by all
+ * the readers and updaters in a part daemon, so that the stats collected
+ * while serving a version are there when it's updated.
+ * 
+ * Records are identified by their offset into the partition's record file,
+ * so a partition's stats have to be reset whenever its records move.
+ */
+public class RecordHeat {
+  /**
+   * The heat of a single partition's records, on a scale of 0 to MAX_HEAT.
+   * Recent reads count for more than old ones.
+   * 
+   * Every read of the partition is recorded, so the stats are split into
+   * stripes by record, each with its own sketch and lock, and concurrent
+   * readers only contend when they hit the same stripe.
+   */
+  public static final class Partition {
+    private static final class Stripe {
+      private final FrequencySketch sketch;
+      private long numReads = 0;
+
+      public Stripe(int expectedRecords) {
+        sketch = new FrequencySketch(expectedRecords);
+      }
+    }
+
+    private final Stripe[] stripes = new Stripe[1 << STRIPE_BITS];
+
+    Partition(int expectedRecords) {
+      for (int i = 0; i < stripes.length; i++) {
+        stripes[i] = new Stripe(Math.max(expectedRecords / stripes.length, 1));
+      }
+    }
+
+    public void recordRead(long recordOffset) {
+      Stripe stripe = getStripe(recordOffset);
+      synchronized (stripe) {
+        stripe.sketch.increment(recordOffset);
+        stripe.numReads++;
+      }
+    }
+
+    public int getHeat(long recordOffset) {
+      Stripe stripe = getStripe(recordOffset);
+      synchronized (stripe) {
+        return stripe.sketch.frequency(recordOffset);
+      }
+    }
+
+    public long getNumReads() {
+      long numReads = 0;
+      for (Stripe stripe : stripes) {
+        synchronized (stripe) {
+          numReads += stripe.numReads;
+        }
+      }
+      return numReads;
+    }
+
+    private Stripe getStripe(long recordOffset) {
+      // offsets of neighbouring records only differ in their low bits, so
+      // spread them before taking the top ones
+      return stripes[(int) ((recordOffset * 0xc6a4a7935bd1e995L) >>> (64 - STRIPE_BITS))];
+    }
+  }
+
+  private static final int STRIPE_BITS = 4;
+
+  public static final int MAX_HEAT = 15;
+
+  private final int expectedRecords;
+  private final ConcurrentMap<String, Partition> partitions = new ConcurrentHashMap<String, Partition>();
+
+  /**
+   * @param expectedRecords
+   *          roughly how many distinct records per partition the stats have
+   *          to tell apart
+   */
+  public RecordHeat(int expectedRecords) {
+    this.expectedRecords = expectedRecords;
+  }
+
+  public Partition getPartition(String partitionRoot) {
+    Partition partition = partitions.get(partitionRoot);
+    if (partition == null) {
+      Partition created = new Partition(expectedRecords);
+      partition = partitions.putIfAbsent(partitionRoot, created);
+      if (partition == null) {
+        partition = created;
+      }
+    }
+    return partition;
+  }
+
+  /**
+   * Forget the partition's stats, once its records have moved.
+   */
+  public void reset(String partitionRoot) {
+    partitions.remove(partitionRoot);
+  }
+
+  public int getExpectedRecords() {
+    return expectedRecords;
+  }
+}
@@ -17,6 +17,11 @@ package com.rapleaf.hank.storage;
 
 import java.nio.ByteBuffer;
 
+/**
+ * Holds the outcome of a single Reader lookup. Results are meant to be reused
+ * from one lookup to the next, so that the buffer a reader fills in only has
+ * to be allocated once it's big enough for the largest value seen.
+ */
 public class Result {
   private boolean isFound = false;
 
@@ -37,14 +42,26 @@ public class Result {
   }
 
   /**
-   * TODO: should we grow to something slightly higher than requested? Like 10%
-   * more? This would help us converge on a "big enough" buffer faster.
+   * Make sure the buffer is at least <i>size</i> bytes. When it has to grow,
+   * it grows to a bit more than was asked for, so that a reused Result
+   * converges on a "big enough" buffer after a few lookups. Note that growing
+   * replaces the buffer, so callers have to call getBuffer() again afterwards.
    * 
    * @param size
    */
   public void requiresBufferSize(int size) {
     if (buffer == null || buffer.capacity() < size) {
-      buffer = ByteBuffer.wrap(new byte[size]);
+      buffer = ByteBuffer.wrap(new byte[size + size / 10]);
+    }
+  }
+
+  /**
+   * Reset this result so it can be used for another lookup.
+   */
+  public void clear() {
+    isFound = false;
+    if (buffer != null) {
+      buffer.clear();
     }
   }
 
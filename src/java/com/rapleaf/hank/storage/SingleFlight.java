@@ -0,0 +1,105 @@
+/**
+ *  Copyright 2011 Rapleaf
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.rapleaf.hank.storage;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent loads of the same key: the first thread to ask for a
+ * key does the load, and any thread that asks for the same key while that
+ * load is in flight waits for it and gets the same result, rather than
+ * repeating the I/O. Nothing is remembered once a load completes - that's
+ * what caches are for.
+ * 
+ * Values are shared between all the threads that asked for them, so they
+ * must not be modified.
+ */
+public final class SingleFlight<K, V> {
+  public interface Loader<K, V> {
+    public V load(K key) throws IOException;
+  }
+
+  private static final class Call<V> {
+    private V value;
+    private IOException exception;
+    private boolean done = false;
+
+    public synchronized void set(V value, IOException exception) {
+      this.value = value;
+      this.exception = exception;
+      done = true;
+      notifyAll();
+    }
+
+    public synchronized V await() throws IOException {
+      boolean interrupted = false;
+      while (!done) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          // the load is going to finish one way or another, so keep waiting
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      if (exception != null) {
+        throw new IOException("Coalesced load failed", exception);
+      }
+      return value;
+    }
+  }
+
+  private final ConcurrentMap<K, Call<V>> calls = new ConcurrentHashMap<K, Call<V>>();
+  private final AtomicLong coalesced = new AtomicLong();
+
+  public V get(K key, Loader<K, V> loader) throws IOException {
+    Call<V> call = new Call<V>();
+    Call<V> inFlight = calls.putIfAbsent(key, call);
+    if (inFlight != null) {
+      coalesced.incrementAndGet();
+      return inFlight.await();
+    }
+
+    V value = null;
+    IOException exception = null;
+    try {
+      value = loader.load(key);
+      return value;
+    } catch (IOException e) {
+      exception = e;
+      throw e;
+    } catch (RuntimeException e) {
+      exception = new IOException(e);
+      throw e;
+    } finally {
+      calls.remove(key, call);
+      call.set(value, exception);
+    }
+  }
+
+  /**
+   * @return the number of loads that were avoided by waiting for an
+   *         identical load that was already in flight
+   */
+  public long getCoalescedCount() {
+    return coalesced.get();
+  }
+}
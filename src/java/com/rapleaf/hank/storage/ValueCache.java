@@ -0,0 +1,262 @@
+/**
+ *  Copyright 2011 Rapleaf
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.rapleaf.hank.storage;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A byte-bounded cache of individual values, keyed by the file they were read
+ * from and their offset within it (for Curly, the record file and the
+ * record's offset). Like BlockCache, one instance is meant to be shared by all
+ * the readers in a part daemon.
+ * 
+ * Eviction is LRU, but admission is TinyLFU: once the cache is full, a new
+ * value is only let in if it has been asked for more often recently than the
+ * values it would push out. That way a scan over cold keys can't flush out the
+ * hot ones.
+ * 
+ * Cached values are shared between threads and must never be modified.
+ */
+public class ValueCache {
+  /**
+   * Rough per-entry bookkeeping cost (map entry, boxed key, array header)
+   * charged against the capacity in addition to the value itself.
+   */
+  static final int ENTRY_OVERHEAD = 64;
+
+  // offsets get the low bits of the key, file ids the rest
+  private static final int OFFSET_BITS = 40;
+  private static final long MAX_OFFSET = (1L << OFFSET_BITS) - 1;
+
+  // a guess at the typical entry size, just for sizing the frequency sketches
+  private static final int EXPECTED_ENTRY_SIZE = 128;
+  // even a small cache sees lots of distinct keys go by, so the sketches
+  // can't be too small, or they'll mistake everything for a hot key
+  private static final int MIN_SKETCH_ENTRIES = 1024;
+
+  private static final int DEFAULT_NUM_SEGMENTS = 16;
+
+  private final Segment[] segments;
+  private final long capacity;
+  private final CachedFiles files = new CachedFiles();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong rejections = new AtomicLong();
+
+  public ValueCache(long capacity) {
+    this(capacity, DEFAULT_NUM_SEGMENTS);
+  }
+
+  /**
+   * @param capacity
+   * @param numSegments
+   *          how many independently locked segments to split the cache into.
+   *          Each gets an equal share of <i>capacity</i>, and a value bigger
+   *          than capacity / numSegments is never cached.
+   */
+  public ValueCache(long capacity, int numSegments) {
+    this.capacity = capacity;
+    segments = new Segment[numSegments];
+    for (int i = 0; i < numSegments; i++) {
+      segments[i] = new Segment(capacity / numSegments);
+    }
+  }
+
+  /**
+   * Get the id that identifies <i>path</i> in this cache. Readers that open
+   * the same, unchanged file share an id, and therefore share cached values.
+   * 
+   * @param partitionRoot
+   *          the partition the file belongs to, for invalidate()
+   * @param path
+   * @return
+   */
+  public int getFileId(String partitionRoot, String path) {
+    return files.getFileId(partitionRoot, path);
+  }
+
+  /**
+   * Drop the ids and cached values of the files in <i>partitionRoot</i> that
+   * have been deleted or changed since they were opened. Updaters call this
+   * once they've replaced a partition's files. Values of the files they left
+   * alone stay cached.
+   * 
+   * @param partitionRoot
+   */
+  public void invalidate(String partitionRoot) {
+    Set<Integer> staleFileIds = files.invalidate(partitionRoot);
+    if (staleFileIds.isEmpty()) {
+      return;
+    }
+    for (Segment segment : segments) {
+      segment.removeFiles(staleFileIds, OFFSET_BITS);
+    }
+  }
+
+  /**
+   * @param fileId
+   * @param offset
+   * @return the cached value, or null if it isn't cached
+   */
+  public byte[] get(int fileId, long offset) {
+    if (offset > MAX_OFFSET) {
+      return null;
+    }
+    long key = toKey(fileId, offset);
+    byte[] value = getSegment(key).get(key);
+    if (value == null) {
+      misses.incrementAndGet();
+    } else {
+      hits.incrementAndGet();
+    }
+    return value;
+  }
+
+  /**
+   * Offer the remaining bytes of <i>value</i> to the cache. They're only
+   * copied if the value is admitted.
+   * 
+   * @param fileId
+   * @param offset
+   * @param value
+   */
+  public void put(int fileId, long offset, ByteBuffer value) {
+    if (offset > MAX_OFFSET) {
+      return;
+    }
+    long key = toKey(fileId, offset);
+    getSegment(key).put(key, value);
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  /**
+   * @return the number of values that weren't admitted because they were
+   *         less popular than the values they would have replaced
+   */
+  public long getRejectionCount() {
+    return rejections.get();
+  }
+
+  public long getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * @return the number of bytes currently charged against the capacity.
+   */
+  public long getSize() {
+    long size = 0;
+    for (Segment segment : segments) {
+      size += segment.getSize();
+    }
+    return size;
+  }
+
+  private static long toKey(int fileId, long offset) {
+    return ((long) fileId << OFFSET_BITS) | offset;
+  }
+
+  private Segment getSegment(long key) {
+    return segments[CachedFiles.getSegmentIndex(key, segments.length)];
+  }
+
+  private static long charge(int length) {
+    return length + ENTRY_OVERHEAD;
+  }
+
+  private final class Segment extends CachedFiles.Segment<byte[]> {
+    private final FrequencySketch sketch;
+
+    public Segment(long capacity) {
+      super(capacity);
+      sketch = new FrequencySketch((int) Math.max(MIN_SKETCH_ENTRIES,
+          Math.min(capacity / EXPECTED_ENTRY_SIZE, Integer.MAX_VALUE)));
+    }
+
+    @Override
+    protected long charge(byte[] value) {
+      return ValueCache.charge(value.length);
+    }
+
+    public synchronized byte[] get(long key) {
+      sketch.increment(key);
+      return entries.get(key);
+    }
+
+    public synchronized void put(long key, ByteBuffer value) {
+      long charge = ValueCache.charge(value.remaining());
+      if (charge > capacity || entries.containsKey(key)) {
+        return;
+      }
+
+      // only evict if every value that would have to go is less popular than
+      // the newcomer. otherwise, turn the newcomer away and leave the cache be.
+      long needed = size + charge - capacity;
+      if (needed > 0) {
+        int frequency = sketch.frequency(key);
+        long freed = 0;
+        int numVictims = 0;
+        for (Map.Entry<Long, byte[]> entry : entries.entrySet()) {
+          if (freed >= needed) {
+            break;
+          }
+          if (sketch.frequency(entry.getKey()) >= frequency) {
+            rejections.incrementAndGet();
+            return;
+          }
+          freed += charge(entry.getValue());
+          numVictims++;
+        }
+        Iterator<byte[]> iter = entries.values().iterator();
+        for (int i = 0; i < numVictims; i++) {
+          size -= charge(iter.next());
+          iter.remove();
+          evictions.incrementAndGet();
+        }
+      }
+
+      byte[] copy = new byte[value.remaining()];
+      value.duplicate().get(copy);
+      entries.put(key, copy);
+      size += charge;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "ValueCache [capacity=" + capacity + ", size=" + getSize()
+        + ", hits=" + getHitCount() + ", misses=" + getMissCount()
+        + ", evictions=" + getEvictionCount()
+        + ", rejections=" + getRejectionCount() + "]";
+  }
+}
@@ -0,0 +1,206 @@
+/**
+ *  Copyright 2011 Rapleaf
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.rapleaf.hank.storage.cueball;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * A Bloom filter per hash prefix block of a Cueball file, so that lookups for
+ * absent keys can usually be answered without reading or decompressing a
+ * block. Filters are sized by the number of records in their block, which is
+ * known when the block is flushed, so nothing has to be known about the size
+ * of the whole partition up front.
+ * 
+ * Layout: [4 byte bits per key][4 byte number of hash functions][8 byte length
+ * of the filters][filters][compact index of the filters (see
+ * HashIndex.Compact)]
+ */
+final class BloomFilters {
+  private static final int HEADER_SIZE = 16;
+
+  private final int bitsPerKey;
+  private final int numHashes;
+  private final ByteBuffer filters;
+  private final HashIndex index;
+
+  public BloomFilters(ByteBuffer section, int hashIndexBits) throws IOException {
+    section.order(ByteOrder.LITTLE_ENDIAN);
+    if (section.capacity() < HEADER_SIZE) {
+      throw new IOException("Bloom filter section is too short to be valid!");
+    }
+    bitsPerKey = section.getInt(0);
+    numHashes = section.getInt(4);
+    long filtersLength = section.getLong(8);
+    if (bitsPerKey <= 0 || numHashes <= 0 || filtersLength < 0 || filtersLength > section.capacity() - HEADER_SIZE) {
+      throw new IOException(String.format("Invalid bloom filter header: bits per key %d, hashes %d, length %d", bitsPerKey, numHashes, filtersLength));
+    }
+    section.position(HEADER_SIZE);
+    section.limit(HEADER_SIZE + (int) filtersLength);
+    filters = section.slice();
+    section.limit(section.capacity());
+    section.position(HEADER_SIZE + (int) filtersLength);
+    index = new HashIndex.Compact(section.slice(), hashIndexBits, filtersLength);
+  }
+
+  /**
+   * @return false if the key hash is definitely not in the block for
+   *         <i>hashPrefix</i>, true if it might be.
+   */
+  public boolean mightContain(int hashPrefix, byte[] keyHash, int off, int keyHashSize) {
+    long filterOffset = index.getOffset(hashPrefix);
+    if (filterOffset == -1) {
+      return false;
+    }
+    long numBits = index.getLength(hashPrefix) * 8L;
+    long hash = hash(keyHash, off, keyHashSize);
+    long h1 = hash;
+    long h2 = (hash >>> 32) | 1;
+    for (int i = 0; i < numHashes; i++) {
+      long bit = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+      if ((filters.get((int) (filterOffset + (bit >>> 3))) & (1 << (bit & 7))) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public int getBitsPerKey() {
+    return bitsPerKey;
+  }
+
+  /**
+   * @return a copy of the filter for <i>hashPrefix</i>'s block, or null if
+   *         there's no block for it
+   */
+  public byte[] getFilter(int hashPrefix) {
+    long filterOffset = index.getOffset(hashPrefix);
+    if (filterOffset == -1) {
+      return null;
+    }
+    byte[] filter = new byte[index.getLength(hashPrefix)];
+    for (int i = 0; i < filter.length; i++) {
+      filter[i] = filters.get((int) filterOffset + i);
+    }
+    return filter;
+  }
+
+  static int getNumHashes(int bitsPerKey) {
+    // ln(2) * bits per key minimizes the false positive rate
+    return Math.max(1, (int) Math.round(bitsPerKey * 0.69));
+  }
+
+  /**
+   * FNV-1a over the key hash, with a final avalanche step. The key hash is
+   * already uniformly distributed, but its leading bits are shared by every
+   * key in a block, so they need to be mixed in with the rest.
+   */
+  private static long hash(byte[] bytes, int off, int len) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = off; i < off + len; i++) {
+      h ^= bytes[i] & 0xff;
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /**
+   * Accumulates the filters for a Cueball file as its blocks are written.
+   */
+  static final class Builder {
+    private final int hashIndexBits;
+    private final int bitsPerKey;
+    private final int numHashes;
+    private final long[] offsets;
+    private final int[] lengths;
+    private final ByteArrayOutputStream filters = new ByteArrayOutputStream();
+
+    public Builder(int hashIndexBits, int bitsPerKey) {
+      this.hashIndexBits = hashIndexBits;
+      this.bitsPerKey = bitsPerKey;
+      this.numHashes = getNumHashes(bitsPerKey);
+      offsets = new long[1 << hashIndexBits];
+      Arrays.fill(offsets, -1);
+      lengths = new int[1 << hashIndexBits];
+    }
+
+    /**
+     * Build the filter for a block from its uncompressed records.
+     */
+    public void addBlock(int hashPrefix, byte[] records, int off, int limit, int keyHashSize, int fullRecordSize) {
+      int numRecords = (limit - off) / fullRecordSize;
+      byte[] filter = new byte[(int) ((numRecords * (long) bitsPerKey + 7) / 8)];
+      long numBits = filter.length * 8L;
+      for (int recordOff = off; recordOff < limit; recordOff += fullRecordSize) {
+        long hash = hash(records, recordOff, keyHashSize);
+        long h1 = hash;
+        long h2 = (hash >>> 32) | 1;
+        for (int i = 0; i < numHashes; i++) {
+          long bit = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+          filter[(int) (bit >>> 3)] |= 1 << (bit & 7);
+        }
+      }
+      addFilter(hashPrefix, filter);
+    }
+
+    /**
+     * Use a block's filter as is, such as one taken from another file with
+     * the same bits per key.
+     */
+    public void addFilter(int hashPrefix, byte[] filter) {
+      offsets[hashPrefix] = filters.size();
+      lengths[hashPrefix] = filter.length;
+      filters.write(filter, 0, filter.length);
+    }
+
+    /**
+     * Add all of another builder's filters, which have to be for blocks after
+     * any already added.
+     */
+    public int getBitsPerKey() {
+      return bitsPerKey;
+    }
+
+    public void addFilters(Builder other) {
+      byte[] otherFilters = other.filters.toByteArray();
+      for (int i = 0; i < other.offsets.length; i++) {
+        if (other.offsets[i] != -1) {
+          int offset = (int) other.offsets[i];
+          addFilter(i, Arrays.copyOfRange(otherFilters, offset, offset + other.lengths[i]));
+        }
+      }
+    }
+
+    public byte[] toByteArray() {
+      byte[] index = HashIndex.Compact.encode(offsets, lengths, hashIndexBits);
+      ByteBuffer section = ByteBuffer.allocate(HEADER_SIZE + filters.size() + index.length).order(ByteOrder.LITTLE_ENDIAN);
+      section.putInt(bitsPerKey);
+      section.putInt(numHashes);
+      section.putLong(filters.size());
+      section.put(filters.toByteArray());
+      section.put(index);
+      return section.array();
+    }
+  }
+}
@@ -15,12 +15,14 @@
  */
 package com.rapleaf.hank.storage.cueball;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
@@ -58,6 +60,15 @@ public class Cueball implements StorageEngine {
     public static final String FILE_OPS_FACTORY_KEY = "file_ops_factory";
     public static final String HASHER_KEY = "hasher";
     public static final String COMPRESSION_CODEC = "compression_codec";
+    public static final String READ_MODE_KEY = "read_mode";
+    public static final String BLOOM_FILTER_BITS_PER_KEY_KEY = "bloom_filter_bits_per_key";
+    public static final String SINGLE_FLIGHT_KEY = "single_flight";
+    public static final String COMPRESSION_THREADS_KEY = "compression_threads";
+    public static final String PAGE_SIZE_KEY = "page_size";
+    public static final String MERGE_THREADS_KEY = "merge_threads";
+    public static final String MERGE_READ_AHEAD_KEY = "merge_read_ahead";
+    public static final String MAX_LAYERED_DELTAS_KEY = "max_layered_deltas";
+    public static final String MAX_LAYERED_DELTA_RATIO_KEY = "max_layered_delta_ratio";
 
     private static final Set<String> REQUIRED_KEYS = new HashSet<String>(Arrays.asList(
         REMOTE_DOMAIN_ROOT_KEY,
@@ -103,7 +114,93 @@ public class Cueball implements StorageEngine {
           (String)options.get(REMOTE_DOMAIN_ROOT_KEY),
           fileOpsFactory,
           compressionCodecClass,
-          domainName);
+          domainName,
+          getOptions(options));
+    }
+
+    /**
+     * The optional settings in <i>options</i>, each off unless configured.
+     */
+    public static CueballOptions getOptions(Map<String, Object> options) {
+      return new CueballOptions()
+          .setReadMode(ReadMode.parse((String)options.get(READ_MODE_KEY)))
+          .setBloomFilterBitsPerKey(getBloomFilterBitsPerKey(options))
+          .setSingleFlight(getSingleFlight(options))
+          .setCompressionThreads(getCompressionThreads(options))
+          .setPageSize(getPageSize(options))
+          .setMergeThreads(getMergeThreads(options))
+          .setMergeReadAhead(getMergeReadAhead(options))
+          .setMaxLayeredDeltas(getMaxLayeredDeltas(options))
+          .setMaxLayeredDeltaRatio(getMaxLayeredDeltaRatio(options));
+    }
+
+    /**
+     * Updates merge every delta into the base unless a number of deltas to
+     * leave unmerged is configured.
+     */
+    public static int getMaxLayeredDeltas(Map<String, Object> options) {
+      Integer maxLayeredDeltas = (Integer)options.get(MAX_LAYERED_DELTAS_KEY);
+      return maxLayeredDeltas == null ? 0 : maxLayeredDeltas;
+    }
+
+    /**
+     * Unmerged deltas are only limited by their number unless a ratio to the
+     * base's size is configured.
+     */
+    public static double getMaxLayeredDeltaRatio(Map<String, Object> options) {
+      Number maxLayeredDeltaRatio = (Number)options.get(MAX_LAYERED_DELTA_RATIO_KEY);
+      return maxLayeredDeltaRatio == null ? 0 : maxLayeredDeltaRatio.doubleValue();
+    }
+
+    /**
+     * Reading ahead of the merge is off unless asked for.
+     */
+    public static boolean getMergeReadAhead(Map<String, Object> options) {
+      Boolean mergeReadAhead = (Boolean)options.get(MERGE_READ_AHEAD_KEY);
+      return mergeReadAhead != null && mergeReadAhead;
+    }
+
+    /**
+     * Updaters merge on the updating thread unless a number of merge threads
+     * is configured.
+     */
+    public static int getMergeThreads(Map<String, Object> options) {
+      Integer mergeThreads = (Integer)options.get(MERGE_THREADS_KEY);
+      return mergeThreads == null ? 0 : mergeThreads;
+    }
+
+    /**
+     * Page-aligned blocks are optional, and off unless a page size is
+     * configured.
+     */
+    public static int getPageSize(Map<String, Object> options) {
+      Integer pageSize = (Integer)options.get(PAGE_SIZE_KEY);
+      return pageSize == null ? 0 : pageSize;
+    }
+
+    /**
+     * Writers compress blocks on the writing thread unless a number of
+     * compression threads is configured.
+     */
+    public static int getCompressionThreads(Map<String, Object> options) {
+      Integer compressionThreads = (Integer)options.get(COMPRESSION_THREADS_KEY);
+      return compressionThreads == null ? 0 : compressionThreads;
+    }
+
+    /**
+     * Bloom filters are optional, and off unless bits per key is configured.
+     */
+    public static int getBloomFilterBitsPerKey(Map<String, Object> options) {
+      Integer bitsPerKey = (Integer)options.get(BLOOM_FILTER_BITS_PER_KEY_KEY);
+      return bitsPerKey == null ? 0 : bitsPerKey;
+    }
+
+    /**
+     * Coalescing concurrent reads of the same block is off unless asked for.
+     */
+    public static boolean getSingleFlight(Map<String, Object> options) {
+      Boolean singleFlight = (Boolean)options.get(SINGLE_FLIGHT_KEY);
+      return singleFlight != null && singleFlight;
     }
   }
 
@@ -118,6 +215,8 @@ public class Cueball implements StorageEngine {
 
   private final Class<? extends CompressionCodec> compressionCodecClass;
 
+  private final CueballOptions options;
+
   public Cueball(int keyHashSize,
       Hasher hasher,
       int valueSize,
@@ -126,6 +225,27 @@ public class Cueball implements StorageEngine {
       IFileOpsFactory fileOpsFactory,
       Class<? extends CompressionCodec> compressionCodecClass,
       String domainName)
+  {
+    this(keyHashSize,
+        hasher,
+        valueSize,
+        hashIndexBits,
+        remoteDomainRoot,
+        fileOpsFactory,
+        compressionCodecClass,
+        domainName,
+        new CueballOptions());
+  }
+
+  public Cueball(int keyHashSize,
+      Hasher hasher,
+      int valueSize,
+      int hashIndexBits,
+      String remoteDomainRoot,
+      IFileOpsFactory fileOpsFactory,
+      Class<? extends CompressionCodec> compressionCodecClass,
+      String domainName,
+      CueballOptions options)
   {
     this.keyHashSize = keyHashSize;
     this.hasher = hasher;
@@ -135,11 +255,29 @@ public class Cueball implements StorageEngine {
     this.fileOpsFactory = fileOpsFactory;
     this.compressionCodecClass = compressionCodecClass;
     this.domainName = domainName;
+    this.options = options;
   }
 
   @Override
   public Reader getReader(PartservConfigurator configurator, int partNum) throws IOException {
-    return new CueballReader(getLocalDir(configurator, partNum), keyHashSize, hasher, valueSize, hashIndexBits, getCompressionCodec());
+    String localDir = getLocalDir(configurator, partNum);
+    String latestBase = getBases(localDir).last();
+    List<String> deltas = new ArrayList<String>(getDeltas(localDir).tailSet(latestBase));
+    if (deltas.isEmpty()) {
+      return getReader(configurator, latestBase);
+    }
+    // the update left deltas unmerged. serve them on top of the base, newest
+    // first
+    Reader[] layers = new Reader[deltas.size() + 1];
+    for (int i = 0; i < deltas.size(); i++) {
+      layers[i] = getReader(configurator, deltas.get(deltas.size() - 1 - i));
+    }
+    layers[deltas.size()] = getReader(configurator, latestBase);
+    return new LayeredReader(layers);
+  }
+
+  private CueballReader getReader(PartservConfigurator configurator, String path) throws IOException {
+    return new CueballReader(new File(path), keyHashSize, hasher, valueSize, hashIndexBits, getCompressionCodec(), options.getReadMode(), configurator.getBlockCache(), options.isSingleFlight());
   }
 
   private CompressionCodec getCompressionCodec() throws IOException {
@@ -157,7 +295,8 @@ public class Cueball implements StorageEngine {
         hasher,
         valueSize,
         getCompressionCodec(),
-        hashIndexBits);
+        hashIndexBits,
+        options);
   }
 
   @Override
@@ -169,7 +308,9 @@ public class Cueball implements StorageEngine {
         fileOpsFactory.getFileOps(localDir, remoteDomainRoot + "/" + partNum),
         cueballFileSelector,
         getCompressionCodec(),
-        hashIndexBits);
+        hashIndexBits,
+        options,
+        configurator.getBlockCache());
   }
 
   @Override
@@ -222,7 +363,8 @@ public class Cueball implements StorageEngine {
     return "Cueball [compressionCodecClass=" + compressionCodecClass
         + ", domainName=" + domainName + ", fileOpsFactory=" + fileOpsFactory
         + ", hashIndexBits=" + hashIndexBits + ", hasher=" + hasher
-        + ", keyHashSize=" + keyHashSize + ", remoteDomainRoot="
-        + remoteDomainRoot + ", valueSize=" + valueSize + "]";
+        + ", keyHashSize=" + keyHashSize + ", options=" + options
+        + ", remoteDomainRoot=" + remoteDomainRoot + ", valueSize=" + valueSize
+        + "]";
   }
 }
@@ -15,69 +15,391 @@
  */
 package com.rapleaf.hank.storage.cueball;
 
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
 import java.util.SortedSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import com.rapleaf.hank.compress.CompressionCodec;
 
 
+/**
+ * Merges a base and its deltas into a new base. If any of the inputs was
+ * written with Bloom filters, the new base gets them too (at the highest bits
+ * per key among the inputs), so that filters survive updates without the
+ * updaters having to be configured for them. Page-aligned blocks carry over
+ * the same way.
+ * 
+ * The inputs are merged with a priority queue, so each record costs
+ * O(log k) comparisons for k inputs rather than O(k), and catching up on
+ * many deltas at once isn't much slower than merging one.
+ * 
+ * Deltas are usually small next to the base, so most base blocks have no
+ * delta records for their hash prefix. Unless the transformer would change
+ * their values, those blocks are copied to the new base still compressed,
+ * along with their Bloom filters, rather than being decompressed and
+ * compressed all over again.
+ * 
+ * Since the new base is written in hash prefix order, a merge can also be
+ * split into ranges of hash prefixes, merged on separate threads. Each range
+ * is written to a segment of data blocks, and the segments are concatenated
+ * into the new base under a single footer.
+ */
 public final class CueballMerger implements ICueballMerger {
+  /**
+   * Orders the inputs by their current key hash. When several have the same
+   * one, the latest (the one with the highest index) comes first, since its
+   * value wins.
+   */
+  private static final Comparator<StreamBuffer> STREAM_ORDER = new Comparator<StreamBuffer>() {
+    @Override
+    public int compare(StreamBuffer a, StreamBuffer b) {
+      int comparison = a.compareTo(b);
+      if (comparison != 0) {
+        return comparison;
+      }
+      return b.getIndex() - a.getIndex();
+    }
+  };
+
+  private final int numThreads;
+  private final boolean readAhead;
+
+  public CueballMerger() {
+    this(1);
+  }
+
+  public CueballMerger(int numThreads) {
+    this(numThreads, false);
+  }
+
+  /**
+   * @param numThreads
+   *          if more than one, each merge is split into this many ranges of
+   *          hash prefixes, which are merged in parallel into separate
+   *          segments and then concatenated into the new base. Keys are
+   *          hashed, so ranges of equal width get about the same share of
+   *          the records.
+   * @param readAhead
+   *          if true, each input reads and decompresses its next block on a
+   *          background thread while its current one is merged (see
+   *          StreamBuffer)
+   */
+  public CueballMerger(int numThreads, boolean readAhead) {
+    this.numThreads = numThreads;
+    this.readAhead = readAhead;
+  }
+
   public void merge(final String latestBase,
       final SortedSet<String> deltas,
       final String newBasePath,
       final int keyHashSize,
       final int valueSize,
-      ValueTransformer transformer,
+      final ValueTransformer transformer,
+      final int hashIndexBits,
+      final CompressionCodec compressionCodec)
+  throws IOException {
+    if (!readAhead) {
+      merge(latestBase, deltas, newBasePath, keyHashSize, valueSize, transformer, hashIndexBits, compressionCodec, null);
+      return;
+    }
+    ExecutorService readAheadExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+      private int x = 0;
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "CueballMerger Read Ahead Thread #" + ++x);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    try {
+      merge(latestBase, deltas, newBasePath, keyHashSize, valueSize, transformer, hashIndexBits, compressionCodec, readAheadExecutor);
+    } finally {
+      readAheadExecutor.shutdownNow();
+    }
+  }
+
+  private void merge(final String latestBase,
+      final SortedSet<String> deltas,
+      final String newBasePath,
+      final int keyHashSize,
+      final int valueSize,
+      final ValueTransformer transformer,
+      final int hashIndexBits,
+      final CompressionCodec compressionCodec,
+      final ExecutorService readAheadExecutor)
+  throws IOException {
+    StreamBuffer[] sbs = openInputs(latestBase, deltas, keyHashSize, valueSize, hashIndexBits, compressionCodec, readAheadExecutor);
+
+    int bloomFilterBitsPerKey = 0;
+    int pageSize = 0;
+    for (StreamBuffer sb : sbs) {
+      bloomFilterBitsPerKey = Math.max(bloomFilterBitsPerKey, sb.getBloomFilterBitsPerKey());
+      pageSize = Math.max(pageSize, sb.getPageSize());
+    }
+
+    // the base's blocks can only be copied if their values and Bloom filters
+    // would come out the same
+    final boolean copyBaseBlocks = (transformer == null || transformer.isIdentity(0))
+        && sbs[0].getBloomFilterBitsPerKey() == bloomFilterBitsPerKey;
+
+    // output stream for the new base to be written. intentionally unbuffered -
+    // the writer below will do that on its own.
+    OutputStream newBaseStream;
+    try {
+      newBaseStream = new FileOutputStream(newBasePath);
+    } catch (IOException e) {
+      closeInputs(sbs);
+      throw e;
+    }
+
+    // a merge that fails part way mustn't leave a partial new base behind
+    boolean merged = false;
+    try {
+      // note that we intentionally omit the hasher here, since it will *not*
+      // be used
+      final CueballOptions writerOptions = new CueballOptions()
+          .setBloomFilterBitsPerKey(bloomFilterBitsPerKey)
+          .setPageSize(pageSize);
+      CueballWriter writer = new CueballWriter(newBaseStream, keyHashSize, null, valueSize, compressionCodec, hashIndexBits, writerOptions);
+
+      final int numBlocks = 1 << hashIndexBits;
+      final int numRanges = Math.min(numThreads, numBlocks);
+      if (numRanges <= 1) {
+        try {
+          mergeRange(sbs, numBlocks, writer, keyHashSize, valueSize, transformer, copyBaseBlocks);
+        } finally {
+          closeInputs(sbs);
+        }
+      } else {
+        closeInputs(sbs);
+        mergeSegments(latestBase, deltas, newBasePath, keyHashSize, valueSize, transformer, hashIndexBits,
+            compressionCodec, readAheadExecutor, copyBaseBlocks, writerOptions, writer, numBlocks, numRanges);
+      }
+      writer.close();
+      merged = true;
+    } finally {
+      if (!merged) {
+        newBaseStream.close();
+        new File(newBasePath).delete();
+      }
+    }
+  }
+
+  /**
+   * Merge <i>numRanges</i> ranges of the blocks in parallel, each into its own
+   * segment file, and then append the segments to <i>writer</i> in order.
+   */
+  private void mergeSegments(final String latestBase,
+      final SortedSet<String> deltas,
+      final String newBasePath,
+      final int keyHashSize,
+      final int valueSize,
+      final ValueTransformer transformer,
+      final int hashIndexBits,
+      final CompressionCodec compressionCodec,
+      final ExecutorService readAheadExecutor,
+      final boolean copyBaseBlocks,
+      final CueballOptions writerOptions,
+      CueballWriter writer,
+      int numBlocks,
+      int numRanges)
+  throws IOException {
+    // every range opens its own inputs, and writes a segment with the same
+    // settings as the new base
+    List<String> segmentPaths = new ArrayList<String>();
+    List<Future<CueballWriter>> segments = new ArrayList<Future<CueballWriter>>();
+    ExecutorService executor = Executors.newFixedThreadPool(numRanges);
+    try {
+      for (int i = 0; i < numRanges; i++) {
+        final int start = (int) ((long) numBlocks * i / numRanges);
+        final int end = (int) ((long) numBlocks * (i + 1) / numRanges);
+        final String segmentPath = newBasePath + ".segment" + i;
+        segmentPaths.add(segmentPath);
+        segments.add(executor.submit(new Callable<CueballWriter>() {
+          @Override
+          public CueballWriter call() throws IOException {
+            StreamBuffer[] rangeSbs = openInputs(latestBase, deltas, keyHashSize, valueSize, hashIndexBits, compressionCodec, readAheadExecutor);
+            OutputStream segmentStream = null;
+            try {
+              for (StreamBuffer sb : rangeSbs) {
+                sb.seekToBlock(start);
+              }
+              segmentStream = new FileOutputStream(segmentPath);
+              CueballWriter segment = new CueballWriter(segmentStream,
+                  keyHashSize,
+                  null,
+                  valueSize,
+                  compressionCodec,
+                  hashIndexBits,
+                  writerOptions);
+              mergeRange(rangeSbs, end, segment, keyHashSize, valueSize, transformer, copyBaseBlocks);
+              segment.closeSegment();
+              return segment;
+            } finally {
+              closeInputs(rangeSbs);
+              if (segmentStream != null) {
+                // already closed if the segment was finished
+                segmentStream.close();
+              }
+            }
+          }
+        }));
+      }
+
+      for (int i = 0; i < numRanges; i++) {
+        writer.appendSegment(get(segments.get(i)), segmentPaths.get(i));
+      }
+    } finally {
+      executor.shutdownNow();
+      // ranges that are still running would otherwise go on writing to the
+      // segment files after they've been deleted
+      awaitTermination(executor);
+      for (String segmentPath : segmentPaths) {
+        new File(segmentPath).delete();
+      }
+    }
+  }
+
+  private static void awaitTermination(ExecutorService executor) {
+    boolean terminated = false;
+    try {
+      while (!terminated) {
+        terminated = executor.awaitTermination(1000, TimeUnit.MILLISECONDS);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static StreamBuffer[] openInputs(String latestBase,
+      SortedSet<String> deltas,
+      int keyHashSize,
+      int valueSize,
       int hashIndexBits,
-      CompressionCodec compressionCodec)
+      CompressionCodec compressionCodec,
+      ExecutorService readAheadExecutor)
   throws IOException {
     StreamBuffer[] sbs = new StreamBuffer[deltas.size() + 1];
 
     // open the current base
-    StreamBuffer base = new StreamBuffer(latestBase, 0,
-        keyHashSize, valueSize, hashIndexBits, compressionCodec);
-    sbs[0] = base;
+    sbs[0] = new StreamBuffer(latestBase, 0,
+        keyHashSize, valueSize, hashIndexBits, compressionCodec, readAheadExecutor);
 
     // open all the deltas
     int i = 1;
     for (String deltaPath : deltas) {
       StreamBuffer db = new StreamBuffer(deltaPath, i,
-          keyHashSize, valueSize, hashIndexBits, compressionCodec);
+          keyHashSize, valueSize, hashIndexBits, compressionCodec, readAheadExecutor);
       sbs[i++] = db;
     }
+    return sbs;
+  }
 
-    // output stream for the new base to be written. intentionally unbuffered -
-    // the writer below will do that on its own.
-    OutputStream newBaseStream = new FileOutputStream(newBasePath);
-
-    // note that we intentionally omit the hasher here, since it will *not* be
-    // used
-    CueballWriter writer = new CueballWriter(newBaseStream, keyHashSize, null, valueSize, compressionCodec, hashIndexBits);
+  private static void closeInputs(StreamBuffer[] sbs) throws IOException {
+    for (StreamBuffer sb : sbs) {
+      sb.close();
+    }
+  }
 
+  /**
+   * Merge the inputs' blocks, one hash prefix at a time, up to the block for
+   * <i>end</i>.
+   */
+  private static void mergeRange(StreamBuffer[] sbs,
+      int end,
+      CueballWriter writer,
+      int keyHashSize,
+      int valueSize,
+      ValueTransformer transformer,
+      boolean copyBaseBlocks)
+  throws IOException {
+    StreamBuffer base = sbs[0];
+    PriorityQueue<StreamBuffer> queue = new PriorityQueue<StreamBuffer>(sbs.length, STREAM_ORDER);
     while (true) {
-      StreamBuffer least = null;
-      for (i = 0; i < sbs.length; i++) {
-        boolean remaining = sbs[i].anyRemaining();
-        if (remaining) {
-          if (least == null) {
-            least = sbs[i];
-          } else {
-            int comparison = least.compareTo(sbs[i]);
-            if (comparison == 0) {
-              least.consume();
-              least = sbs[i];
-            } else if (comparison == 1) {
-              least = sbs[i];
-            }
-          }
+      int block = end;
+      for (StreamBuffer sb : sbs) {
+        block = Math.min(block, sb.getNextBlock());
+      }
+      if (block == end) {
+        break;
+      }
+
+      if (copyBaseBlocks && isOnlyInBase(sbs, block)) {
+        int length = base.readCompressedBlock();
+        writer.writeCompressedBlock(block, base.getCompressedBuffer(), length, base.getMaxUncompressedBlockSize(), base.getBloomFilter(block));
+        continue;
+      }
+
+      for (StreamBuffer sb : sbs) {
+        if (sb.getNextBlock() == block && sb.anyRemaining()) {
+          queue.add(sb);
         }
       }
+      mergeBlock(queue, block, writer, keyHashSize, valueSize, transformer);
+    }
+  }
 
-      if (least == null) {
-        break;
+  private static <T> T get(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted while merging", e);
+    }
+  }
+
+  private static boolean isOnlyInBase(StreamBuffer[] sbs, int block) {
+    if (sbs[0].getNextBlock() != block) {
+      return false;
+    }
+    for (int i = 1; i < sbs.length; i++) {
+      if (sbs[i].getNextBlock() == block) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Write out the records of one hash prefix block from each of the inputs in
+   * the queue.
+   */
+  private static void mergeBlock(PriorityQueue<StreamBuffer> queue,
+      int block,
+      CueballWriter writer,
+      int keyHashSize,
+      int valueSize,
+      ValueTransformer transformer)
+  throws IOException {
+    while (!queue.isEmpty()) {
+      StreamBuffer least = queue.remove();
+
+      // skip over the same key in any earlier inputs
+      while (!queue.isEmpty() && queue.peek().compareTo(least) == 0) {
+        StreamBuffer overwritten = queue.remove();
+        overwritten.consume();
+        if (overwritten.getNextBlock() == block) {
+          queue.add(overwritten);
+        }
       }
 
       if (transformer != null) {
@@ -87,12 +409,9 @@ public final class CueballMerger implements ICueballMerger {
       final ByteBuffer valueBytes = ByteBuffer.wrap(least.getBuffer(), least.getCurrentOffset() + keyHashSize, valueSize);
       writer.writeHash(keyHash, valueBytes);
       least.consume();
+      if (least.getNextBlock() == block) {
+        queue.add(least);
+      }
     }
-
-    for (StreamBuffer sb : sbs) {
-      sb.close();
-    }
-
-    writer.close();
   }
 }
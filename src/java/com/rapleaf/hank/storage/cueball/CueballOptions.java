@@ -0,0 +1,170 @@
+/**
+ *  Copyright 2011 Rapleaf
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.rapleaf.hank.storage.cueball;
+
+/**
+ * The optional settings of a Cueball domain: how its files are laid out, how
+ * they're read, and how updates merge them. Everything is off by default, so
+ * a new CueballOptions describes plain Cueball files, read through a channel
+ * and merged on every update.
+ * 
+ * Setters return the options, so they can be built up in one expression.
+ * Options shouldn't change once they've been handed to a storage engine,
+ * reader or writer.
+ */
+public class CueballOptions {
+  private ReadMode readMode = ReadMode.CHANNEL;
+  private int bloomFilterBitsPerKey;
+  private boolean singleFlight;
+  private int compressionThreads;
+  private int pageSize;
+  private int mergeThreads;
+  private boolean mergeReadAhead;
+  private int maxLayeredDeltas;
+  private double maxLayeredDeltaRatio;
+
+  public ReadMode getReadMode() {
+    return readMode;
+  }
+
+  /**
+   * How readers get at the base file. See ReadMode.
+   */
+  public CueballOptions setReadMode(ReadMode readMode) {
+    this.readMode = readMode;
+    return this;
+  }
+
+  public int getBloomFilterBitsPerKey() {
+    return bloomFilterBitsPerKey;
+  }
+
+  /**
+   * If positive, writers build a Bloom filter with this many bits per key for
+   * each block, so lookups for absent keys can skip reading it.
+   */
+  public CueballOptions setBloomFilterBitsPerKey(int bloomFilterBitsPerKey) {
+    this.bloomFilterBitsPerKey = bloomFilterBitsPerKey;
+    return this;
+  }
+
+  public boolean isSingleFlight() {
+    return singleFlight;
+  }
+
+  /**
+   * If true, concurrent lookups share reads of the same block.
+   */
+  public CueballOptions setSingleFlight(boolean singleFlight) {
+    this.singleFlight = singleFlight;
+    return this;
+  }
+
+  public int getCompressionThreads() {
+    return compressionThreads;
+  }
+
+  /**
+   * If positive, writers compress blocks with this many background threads.
+   * See CueballWriter.
+   */
+  public CueballOptions setCompressionThreads(int compressionThreads) {
+    this.compressionThreads = compressionThreads;
+    return this;
+  }
+
+  public int getPageSize() {
+    return pageSize;
+  }
+
+  /**
+   * If positive, writers lay out blocks so that those that fit in a page of
+   * this size never cross a page boundary. See CueballWriter.
+   */
+  public CueballOptions setPageSize(int pageSize) {
+    this.pageSize = pageSize;
+    return this;
+  }
+
+  public int getMergeThreads() {
+    return mergeThreads;
+  }
+
+  /**
+   * If more than one, updaters merge ranges of hash prefixes on this many
+   * threads. See CueballMerger.
+   */
+  public CueballOptions setMergeThreads(int mergeThreads) {
+    this.mergeThreads = mergeThreads;
+    return this;
+  }
+
+  public boolean isMergeReadAhead() {
+    return mergeReadAhead;
+  }
+
+  /**
+   * If true, updaters read and decompress each input's next block in the
+   * background while merging. See StreamBuffer.
+   */
+  public CueballOptions setMergeReadAhead(boolean mergeReadAhead) {
+    this.mergeReadAhead = mergeReadAhead;
+    return this;
+  }
+
+  public int getMaxLayeredDeltas() {
+    return maxLayeredDeltas;
+  }
+
+  /**
+   * If positive, updates leave up to this many deltas unmerged, and readers
+   * serve them on top of the base. See DeltaMergePolicy.
+   */
+  public CueballOptions setMaxLayeredDeltas(int maxLayeredDeltas) {
+    this.maxLayeredDeltas = maxLayeredDeltas;
+    return this;
+  }
+
+  public double getMaxLayeredDeltaRatio() {
+    return maxLayeredDeltaRatio;
+  }
+
+  /**
+   * If positive, updates also merge once the unmerged deltas add up to more
+   * than this fraction of the base's size.
+   */
+  public CueballOptions setMaxLayeredDeltaRatio(double maxLayeredDeltaRatio) {
+    this.maxLayeredDeltaRatio = maxLayeredDeltaRatio;
+    return this;
+  }
+
+  public DeltaMergePolicy getMergePolicy() {
+    return new DeltaMergePolicy(maxLayeredDeltas, maxLayeredDeltaRatio);
+  }
+
+  @Override
+  public String toString() {
+    return "CueballOptions [bloomFilterBitsPerKey=" + bloomFilterBitsPerKey
+        + ", compressionThreads=" + compressionThreads
+        + ", maxLayeredDeltaRatio=" + maxLayeredDeltaRatio
+        + ", maxLayeredDeltas=" + maxLayeredDeltas
+        + ", mergeReadAhead=" + mergeReadAhead
+        + ", mergeThreads=" + mergeThreads
+        + ", pageSize=" + pageSize
+        + ", readMode=" + readMode
+        + ", singleFlight=" + singleFlight + "]";
+  }
+}
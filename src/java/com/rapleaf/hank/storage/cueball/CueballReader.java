@@ -15,22 +15,29 @@
  */
 package com.rapleaf.hank.storage.cueball;
 
+import java.io.EOFException;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
 
 import com.rapleaf.hank.compress.CompressionCodec;
 import com.rapleaf.hank.hasher.Hasher;
+import com.rapleaf.hank.storage.BlockCache;
+import com.rapleaf.hank.storage.DirectBuffers;
+import com.rapleaf.hank.storage.MemoryUsageReporter;
 import com.rapleaf.hank.storage.Reader;
 import com.rapleaf.hank.storage.Result;
-import com.rapleaf.hank.util.Bytes;
+import com.rapleaf.hank.storage.SingleFlight;
 
-public class CueballReader implements Reader {
+public class CueballReader implements Reader, MemoryUsageReporter {
 
   private final Hasher hasher;
   private final int valueSize;
-  private final long[] hashIndex;
+  private final HashIndex hashIndex;
+  private final BloomFilters bloomFilters;
   private final FileChannel channel;
   private final int keyHashSize;
   private final int fullRecordSize;
@@ -38,6 +45,17 @@ public class CueballReader implements Reader {
   private int maxUncompressedBufferSize;
   private int maxCompressedBufferSize;
   private final HashPrefixCalculator prefixer;
+  private final long dataLength;
+  private final MappedFile mappedFile;
+  private final BlockCache blockCache;
+  private final int fileId;
+  private final KeyHashSearcher searcher;
+  private final ThreadLocal<byte[]> keyHashes;
+  // in memory mode, every decompressed block
+  private final MemoryTable memoryTable;
+  // concurrent loads of the same block, keyed by hash prefix. null if loads
+  // aren't coalesced.
+  private final SingleFlight<Integer, BlockCache.Block> blockLoads;
 
   public CueballReader(String partitionRoot,
       int keyHashSize,
@@ -45,6 +63,64 @@ public class CueballReader implements Reader {
       int valueSize,
       int hashIndexBits,
       CompressionCodec compressionCodec)
+  throws IOException {
+    this(partitionRoot, keyHashSize, hasher, valueSize, hashIndexBits, compressionCodec, ReadMode.CHANNEL, null);
+  }
+
+  public CueballReader(String partitionRoot,
+      int keyHashSize,
+      Hasher hasher,
+      int valueSize,
+      int hashIndexBits,
+      CompressionCodec compressionCodec,
+      ReadMode readMode,
+      BlockCache blockCache)
+  throws IOException {
+    this(partitionRoot, keyHashSize, hasher, valueSize, hashIndexBits, compressionCodec, readMode, blockCache, false);
+  }
+
+  /**
+   * @param singleFlight
+   *          if true, concurrent lookups that need the same block share a
+   *          single read and decompression of it even when there is no block
+   *          cache. This costs an allocation per lookup, so it's only worth it
+   *          for domains with very hot keys. Concurrent block cache misses are
+   *          always coalesced.
+   */
+  public CueballReader(String partitionRoot,
+      int keyHashSize,
+      Hasher hasher,
+      int valueSize,
+      int hashIndexBits,
+      CompressionCodec compressionCodec,
+      ReadMode readMode,
+      BlockCache blockCache,
+      boolean singleFlight)
+  throws IOException {
+    this(new File(Cueball.getBases(partitionRoot).last()),
+        keyHashSize,
+        hasher,
+        valueSize,
+        hashIndexBits,
+        compressionCodec,
+        readMode,
+        blockCache,
+        singleFlight);
+  }
+
+  /**
+   * Read a single Cueball file, rather than a partition's latest base. Used to
+   * serve a base's unmerged deltas (see LayeredReader).
+   */
+  public CueballReader(File file,
+      int keyHashSize,
+      Hasher hasher,
+      int valueSize,
+      int hashIndexBits,
+      CompressionCodec compressionCodec,
+      ReadMode readMode,
+      BlockCache blockCache,
+      boolean singleFlight)
   throws IOException {
     this.keyHashSize = keyHashSize;
     this.hasher = hasher;
@@ -52,79 +128,329 @@ public class CueballReader implements Reader {
     this.compressionCodec = compressionCodec;
     this.fullRecordSize = valueSize + keyHashSize;
     this.prefixer = new HashPrefixCalculator(hashIndexBits);
+    this.searcher = new KeyHashSearcher(keyHashSize, fullRecordSize);
+    this.keyHashes = new ThreadLocal<byte[]>() {
+      @Override
+      protected byte[] initialValue() {
+        return new byte[CueballReader.this.keyHashSize];
+      }
+    };
 
-    channel = new FileInputStream(Cueball.getBases(partitionRoot).last()).getChannel();
+    String basePath = file.getPath();
+    channel = new FileInputStream(basePath).getChannel();
 
     Footer footer = new Footer(channel, hashIndexBits);
 
-    hashIndex = footer.getHashIndex();
+    hashIndex = footer.getIndex();
+    bloomFilters = footer.getBloomFilters();
     maxUncompressedBufferSize = footer.getMaxUncompressedBufferSize();
     maxCompressedBufferSize = footer.getMaxCompressedBufferSize();
+    dataLength = footer.getDataLength();
+
+    if (readMode == ReadMode.MMAP) {
+      // only the data section needs to be mapped - the footer has already been
+      // loaded. the segments overlap by a max-sized block so that every block
+      // can be copied out of a single segment.
+      mappedFile = new MappedFile(channel, dataLength, maxCompressedBufferSize);
+    } else {
+      mappedFile = null;
+    }
+
+    if (readMode == ReadMode.MEMORY) {
+      memoryTable = loadMemoryTable();
+      // nothing else is ever read from the file, and there's no point in also
+      // caching blocks
+      channel.close();
+      blockCache = null;
+    } else {
+      memoryTable = null;
+    }
+
+    this.blockCache = blockCache;
+    fileId = blockCache == null ? -1 : blockCache.getFileId(file.getAbsoluteFile().getParent(), basePath);
+    if (memoryTable == null && (blockCache != null || singleFlight)) {
+      blockLoads = new SingleFlight<Integer, BlockCache.Block>();
+    } else {
+      blockLoads = null;
+    }
+  }
+
+  /**
+   * Decompress every block into an off-heap table. The footer doesn't know
+   * the blocks' decompressed lengths, so each block is decompressed straight
+   * into the table with room left for a max-sized block, and the table is
+   * trimmed to fit afterwards. Each block is only decompressed once, and
+   * loading never holds a block on the heap.
+   */
+  private MemoryTable loadMemoryTable() throws IOException {
+    int numNonEmptyBlocks = 0;
+    for (int i = 0; i < hashIndex.size(); i++) {
+      if (hashIndex.getOffset(i) >= 0) {
+        numNonEmptyBlocks++;
+      }
+    }
+    MemoryTable.Builder builder = new MemoryTable.Builder(hashIndex.size(),
+        numNonEmptyBlocks,
+        maxUncompressedBufferSize,
+        MemoryTable.DEFAULT_CHUNK_SIZE);
+    for (int i = 0; i < hashIndex.size(); i++) {
+      long offset = hashIndex.getOffset(i);
+      if (offset >= 0) {
+        ByteBuffer chunk = builder.startBlock();
+        int start = chunk.position();
+        compressionCodec.decompress(readCompressed(i, offset), chunk);
+        builder.endBlock(i, start);
+      }
+    }
+    return builder.build();
+  }
+
+  @Override
+  public long getMemoryUsage() {
+    if (memoryTable == null) {
+      return 0;
+    }
+    return memoryTable.getMemoryUsage();
   }
 
   @Override
   public void get(ByteBuffer key, Result result) throws IOException {
-    result.requiresBufferSize(maxCompressedBufferSize + maxUncompressedBufferSize);
+    result.requiresBufferSize(memoryTable == null ? maxUncompressedBufferSize : valueSize);
 
-    // TODO: want to reuse this.
-    byte[] keyHash = new byte[keyHashSize];
+    // scratch space, reused by every lookup on this thread
+    byte[] keyHash = keyHashes.get();
     hasher.hash(key, keyHash);
 
     int hashPrefix = prefixer.getHashPrefix(keyHash, 0);
-    long baseOffset = hashIndex[hashPrefix];
 
     // by default, we didn't find what we were looking for
     result.notFound();
 
+    // if the bloom filter rules the key out, there's no need to touch the
+    // data at all
+    if (bloomFilters != null && !bloomFilters.mightContain(hashPrefix, keyHash, 0, keyHashSize)) {
+      return;
+    }
+
+    if (memoryTable != null) {
+      ByteBuffer chunk = memoryTable.getChunk(hashPrefix);
+      int tableOffset = chunk == null ? -1 : searcher.search(chunk,
+          memoryTable.getStart(hashPrefix),
+          memoryTable.getEnd(hashPrefix),
+          keyHash,
+          0);
+      if (tableOffset > -1) {
+        copyValueFromTable(chunk, tableOffset, result);
+      }
+      return;
+    }
+
+    long baseOffset = hashIndex.getOffset(hashPrefix);
+
     // baseOffset of -1 means that our hashPrefix doesn't map to any blocks
     if (baseOffset >= 0) {
-      // set up to read a chunk from the datafile
       ByteBuffer buffer = result.getBuffer();
-      buffer.rewind();
-      buffer.limit(maxCompressedBufferSize);
-      int bytesRead = channel.read(buffer, baseOffset);
-
-      // decompress from the beginning of the buffer into the unoccupied end of
-      // the buffer
-      final int uncompressedStart = bytesRead;
-      int decompressedLength = compressionCodec.decompress(buffer.array(),
-          0,
-          bytesRead, buffer.array(),
-          uncompressedStart);
-
-      // scan the chunk we read to find a matching key, if there is one,
-      // returning the recordfile offset
-      int bufferOffset = getValueOffset(buffer.array(),
-          uncompressedStart,
-          uncompressedStart + decompressedLength,
-          ByteBuffer.wrap(keyHash));
-
-      // -1 means that we didn't find the key
-      if (bufferOffset > -1) {
-        result.found();
-        buffer.limit(bufferOffset + valueSize);
-        buffer.position(bufferOffset);
+
+      if (blockLoads == null) {
+        int decompressedLength = readAndDecompress(buffer, hashPrefix, baseOffset);
+
+        // search the chunk we read to find a matching key, if there is one,
+        // returning the recordfile offset
+        int bufferOffset = searcher.search(buffer.array(),
+            0,
+            decompressedLength,
+            keyHash,
+            0);
+
+        // -1 means that we didn't find the key
+        if (bufferOffset > -1) {
+          result.found();
+          buffer.limit(bufferOffset + valueSize);
+          buffer.position(bufferOffset);
+        }
+      } else {
+        BlockCache.Block block = getSharedBlock(buffer, hashPrefix, baseOffset);
+        byte[] data = block.getData();
+        int blockOffset = searcher.search(data, 0, data.length, block.getIndex(), keyHash, 0);
+        if (blockOffset > -1) {
+          // the block is shared, so the value has to be copied out
+          copyValue(data, blockOffset, result);
+        }
       }
     }
   }
 
-  private int getValueOffset(byte[] keyfileBufferChunk, int off, int limit, ByteBuffer key) {
-    for (; off < limit; off += fullRecordSize) {
-      int comparison = Bytes.compareBytes(keyfileBufferChunk, off, 
-          key.array(), key.arrayOffset() + key.position(),
-          keyHashSize);
-      // found match
-      if (comparison == 0) {
-        return off+keyHashSize;
+  /**
+   * Look up a batch of keys. Keys are grouped by hash prefix, so each block is
+   * read and decompressed at most once no matter how many of the keys fall
+   * into it, and blocks are visited in file order.
+   */
+  @Override
+  public void get(ByteBuffer[] keys, Result[] results) throws IOException {
+    byte[] keyHash = keyHashes.get();
+    byte[] batchKeyHashes = new byte[keys.length * keyHashSize];
+    // hash prefix in the high bits, key index in the low bits, so sorting
+    // groups the keys by block
+    long[] order = new long[keys.length];
+    int numCandidates = 0;
+    for (int i = 0; i < keys.length; i++) {
+      results[i].notFound();
+      hasher.hash(keys[i], keyHash);
+      int hashPrefix = prefixer.getHashPrefix(keyHash, 0);
+      if (bloomFilters != null && !bloomFilters.mightContain(hashPrefix, keyHash, 0, keyHashSize)) {
+        continue;
       }
+      System.arraycopy(keyHash, 0, batchKeyHashes, i * keyHashSize, keyHashSize);
+      order[numCandidates++] = ((long) hashPrefix << 32) | i;
+    }
+    Arrays.sort(order, 0, numCandidates);
 
-      // passed the spot where our key could have been found, so not going to
-      // find it 
-      if (comparison == 1) {
-        break;
+    ByteBuffer buffer = null;
+    int groupStart = 0;
+    while (groupStart < numCandidates) {
+      int hashPrefix = (int) (order[groupStart] >>> 32);
+      int groupEnd = groupStart + 1;
+      while (groupEnd < numCandidates && (int) (order[groupEnd] >>> 32) == hashPrefix) {
+        groupEnd++;
+      }
+
+      if (memoryTable != null) {
+        ByteBuffer chunk = memoryTable.getChunk(hashPrefix);
+        int tableStart = memoryTable.getStart(hashPrefix);
+        int tableEnd = memoryTable.getEnd(hashPrefix);
+        for (int i = groupStart; chunk != null && i < groupEnd; i++) {
+          int keyIndex = (int) order[i];
+          int tableOffset = searcher.search(chunk, tableStart, tableEnd, batchKeyHashes, keyIndex * keyHashSize);
+          if (tableOffset > -1) {
+            copyValueFromTable(chunk, tableOffset, results[keyIndex]);
+          }
+        }
+      } else {
+        long baseOffset = hashIndex.getOffset(hashPrefix);
+        if (baseOffset >= 0) {
+          if (buffer == null) {
+            buffer = ByteBuffer.wrap(new byte[maxUncompressedBufferSize]);
+          }
+          byte[] data;
+          int off;
+          int limit;
+          long[] subIndex = null;
+          if (blockLoads == null) {
+            data = buffer.array();
+            off = 0;
+            limit = readAndDecompress(buffer, hashPrefix, baseOffset);
+          } else {
+            BlockCache.Block block = getSharedBlock(buffer, hashPrefix, baseOffset);
+            data = block.getData();
+            off = 0;
+            limit = data.length;
+            subIndex = block.getIndex();
+          }
+          for (int i = groupStart; i < groupEnd; i++) {
+            int keyIndex = (int) order[i];
+            int blockOffset = searcher.search(data, off, limit, subIndex, batchKeyHashes, keyIndex * keyHashSize);
+            if (blockOffset > -1) {
+              copyValue(data, blockOffset, results[keyIndex]);
+            }
+          }
+        }
+      }
+      groupStart = groupEnd;
+    }
+  }
+
+  /**
+   * Get the block for <i>hashPrefix</i> from the cache if there is one,
+   * otherwise load it (using <i>buffer</i> as scratch space). If another
+   * thread is already loading the same block, wait for it and share its copy
+   * instead of reading it again.
+   */
+  private BlockCache.Block getSharedBlock(final ByteBuffer buffer, final int hashPrefix, final long baseOffset) throws IOException {
+    if (blockCache != null) {
+      BlockCache.Block block = blockCache.get(fileId, hashPrefix);
+      if (block != null) {
+        return block;
+      }
+    }
+    return blockLoads.get(hashPrefix, new SingleFlight.Loader<Integer, BlockCache.Block>() {
+      @Override
+      public BlockCache.Block load(Integer key) throws IOException {
+        if (blockCache == null) {
+          return loadBlock(buffer, hashPrefix, baseOffset, false);
+        }
+        // a cached block is going to be searched many times, so it's worth
+        // indexing if it's big
+        BlockCache.Block block = loadBlock(buffer, hashPrefix, baseOffset, true);
+        blockCache.put(fileId, hashPrefix, block);
+        return block;
+      }
+    });
+  }
+
+  private BlockCache.Block loadBlock(ByteBuffer buffer, int hashPrefix, long baseOffset, boolean index) throws IOException {
+    int decompressedLength = readAndDecompress(buffer, hashPrefix, baseOffset);
+    byte[] data = new byte[decompressedLength];
+    System.arraycopy(buffer.array(), 0, data, 0, decompressedLength);
+    return new BlockCache.Block(data, index ? searcher.buildSubIndex(data, 0, data.length) : null);
+  }
+
+  /**
+   * @return the number of block reads that were avoided by sharing a
+   *         concurrent read of the same block
+   */
+  public long getCoalescedReadCount() {
+    return blockLoads == null ? 0 : blockLoads.getCoalescedCount();
+  }
+
+  private void copyValue(byte[] src, int off, Result result) {
+    result.found();
+    result.requiresBufferSize(valueSize);
+    ByteBuffer buffer = result.getBuffer();
+    System.arraycopy(src, off, buffer.array(), 0, valueSize);
+    buffer.position(0);
+    buffer.limit(valueSize);
+  }
+
+  private void copyValueFromTable(ByteBuffer chunk, int tableOffset, Result result) {
+    result.found();
+    result.requiresBufferSize(valueSize);
+    ByteBuffer buffer = result.getBuffer();
+    byte[] dst = buffer.array();
+    for (int i = 0; i < valueSize; i++) {
+      dst[i] = chunk.get(tableOffset + i);
+    }
+    buffer.position(0);
+    buffer.limit(valueSize);
+  }
+
+  /**
+   * Decompress the block for <i>hashPrefix</i> into the start of
+   * <i>buffer</i>. The compressed block is never copied onto the heap: it's
+   * either a view of the mapped file, or read into a direct scratch buffer.
+   * <i>buffer</i> is left cleared.
+   * 
+   * @return the decompressed length of the block
+   */
+  private int readAndDecompress(ByteBuffer buffer, int hashPrefix, long baseOffset) throws IOException {
+    buffer.clear();
+    int decompressedLength = compressionCodec.decompress(readCompressed(hashPrefix, baseOffset), buffer);
+    buffer.clear();
+    return decompressedLength;
+  }
+
+  private ByteBuffer readCompressed(int hashPrefix, long baseOffset) throws IOException {
+    int length = hashIndex.getLength(hashPrefix);
+    if (mappedFile != null) {
+      return mappedFile.slice(baseOffset, length);
+    }
+    ByteBuffer compressed = DirectBuffers.get(length);
+    while (compressed.hasRemaining()) {
+      if (channel.read(compressed, baseOffset + compressed.position()) < 0) {
+        throw new EOFException("Hit the end of the file reading " + length
+            + " bytes of block " + hashPrefix + " at offset " + baseOffset + "!");
       }
     }
-    // looked everywhere, didn't find it!
-    return -1;
+    compressed.flip();
+    return compressed;
   }
 }
@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.util.SortedSet;
 
 import com.rapleaf.hank.compress.CompressionCodec;
+import com.rapleaf.hank.storage.BlockCache;
 import com.rapleaf.hank.storage.Updater;
 
 public class CueballUpdater implements Updater {
@@ -31,6 +32,8 @@ public class CueballUpdater implements Updater {
   private final ICueballMerger merger;
   private final CompressionCodec compressionCodec;
   private final int hashIndexBits;
+  private final DeltaMergePolicy mergePolicy;
+  private final BlockCache blockCache;
 
   CueballUpdater(String localPartitionRoot,
       int keyHashSize,
@@ -39,6 +42,19 @@ public class CueballUpdater implements Updater {
       ICueballMerger merger,
       CompressionCodec compressionCodec,
       int hashIndexBits)
+  {
+    this(localPartitionRoot, keyHashSize, valueSize, fetcher, merger, compressionCodec, hashIndexBits, DeltaMergePolicy.ALWAYS, null);
+  }
+
+  CueballUpdater(String localPartitionRoot,
+      int keyHashSize,
+      int valueSize,
+      IFetcher fetcher,
+      ICueballMerger merger,
+      CompressionCodec compressionCodec,
+      int hashIndexBits,
+      DeltaMergePolicy mergePolicy,
+      BlockCache blockCache)
   {
     this.localPartitionRoot = localPartitionRoot;
     this.keyHashSize = keyHashSize;
@@ -47,6 +63,8 @@ public class CueballUpdater implements Updater {
     this.merger = merger;
     this.compressionCodec = compressionCodec;
     this.hashIndexBits = hashIndexBits;
+    this.mergePolicy = mergePolicy;
+    this.blockCache = blockCache;
   }
 
   public CueballUpdater(String localPartitionRoot,
@@ -56,20 +74,54 @@ public class CueballUpdater implements Updater {
       IFileSelector fileSelector,
       CompressionCodec compressionCodec,
       int hashIndexBits)
+  {
+    this(localPartitionRoot,
+        keyHashSize,
+        valueSize,
+        fileOps,
+        fileSelector,
+        compressionCodec,
+        hashIndexBits,
+        new CueballOptions(),
+        null);
+  }
+
+  /**
+   * @param options
+   *          the merge options: merge threads, read-ahead, and how many deltas
+   *          to leave unmerged (see DeltaMergePolicy)
+   * @param blockCache
+   *          if not null, the blocks cached for the partition's replaced
+   *          files are dropped after each update
+   */
+  public CueballUpdater(String localPartitionRoot,
+      int keyHashSize,
+      int valueSize,
+      IFileOps fileOps,
+      IFileSelector fileSelector,
+      CompressionCodec compressionCodec,
+      int hashIndexBits,
+      CueballOptions options,
+      BlockCache blockCache)
   {
     this(localPartitionRoot,
         keyHashSize,
         valueSize,
         new Fetcher(fileOps, fileSelector),
-        new CueballMerger(),
+        new CueballMerger(options.getMergeThreads(), options.isMergeReadAhead()),
         compressionCodec,
-        hashIndexBits);
+        hashIndexBits,
+        options.getMergePolicy(),
+        blockCache);
   }
 
   @Override
   public void update(int toVersion) throws IOException {
     fetcher.fetch(getLocalVersionNumber(), toVersion);
     resolveLocalDir();
+    if (blockCache != null) {
+      blockCache.invalidate(localPartitionRoot);
+    }
   }
 
   private void resolveLocalDir() throws IOException {
@@ -84,6 +136,18 @@ public class CueballUpdater implements Updater {
     String latestBase = bases.last();
     SortedSet<String> relevantDeltas = deltas.tailSet(latestBase);
 
+    if (relevantDeltas.isEmpty() || !mergePolicy.shouldMerge(latestBase, relevantDeltas)) {
+      // serve the deltas on top of the base as they are, and only get rid of
+      // what's older than the base
+      for (String oldBase : bases.headSet(latestBase)) {
+        new File(oldBase).delete();
+      }
+      for (String oldDelta : deltas.headSet(latestBase)) {
+        new File(oldDelta).delete();
+      }
+      return;
+    }
+
     String newBasePath = localPartitionRoot + "/"
         + Cueball.padVersion(Cueball.parseVersionNumber(relevantDeltas.last()))
         + ".base.cueball";
@@ -126,6 +190,16 @@ public class CueballUpdater implements Updater {
         }
       }
     }
+    if (bestVer == -1) {
+      return bestVer;
+    }
+
+    // deltas left unmerged on top of the base count too
+    for (String file : filesInLocal) {
+      if (file.matches(Cueball.DELTA_REGEX)) {
+        bestVer = Math.max(bestVer, Cueball.parseVersionNumber(file));
+      }
+    }
     return bestVer;
   }
 }
@@ -15,22 +15,60 @@
  */
 package com.rapleaf.hank.storage.cueball;
 
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import com.rapleaf.hank.compress.CompressionCodec;
 import com.rapleaf.hank.hasher.Hasher;
 import com.rapleaf.hank.storage.Writer;
-import com.rapleaf.hank.util.EncodingHelper;
 
 /**
  * Note that the current implementation does not support writing partitions with
  * more than 20000 entries per block.
+ * 
+ * Blocks are normally compressed on the writing thread as they fill up. With
+ * compression threads, finished blocks are handed off to a pool of them
+ * instead, and the writing thread only waits when too many blocks are in
+ * flight. The compressed blocks are still written out in hash prefix order,
+ * so the file is the same either way.
+ * 
+ * With a page size, the writer pads the data section so that no block that
+ * fits in a page crosses a page boundary, and a lookup that reads such a
+ * block touches a single page. Bigger blocks are left where they fall. The
+ * padding in front of a block is always smaller than the block itself.
  */
 public class CueballWriter implements Writer {
+  /**
+   * A block that's been handed off to a compression thread.
+   */
+  private static final class CompressedBlock {
+    private final int hashPrefix;
+    private final byte[] buffer;
+    private final int length;
+
+    public CompressedBlock(int hashPrefix, byte[] buffer, int length) {
+      this.hashPrefix = hashPrefix;
+      this.buffer = buffer;
+      this.length = length;
+    }
+  }
+
   private static final int DEFAULT_NUMBER_OF_ENTRIES = 20000;
+  // how many blocks each compression thread can have in flight before the
+  // writing thread waits for the oldest one
+  private static final int BLOCKS_IN_FLIGHT_PER_THREAD = 2;
   private final OutputStream stream;
   private final int keyHashSize;
   private final Hasher hasher;
@@ -42,36 +80,92 @@ public class CueballWriter implements Writer {
   private final byte[] keyHashBytes;
 
   private final long[] hashIndex;
+  private final int[] blockLengths;
+  private final int hashIndexBits;
+
+  private final BloomFilters.Builder bloomFilters;
 
   private final HashPrefixCalculator prefixer;
   private int lastHashPrefix = -1;
   private int uncompressedOffset = 0;
 
-  private int bytesWritten = 0;
+  private long bytesWritten = 0;
   private long maxUncompressedBlockSize;
   private long maxCompressedBlockSize;
 
+  private final ExecutorService compressionExecutor;
+  private final Queue<Future<CompressedBlock>> compressedBlocks;
+  private final int maxBlocksInFlight;
+
+  private final int pageSize;
+
   public CueballWriter(OutputStream outputStream,
       int keyHashSize,
       Hasher hasher,
       int valueSize,
       CompressionCodec compressionCodec,
       int hashIndexBits)
+  {
+    this(outputStream, keyHashSize, hasher, valueSize, compressionCodec, hashIndexBits, new CueballOptions());
+  }
+
+  /**
+   * @param options
+   *          the layout options: Bloom filters, compression threads and page
+   *          size. The others are for readers and updaters.
+   */
+  public CueballWriter(OutputStream outputStream,
+      int keyHashSize,
+      Hasher hasher,
+      int valueSize,
+      CompressionCodec compressionCodec,
+      int hashIndexBits,
+      CueballOptions options)
   {
     this.stream = outputStream;
     this.keyHashSize = keyHashSize;
     this.hasher = hasher;
     this.valueSize = valueSize;
     this.compressionCodec = compressionCodec;
+    this.pageSize = options.getPageSize();
+    int compressionThreads = options.getCompressionThreads();
 
     uncompressedBuffer = new byte[(keyHashSize + valueSize) * DEFAULT_NUMBER_OF_ENTRIES];
-    compressedBuffer = new byte[compressionCodec.getMaxCompressBufferSize(uncompressedBuffer.length)];
+    if (compressionThreads > 0) {
+      // each block gets its own buffers once it's handed off
+      compressedBuffer = null;
+      compressionExecutor = Executors.newFixedThreadPool(compressionThreads, new ThreadFactory() {
+        private int x = 0;
+
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "CueballWriter Compression Thread #" + ++x);
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      compressedBlocks = new ArrayDeque<Future<CompressedBlock>>();
+      maxBlocksInFlight = compressionThreads * BLOCKS_IN_FLIGHT_PER_THREAD;
+    } else {
+      compressedBuffer = new byte[compressionCodec.getMaxCompressBufferSize(uncompressedBuffer.length)];
+      compressionExecutor = null;
+      compressedBlocks = null;
+      maxBlocksInFlight = 0;
+    }
     keyHashBytes = new byte[keyHashSize];
 
     prefixer = new HashPrefixCalculator(hashIndexBits);
 
+    this.hashIndexBits = hashIndexBits;
     hashIndex = new long[1 << hashIndexBits];
     Arrays.fill(hashIndex, -1);
+    blockLengths = new int[1 << hashIndexBits];
+
+    if (options.getBloomFilterBitsPerKey() > 0) {
+      bloomFilters = new BloomFilters.Builder(hashIndexBits, options.getBloomFilterBitsPerKey());
+    } else {
+      bloomFilters = null;
+    }
   }
 
   @Override
@@ -87,18 +181,26 @@ public class CueballWriter implements Writer {
     // if this prefix and the last one don't match, then it's time to clear the
     // buffer.
     if (lastHashPrefix == -1 || thisPrefix != lastHashPrefix) {
-      if (thisPrefix < lastHashPrefix) {
-        throw new IOException("Just found a hash prefix inversion!");
+      boolean succeeded = false;
+      try {
+        if (thisPrefix < lastHashPrefix) {
+          throw new IOException("Just found a hash prefix inversion!");
+        }
+        // clear the uncompressed buffer, if there was a previous block that
+        // wasn't written already compressed
+        if (lastHashPrefix != -1 && uncompressedOffset > 0) {
+          clearUncompressed();
+        }
+        succeeded = true;
+      } finally {
+        if (!succeeded) {
+          shutdownCompression();
+        }
       }
-      // clear the uncompressed buffer
-      clearUncompressed();
 
       // start over in the buffer
       uncompressedOffset = 0;
       lastHashPrefix = thisPrefix;
-
-      // record the start index of the next block
-      hashIndex[thisPrefix] = bytesWritten;
     }
 
     // at this point, we're guaranteed to be ready to write to the buffer.
@@ -111,18 +213,111 @@ public class CueballWriter implements Writer {
     uncompressedOffset += keyHashSize + valueSize;
   }
 
+  /**
+   * Write a block that's already compressed, such as one copied as is from
+   * another Cueball file with the same key hash size, value size and
+   * compression codec.
+   * 
+   * @param maxUncompressedSize
+   *          an upper bound on the block's size once decompressed
+   * @param bloomFilter
+   *          the block's Bloom filter, built with this writer's bits per key.
+   *          Ignored if this writer doesn't build Bloom filters.
+   */
+  public void writeCompressedBlock(int hashPrefix, byte[] block, int length, int maxUncompressedSize, byte[] bloomFilter) throws IOException {
+    boolean succeeded = false;
+    try {
+      if (hashPrefix <= lastHashPrefix) {
+        throw new IOException("Just found a hash prefix inversion!");
+      }
+      if (lastHashPrefix != -1 && uncompressedOffset > 0) {
+        clearUncompressed();
+      }
+      uncompressedOffset = 0;
+      lastHashPrefix = hashPrefix;
+
+      // anything still being compressed goes first
+      if (compressionExecutor != null) {
+        while (!compressedBlocks.isEmpty()) {
+          writeBlock(compressedBlocks.remove());
+        }
+      }
+
+      if (bloomFilters != null) {
+        bloomFilters.addFilter(hashPrefix, bloomFilter);
+      }
+      if (maxUncompressedSize > maxUncompressedBlockSize) {
+        maxUncompressedBlockSize = maxUncompressedSize;
+      }
+      writeBlock(hashPrefix, block, length);
+      succeeded = true;
+    } finally {
+      if (!succeeded) {
+        shutdownCompression();
+      }
+    }
+  }
+
   private void clearUncompressed() throws IOException {
-    // compress the block
-    int compressedSize = compressionCodec.compress(uncompressedBuffer, 0, uncompressedOffset, compressedBuffer, 0);
-    // write the compressed block to the data stream
-    stream.write(compressedBuffer, 0, compressedSize);
-    bytesWritten += compressedSize;
+    if (bloomFilters != null) {
+      bloomFilters.addBlock(lastHashPrefix, uncompressedBuffer, 0, uncompressedOffset, keyHashSize, keyHashSize + valueSize);
+    }
 
     // keep track of the max block sizes
     if (uncompressedOffset > maxUncompressedBlockSize) {
       maxUncompressedBlockSize = uncompressedOffset;
     }
 
+    if (compressionExecutor == null) {
+      // compress the block and write it out right away
+      int compressedSize = compressionCodec.compress(uncompressedBuffer, 0, uncompressedOffset, compressedBuffer, 0);
+      writeBlock(lastHashPrefix, compressedBuffer, compressedSize);
+      return;
+    }
+
+    // make room for another block in flight, then hand this one off
+    if (compressedBlocks.size() >= maxBlocksInFlight) {
+      writeBlock(compressedBlocks.remove());
+    }
+    final int hashPrefix = lastHashPrefix;
+    final byte[] block = Arrays.copyOf(uncompressedBuffer, uncompressedOffset);
+    compressedBlocks.add(compressionExecutor.submit(new Callable<CompressedBlock>() {
+      @Override
+      public CompressedBlock call() {
+        byte[] compressed = new byte[compressionCodec.getMaxCompressBufferSize(block.length)];
+        return new CompressedBlock(hashPrefix, compressed, compressionCodec.compress(block, 0, block.length, compressed, 0));
+      }
+    }));
+  }
+
+  private void writeBlock(Future<CompressedBlock> future) throws IOException {
+    CompressedBlock compressed;
+    try {
+      compressed = future.get();
+    } catch (ExecutionException e) {
+      throw new IOException("Failed to compress a block!", e.getCause());
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted while compressing a block!", e);
+    }
+    writeBlock(compressed.hashPrefix, compressed.buffer, compressed.length);
+  }
+
+  private void writeBlock(int hashPrefix, byte[] compressedBlock, int compressedSize) throws IOException {
+    if (pageSize > 0 && compressedSize <= pageSize) {
+      // skip to the next page if the block won't fit in what's left of this one
+      int pageRemaining = (int) (pageSize - bytesWritten % pageSize);
+      if (compressedSize > pageRemaining) {
+        stream.write(new byte[pageRemaining]);
+        bytesWritten += pageRemaining;
+      }
+    }
+    // record the start index of the block
+    hashIndex[hashPrefix] = bytesWritten;
+    // write the compressed block to the data stream
+    stream.write(compressedBlock, 0, compressedSize);
+    bytesWritten += compressedSize;
+    blockLengths[hashPrefix] = compressedSize;
+
     if (compressedSize > maxCompressedBlockSize) {
       maxCompressedBlockSize = compressedSize;
     }
@@ -130,26 +325,155 @@ public class CueballWriter implements Writer {
 
   @Override
   public void close() throws IOException {
-    // clear the last block, if there is one
-    if (uncompressedOffset > 0) {
-      clearUncompressed();
-    }
+    finishBlocks();
 
     // serialize the footer
-    byte[] footer = new byte[8 * hashIndex.length + 4 + 4];
+    stream.write(Footer.encode(hashIndex,
+        blockLengths,
+        hashIndexBits,
+        maxUncompressedBlockSize,
+        maxCompressedBlockSize,
+        bloomFilters == null ? null : bloomFilters.toByteArray(),
+        pageSize));
+
+    // flush everything and close
+    stream.flush();
+    stream.close();
+  }
 
-    for (int i = 0; i < hashIndex.length; i++) {
-      EncodingHelper.encodeLittleEndianFixedWidthLong(hashIndex[i], footer, i * 8, 8);
+  /**
+   * Write out the remaining blocks and close the stream, but leave out the
+   * footer, so that the blocks can be appended to another writer's file with
+   * appendSegment().
+   */
+  void closeSegment() throws IOException {
+    finishBlocks();
+    stream.flush();
+    stream.close();
+  }
+
+  /**
+   * Copy the blocks of a segment written with closeSegment() to the end of
+   * this writer's file, and add them to its footer. Every block in the
+   * segment has to come after the blocks written so far, and the segment has
+   * to have been written with the same settings as this writer.
+   * 
+   * @param segmentPath
+   *          the file the segment was written to
+   * @throws IllegalArgumentException
+   *           if the segment's settings don't match this writer's
+   */
+  void appendSegment(CueballWriter segment, String segmentPath) throws IOException {
+    checkSameSetting("key hash size", keyHashSize, segment.keyHashSize);
+    checkSameSetting("value size", valueSize, segment.valueSize);
+    checkSameSetting("hash index bits", hashIndexBits, segment.hashIndexBits);
+    checkSameSetting("page size", pageSize, segment.pageSize);
+    checkSameSetting("Bloom filter bits per key", getBloomFilterBitsPerKey(), segment.getBloomFilterBitsPerKey());
+    int firstPrefix = -1;
+    int lastPrefix = -1;
+    for (int i = 0; i < segment.hashIndex.length; i++) {
+      if (segment.hashIndex[i] != -1) {
+        if (firstPrefix == -1) {
+          firstPrefix = i;
+        }
+        lastPrefix = i;
+      }
+    }
+    if (firstPrefix == -1) {
+      // nothing to append
+      return;
     }
+    boolean succeeded = false;
+    try {
+      if (firstPrefix <= lastHashPrefix) {
+        throw new IOException("Just found a hash prefix inversion!");
+      }
+      if (lastHashPrefix != -1 && uncompressedOffset > 0) {
+        clearUncompressed();
+      }
+      uncompressedOffset = 0;
+      lastHashPrefix = lastPrefix;
+      if (compressionExecutor != null) {
+        while (!compressedBlocks.isEmpty()) {
+          writeBlock(compressedBlocks.remove());
+        }
+      }
 
-    // write the buffer size hints
-    EncodingHelper.encodeLittleEndianFixedWidthLong(maxUncompressedBlockSize, footer, footer.length - 8, 4);
-    EncodingHelper.encodeLittleEndianFixedWidthLong(maxCompressedBlockSize, footer, footer.length - 4, 4);
+      // the segment's blocks are aligned relative to its start, so it has to
+      // start on a page boundary
+      if (pageSize > 0 && bytesWritten % pageSize != 0) {
+        int padding = (int) (pageSize - bytesWritten % pageSize);
+        stream.write(new byte[padding]);
+        bytesWritten += padding;
+      }
 
-    stream.write(footer);
+      long segmentStart = bytesWritten;
+      InputStream in = new FileInputStream(segmentPath);
+      try {
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+          stream.write(buffer, 0, read);
+          bytesWritten += read;
+        }
+      } finally {
+        in.close();
+      }
 
-    // flush everything and close
-    stream.flush();
-    stream.close();
+      for (int i = firstPrefix; i <= lastPrefix; i++) {
+        if (segment.hashIndex[i] != -1) {
+          hashIndex[i] = segmentStart + segment.hashIndex[i];
+          blockLengths[i] = segment.blockLengths[i];
+        }
+      }
+      if (bloomFilters != null) {
+        bloomFilters.addFilters(segment.bloomFilters);
+      }
+      maxUncompressedBlockSize = Math.max(maxUncompressedBlockSize, segment.maxUncompressedBlockSize);
+      maxCompressedBlockSize = Math.max(maxCompressedBlockSize, segment.maxCompressedBlockSize);
+      succeeded = true;
+    } finally {
+      if (!succeeded) {
+        shutdownCompression();
+      }
+    }
+  }
+
+  private int getBloomFilterBitsPerKey() {
+    return bloomFilters == null ? 0 : bloomFilters.getBitsPerKey();
+  }
+
+  private static void checkSameSetting(String name, int value, int segmentValue) {
+    if (value != segmentValue) {
+      throw new IllegalArgumentException("Can't append a segment with a " + name + " of "
+          + segmentValue + " to a writer with a " + name + " of " + value + "!");
+    }
+  }
+
+  private void finishBlocks() throws IOException {
+    try {
+      // clear the last block, if there is one
+      if (uncompressedOffset > 0) {
+        clearUncompressed();
+      }
+      // and wait for any still being compressed
+      if (compressionExecutor != null) {
+        while (!compressedBlocks.isEmpty()) {
+          writeBlock(compressedBlocks.remove());
+        }
+      }
+    } finally {
+      shutdownCompression();
+    }
+  }
+
+  /**
+   * Stop the compression threads. Once a write has failed, the writer is
+   * done with, and nothing says close() will ever be called on it.
+   */
+  private void shutdownCompression() {
+    if (compressionExecutor != null) {
+      compressionExecutor.shutdownNow();
+    }
   }
 }
@@ -0,0 +1,76 @@
+/**
+ *  Copyright 2011 Rapleaf
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.rapleaf.hank.storage.cueball;
+
+import java.io.File;
+import java.util.SortedSet;
+
+/**
+ * Decides whether an update merges its deltas into the base, or leaves them
+ * next to it to be served as layers (see LayeredReader). Leaving small deltas
+ * unmerged makes updates as quick as fetching them, at the cost of lookups
+ * that miss in the deltas having to check each of them before the base.
+ * 
+ * The deltas are merged once there are more than a maximum number of them, or
+ * once they add up to more than a fraction of the base's size.
+ */
+public final class DeltaMergePolicy {
+  /**
+   * Merge every update's deltas right away.
+   */
+  public static final DeltaMergePolicy ALWAYS = new DeltaMergePolicy(0, 0);
+
+  private final int maxDeltas;
+  private final double maxDeltaRatio;
+
+  /**
+   * @param maxDeltas
+   *          the most deltas that can be left unmerged
+   * @param maxDeltaRatio
+   *          if positive, the most the unmerged deltas can add up to, as a
+   *          fraction of the size of the base. Otherwise only the number of
+   *          deltas counts.
+   */
+  public DeltaMergePolicy(int maxDeltas, double maxDeltaRatio) {
+    this.maxDeltas = maxDeltas;
+    this.maxDeltaRatio = maxDeltaRatio;
+  }
+
+  /**
+   * @param latestBase
+   *          the path of the base
+   * @param deltas
+   *          the paths of all the deltas newer than the base
+   */
+  public boolean shouldMerge(String latestBase, SortedSet<String> deltas) {
+    if (deltas.size() > maxDeltas) {
+      return true;
+    }
+    if (maxDeltaRatio <= 0) {
+      return false;
+    }
+    long deltaBytes = 0;
+    for (String delta : deltas) {
+      deltaBytes += new File(delta).length();
+    }
+    return deltaBytes > maxDeltaRatio * new File(latestBase).length();
+  }
+
+  @Override
+  public String toString() {
+    return "DeltaMergePolicy [maxDeltaRatio=" + maxDeltaRatio + ", maxDeltas=" + maxDeltas + "]";
+  }
+}
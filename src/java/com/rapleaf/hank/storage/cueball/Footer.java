@@ -3,54 +3,238 @@ package com.rapleaf.hank.storage.cueball;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 
 import com.rapleaf.hank.util.EncodingHelper;
 
+/**
+ * The footer of a Cueball file. There are two layouts:
+ *
+ * The original one is a fixed-width hash index (8 bytes per hash prefix),
+ * followed by the 4 byte max uncompressed and max compressed block sizes.
+ *
+ * The current one is a compact hash index (see HashIndex.Compact), followed by
+ * a 4 byte index length, the two max block sizes, a 4 byte version and a 4
+ * byte magic number. The magic number is negative, which a valid max
+ * compressed block size never is, so the last 4 bytes of the file tell the
+ * two layouts apart.
+ *
+ * Version 3 adds an optional section of per-block Bloom filters (see
+ * BloomFilters) between the hash index and the trailer, along with a 4 byte
+ * length for it at the start of the trailer.
+ *
+ * Version 4 adds a 4 byte page size ahead of that length, for files whose
+ * blocks were laid out so that none that fit in a page cross a page boundary
+ * (see CueballWriter). Its Bloom filter section may be empty. The padding
+ * between blocks shows up as gaps in the hash index, so readers don't need
+ * to know about it.
+ *
+ * Either way, the hash index is memory-mapped rather than loaded onto the
+ * heap.
+ */
 final class Footer {
-  private final long[] hashIndex;
+  static final int VERSION = 2;
+  static final int BLOOM_FILTER_VERSION = 3;
+  static final int PAGE_ALIGNED_VERSION = 4;
+  static final int MAGIC = 0xCBB10CA1;
+  private static final int TRAILER_LENGTH = 20;
+
+  private final HashIndex hashIndex;
+  private final BloomFilters bloomFilters;
   private final int maxUncompressedBufferSize;
   private final int maxCompressedBufferSize;
   private final long fileSize;
   private final int footerLength;
+  private final int version;
+  private final int pageSize;
 
   public Footer(FileChannel channel, int hashIndexBits) throws IOException {
     fileSize = channel.size();
 
-    final int hashIndexSize = 1 << hashIndexBits;
-    footerLength = hashIndexSize * 8 + 8;
-
-    byte[] footer = new byte[getFooterLength()];
-    int read = channel.read(ByteBuffer.wrap(footer), getFileSize() - getFooterLength());
-    if (read != getFooterLength()) {
-      throw new IOException("Tried to read " + getFooterLength() + " bytes of footer, but only got " + read + " bytes!");
-    }
+    if (fileSize >= 4 && readInt(channel, fileSize - 4) == MAGIC) {
+      if (fileSize < TRAILER_LENGTH) {
+        throw new IOException("File is too short to contain a footer!");
+      }
+      version = readInt(channel, fileSize - 8);
+      if (version != VERSION && version != BLOOM_FILTER_VERSION && version != PAGE_ALIGNED_VERSION) {
+        throw new IOException(String.format("Unknown footer version %d!", version));
+      }
+      int trailerLength = TRAILER_LENGTH;
+      int bloomFilterLength = 0;
+      if (version >= BLOOM_FILTER_VERSION) {
+        trailerLength += 4;
+        if (fileSize < trailerLength) {
+          throw new IOException("File is too short to contain a footer!");
+        }
+        bloomFilterLength = readInt(channel, fileSize - trailerLength);
+      }
+      if (version == PAGE_ALIGNED_VERSION) {
+        trailerLength += 4;
+        if (fileSize < trailerLength) {
+          throw new IOException("File is too short to contain a footer!");
+        }
+        pageSize = readInt(channel, fileSize - trailerLength);
+        if (pageSize <= 0) {
+          throw new IOException(String.format("Read an invalid page size of %d!", pageSize));
+        }
+      } else {
+        pageSize = 0;
+      }
+      if (bloomFilterLength < 0 || bloomFilterLength > fileSize - trailerLength) {
+        throw new IOException(String.format("Read an invalid bloom filter length of %d!", bloomFilterLength));
+      }
+      int indexLength = readInt(channel, fileSize - TRAILER_LENGTH);
+      if (indexLength < 0 || indexLength > fileSize - trailerLength - bloomFilterLength) {
+        throw new IOException(String.format("Read an invalid hash index length of %d!", indexLength));
+      }
+      footerLength = indexLength + bloomFilterLength + trailerLength;
+      maxUncompressedBufferSize = readBufferSize(channel, fileSize - 16);
+      maxCompressedBufferSize = readBufferSize(channel, fileSize - 12);
 
-    hashIndex = new long[hashIndexSize];
-    for (int i = 0; i < getHashIndex().length; i++) {
-      final long offset = EncodingHelper.decodeLittleEndianFixedWidthLong(footer, i * 8, 8);
-      if (offset < -1) {
-        throw new IOException(String.format("Read an unexpectedly negative block offset (%d) at block position %d!", offset, i));
+      hashIndex = new HashIndex.Compact(channel.map(MapMode.READ_ONLY, getDataLength(), indexLength),
+          hashIndexBits,
+          getDataLength());
+      if (version == BLOOM_FILTER_VERSION || bloomFilterLength > 0) {
+        bloomFilters = new BloomFilters(channel.map(MapMode.READ_ONLY, getDataLength() + indexLength, bloomFilterLength),
+            hashIndexBits);
+      } else {
+        bloomFilters = null;
       }
-      if (offset != -1 && i > 0 && hashIndex[i-1] != -1 && hashIndex[i-1] >= offset) {
-        throw new IOException(String.format("Discovered an offset inversion! block %d offset: %d, block %d offset: %d", i-1, hashIndex[i-1], i, offset));
+    } else {
+      version = 1;
+      pageSize = 0;
+      final int hashIndexSize = 1 << hashIndexBits;
+      footerLength = hashIndexSize * 8 + 8;
+      if (fileSize < footerLength) {
+        throw new IOException("Tried to read " + getFooterLength() + " bytes of footer, but the file is only " + fileSize + " bytes!");
       }
-      getHashIndex()[i] = offset;
+
+      maxUncompressedBufferSize = readBufferSize(channel, fileSize - 8);
+      maxCompressedBufferSize = readBufferSize(channel, fileSize - 4);
+
+      bloomFilters = null;
+      hashIndex = new HashIndex.Fixed(channel.map(MapMode.READ_ONLY, getDataLength(), hashIndexSize * 8),
+          hashIndexSize,
+          getDataLength());
+    }
+  }
+
+  /**
+   * Serialize a footer in the current layout, without Bloom filters.
+   */
+  public static byte[] encode(long[] offsets,
+      int[] lengths,
+      int hashIndexBits,
+      long maxUncompressedBlockSize,
+      long maxCompressedBlockSize)
+  {
+    return encode(offsets, lengths, hashIndexBits, maxUncompressedBlockSize, maxCompressedBlockSize, null);
+  }
+
+  /**
+   * Serialize a footer in the current layout, for blocks that aren't page
+   * aligned.
+   * 
+   * @param bloomFilters
+   *          the serialized Bloom filter section, or null if there isn't one
+   */
+  public static byte[] encode(long[] offsets,
+      int[] lengths,
+      int hashIndexBits,
+      long maxUncompressedBlockSize,
+      long maxCompressedBlockSize,
+      byte[] bloomFilters)
+  {
+    return encode(offsets, lengths, hashIndexBits, maxUncompressedBlockSize, maxCompressedBlockSize, bloomFilters, 0);
+  }
+
+  /**
+   * Serialize a footer in the current layout.
+   * 
+   * @param bloomFilters
+   *          the serialized Bloom filter section, or null if there isn't one
+   * @param pageSize
+   *          the page size the blocks were aligned to, or 0 if they weren't
+   */
+  public static byte[] encode(long[] offsets,
+      int[] lengths,
+      int hashIndexBits,
+      long maxUncompressedBlockSize,
+      long maxCompressedBlockSize,
+      byte[] bloomFilters,
+      int pageSize)
+  {
+    byte[] index = HashIndex.Compact.encode(offsets, lengths, hashIndexBits);
+    int bloomFilterLength = bloomFilters == null ? 0 : bloomFilters.length;
+    int version = VERSION;
+    int trailerLength = TRAILER_LENGTH;
+    if (pageSize > 0) {
+      version = PAGE_ALIGNED_VERSION;
+      trailerLength += 8;
+    } else if (bloomFilters != null) {
+      version = BLOOM_FILTER_VERSION;
+      trailerLength += 4;
     }
+    byte[] footer = new byte[index.length + bloomFilterLength + trailerLength];
+    System.arraycopy(index, 0, footer, 0, index.length);
+    if (bloomFilters != null) {
+      System.arraycopy(bloomFilters, 0, footer, index.length, bloomFilters.length);
+    }
+    if (version >= BLOOM_FILTER_VERSION) {
+      EncodingHelper.encodeLittleEndianFixedWidthLong(bloomFilterLength, footer, footer.length - 24, 4);
+    }
+    if (version == PAGE_ALIGNED_VERSION) {
+      EncodingHelper.encodeLittleEndianFixedWidthLong(pageSize, footer, footer.length - 28, 4);
+    }
+    EncodingHelper.encodeLittleEndianFixedWidthLong(index.length, footer, footer.length - 20, 4);
+    // the buffer size hints
+    EncodingHelper.encodeLittleEndianFixedWidthLong(maxUncompressedBlockSize, footer, footer.length - 16, 4);
+    EncodingHelper.encodeLittleEndianFixedWidthLong(maxCompressedBlockSize, footer, footer.length - 12, 4);
+    EncodingHelper.encodeLittleEndianFixedWidthLong(version, footer, footer.length - 8, 4);
+    EncodingHelper.encodeLittleEndianFixedWidthLong(MAGIC, footer, footer.length - 4, 4);
+    return footer;
+  }
 
-    maxUncompressedBufferSize = (int) EncodingHelper.decodeLittleEndianFixedWidthLong(footer, footer.length - 8, 4);
-    if (maxUncompressedBufferSize < 0) {
-      throw new IOException(String.format("Read an invalid max uncompressed buffer size of %d!", maxUncompressedBufferSize));
+  private static int readInt(FileChannel channel, long position) throws IOException {
+    byte[] bytes = new byte[4];
+    int read = channel.read(ByteBuffer.wrap(bytes), position);
+    if (read != 4) {
+      throw new IOException("Tried to read 4 bytes of footer, but only got " + read + " bytes!");
     }
-    maxCompressedBufferSize = (int) EncodingHelper.decodeLittleEndianFixedWidthLong(footer, footer.length - 4, 4);
-    if (maxCompressedBufferSize < 0) {
-      throw new IOException(String.format("Read an invalid max uncompressed buffer size of %d!", maxCompressedBufferSize));
+    return (int) EncodingHelper.decodeLittleEndianFixedWidthLong(bytes, 0, 4);
+  }
+
+  private static int readBufferSize(FileChannel channel, long position) throws IOException {
+    int size = readInt(channel, position);
+    if (size < 0) {
+      throw new IOException(String.format("Read an invalid buffer size of %d!", size));
     }
+    return size;
   }
 
-  public long[] getHashIndex() {
+  public HashIndex getIndex() {
     return hashIndex;
   }
 
+  /**
+   * @return the file's Bloom filters, or null if it was written without them
+   */
+  public BloomFilters getBloomFilters() {
+    return bloomFilters;
+  }
+
+  /**
+   * Copy the block offsets out of the index onto the heap. Only meant for
+   * tools and tests - readers should use getIndex().
+   */
+  public long[] getHashIndex() {
+    long[] offsets = new long[hashIndex.size()];
+    for (int i = 0; i < offsets.length; i++) {
+      offsets[i] = hashIndex.getOffset(i);
+    }
+    return offsets;
+  }
+
   public int getMaxCompressedBufferSize() {
     return maxCompressedBufferSize;
   }
@@ -66,7 +250,19 @@ final class Footer {
   public int getFooterLength() {
     return footerLength;
   }
-  
+
+  /**
+   * @return the page size the file's blocks were aligned to, or 0 if they
+   *         weren't
+   */
+  public int getPageSize() {
+    return pageSize;
+  }
+
+  public int getVersion() {
+    return version;
+  }
+
   public long getDataLength() {
     return getFileSize() - getFooterLength();
   }
@@ -0,0 +1,307 @@
+/**
+ *  Copyright 2011 Rapleaf
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.rapleaf.hank.storage.cueball;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Maps each hash prefix in a Cueball file to the location of its block. The
+ * index is read straight out of a (memory-mapped) buffer rather than being
+ * copied onto the heap, so a host with hundreds of partitions doesn't keep
+ * gigabytes of offsets around for the garbage collector to scan.
+ * 
+ * Implementations must be safe for concurrent use, which in practice means
+ * only ever using absolute gets on the underlying buffer.
+ */
+abstract class HashIndex {
+  /**
+   * @param hashPrefix
+   * @return the offset of the block for <i>hashPrefix</i>, or -1 if there's
+   *         no block for it.
+   */
+  public abstract long getOffset(int hashPrefix);
+
+  /**
+   * @param hashPrefix
+   * @return the compressed length of the block for <i>hashPrefix</i>. Only
+   *         meaningful for prefixes that have a block.
+   */
+  public abstract int getLength(int hashPrefix);
+
+  /**
+   * @return the number of hash prefixes in the index.
+   */
+  public abstract int size();
+
+  /**
+   * The original footer layout: one little-endian 8 byte offset per hash
+   * prefix, with -1 standing in for an empty block. Blocks are contiguous, so
+   * a block's length is the distance to the next non-empty block (or the end
+   * of the data section).
+   */
+  static final class Fixed extends HashIndex {
+    private final ByteBuffer buffer;
+    private final int size;
+    private final long dataLength;
+
+    public Fixed(ByteBuffer buffer, int size, long dataLength) throws IOException {
+      this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+      this.size = size;
+      this.dataLength = dataLength;
+
+      long previous = -1;
+      for (int i = 0; i < size; i++) {
+        final long offset = getOffset(i);
+        if (offset < -1) {
+          throw new IOException(String.format("Read an unexpectedly negative block offset (%d) at block position %d!", offset, i));
+        }
+        if (offset != -1 && i > 0 && previous != -1 && previous >= offset) {
+          throw new IOException(String.format("Discovered an offset inversion! block %d offset: %d, block %d offset: %d", i-1, previous, i, offset));
+        }
+        previous = offset;
+      }
+    }
+
+    @Override
+    public long getOffset(int hashPrefix) {
+      return buffer.getLong(hashPrefix * 8);
+    }
+
+    @Override
+    public int getLength(int hashPrefix) {
+      long offset = getOffset(hashPrefix);
+      for (int i = hashPrefix + 1; i < size; i++) {
+        long next = getOffset(i);
+        if (next != -1) {
+          return (int) (next - offset);
+        }
+      }
+      return (int) (dataLength - offset);
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+  }
+
+  /**
+   * A compact encoding that takes a byte or two per hash prefix instead of
+   * eight. Each entry is a varint: 0 for an empty block, otherwise
+   * (compressed length << 1 | has gap). If the gap bit is set, another varint
+   * follows with the number of unused bytes between the end of the previous
+   * block and the start of this one.
+   * 
+   * Every SAMPLE_INTERVAL entries there's a fixed-width sample recording the
+   * end of the last block before the sample and where the sample's first
+   * entry starts, so a lookup only has to decode the entries between the
+   * nearest sample and the one it wants.
+   * 
+   * Layout: [4 byte hash index bits][samples: 8 byte block end, 4 byte entry
+   * position][entries]
+   */
+  static final class Compact extends HashIndex {
+    static final int SAMPLE_INTERVAL = 64;
+    private static final int SAMPLE_SIZE = 12;
+
+    private final ByteBuffer buffer;
+    private final int size;
+    private final int entriesStart;
+
+    public Compact(ByteBuffer buffer, int hashIndexBits, long dataLength) throws IOException {
+      this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+      if (buffer.capacity() < 4) {
+        throw new IOException("Hash index is too short to be valid!");
+      }
+      int storedBits = buffer.getInt(0);
+      if (storedBits != hashIndexBits) {
+        throw new IOException(String.format("Hash index was written with %d hash index bits, but %d were expected!", storedBits, hashIndexBits));
+      }
+      this.size = 1 << hashIndexBits;
+      this.entriesStart = 4 + getNumSamples(size) * SAMPLE_SIZE;
+      if (buffer.capacity() < entriesStart) {
+        throw new IOException("Hash index is too short to be valid!");
+      }
+
+      // decode the whole index once, so that corruption is caught up front
+      // rather than on some unlucky request.
+      try {
+        validate(dataLength);
+      } catch (IndexOutOfBoundsException e) {
+        throw new IOException("Hash index ends in the middle of an entry!");
+      }
+    }
+
+    private void validate(long dataLength) throws IOException {
+      long blockEnd = 0;
+      int pos = entriesStart;
+      for (int i = 0; i < size; i++) {
+        if (i % SAMPLE_INTERVAL == 0) {
+          int sample = 4 + i / SAMPLE_INTERVAL * SAMPLE_SIZE;
+          if (buffer.getLong(sample) != blockEnd || entriesStart + buffer.getInt(sample + 8) != pos) {
+            throw new IOException(String.format("Hash index sample for block %d doesn't match its entries!", i));
+          }
+        }
+        if (pos >= buffer.capacity()) {
+          throw new IOException(String.format("Hash index ends before the entry for block %d!", i));
+        }
+        long entry = readVarLong(pos);
+        pos += varLongSize(entry);
+        if (entry != 0) {
+          if ((entry & 1) != 0) {
+            long gap = readVarLong(pos);
+            pos += varLongSize(gap);
+            blockEnd += gap;
+          }
+          blockEnd += entry >>> 1;
+        }
+      }
+      if (blockEnd > dataLength) {
+        throw new IOException(String.format("Hash index refers to data up to offset %d, but there are only %d bytes of data!", blockEnd, dataLength));
+      }
+    }
+
+    @Override
+    public long getOffset(int hashPrefix) {
+      int sample = 4 + hashPrefix / SAMPLE_INTERVAL * SAMPLE_SIZE;
+      long blockEnd = buffer.getLong(sample);
+      int pos = entriesStart + buffer.getInt(sample + 8);
+      for (int i = hashPrefix - hashPrefix % SAMPLE_INTERVAL; ; i++) {
+        long entry = readVarLong(pos);
+        pos += varLongSize(entry);
+        if (entry == 0) {
+          if (i == hashPrefix) {
+            return -1;
+          }
+          continue;
+        }
+        if ((entry & 1) != 0) {
+          long gap = readVarLong(pos);
+          pos += varLongSize(gap);
+          blockEnd += gap;
+        }
+        if (i == hashPrefix) {
+          return blockEnd;
+        }
+        blockEnd += entry >>> 1;
+      }
+    }
+
+    @Override
+    public int getLength(int hashPrefix) {
+      int pos = entriesStart + buffer.getInt(4 + hashPrefix / SAMPLE_INTERVAL * SAMPLE_SIZE + 8);
+      for (int i = hashPrefix - hashPrefix % SAMPLE_INTERVAL; ; i++) {
+        long entry = readVarLong(pos);
+        if (i == hashPrefix) {
+          return (int) (entry >>> 1);
+        }
+        pos += varLongSize(entry);
+        if ((entry & 1) != 0) {
+          pos += varLongSize(readVarLong(pos));
+        }
+      }
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    private long readVarLong(int pos) {
+      long value = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = buffer.get(pos++);
+        value |= (long) (b & 0x7f) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+      return value;
+    }
+
+    /**
+     * Encode a compact index.
+     * 
+     * @param offsets
+     *          the offset of each hash prefix's block, or -1 if it's empty
+     * @param lengths
+     *          the compressed length of each block
+     * @param hashIndexBits
+     * @return
+     */
+    public static byte[] encode(long[] offsets, int[] lengths, int hashIndexBits) {
+      int size = 1 << hashIndexBits;
+      int numSamples = getNumSamples(size);
+
+      // worst case, every entry needs two full varints
+      ByteBuffer entries = ByteBuffer.allocate(size * 20);
+      ByteBuffer samples = ByteBuffer.allocate(numSamples * SAMPLE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+      long blockEnd = 0;
+      for (int i = 0; i < size; i++) {
+        if (i % SAMPLE_INTERVAL == 0) {
+          samples.putLong(blockEnd);
+          samples.putInt(entries.position());
+        }
+        if (offsets[i] == -1) {
+          writeVarLong(entries, 0);
+          continue;
+        }
+        long gap = offsets[i] - blockEnd;
+        if (gap < 0) {
+          throw new IllegalArgumentException(String.format("Block %d at offset %d overlaps the previous block, which ends at %d!", i, offsets[i], blockEnd));
+        }
+        if (gap == 0) {
+          writeVarLong(entries, (long) lengths[i] << 1);
+        } else {
+          writeVarLong(entries, ((long) lengths[i] << 1) | 1);
+          writeVarLong(entries, gap);
+        }
+        blockEnd = offsets[i] + lengths[i];
+      }
+
+      byte[] result = new byte[4 + samples.capacity() + entries.position()];
+      ByteBuffer out = ByteBuffer.wrap(result).order(ByteOrder.LITTLE_ENDIAN);
+      out.putInt(hashIndexBits);
+      out.put(samples.array());
+      out.put(entries.array(), 0, entries.position());
+      return result;
+    }
+
+    private static void writeVarLong(ByteBuffer out, long value) {
+      while ((value & ~0x7fL) != 0) {
+        out.put((byte) ((value & 0x7f) | 0x80));
+        value >>>= 7;
+      }
+      out.put((byte) value);
+    }
+
+    private static int varLongSize(long value) {
+      int size = 1;
+      while ((value & ~0x7fL) != 0) {
+        size++;
+        value >>>= 7;
+      }
+      return size;
+    }
+
+    private static int getNumSamples(int size) {
+      return (size + SAMPLE_INTERVAL - 1) / SAMPLE_INTERVAL;
+    }
+  }
+}
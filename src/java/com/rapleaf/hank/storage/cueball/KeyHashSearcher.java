@@ -0,0 +1,232 @@
+/**
+ *  Copyright 2011 Rapleaf
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.rapleaf.hank.storage.cueball;
+
+import java.nio.ByteBuffer;
+
+import com.rapleaf.hank.util.Bytes;
+
+/**
+ * Finds a key hash among the sorted, fixed-size records of a decompressed
+ * Cueball block.
+ * 
+ * Key hashes are uniformly distributed, so the position of a key within a
+ * block can be estimated from its value. Lookups interpolate between the
+ * first and last candidate records, falling back to binary search if the
+ * estimates aren't narrowing the range quickly enough (e.g., on a badly
+ * skewed block). For very large blocks, a sampled sub-index can be built once
+ * and used to cut the candidate range down to a single stride before
+ * searching.
+ */
+final class KeyHashSearcher {
+  /**
+   * Blocks with fewer records than this don't get a sub-index - a plain
+   * search is already only a handful of comparisons.
+   */
+  static final int SUB_INDEX_MIN_RECORDS = 1024;
+  /**
+   * Number of records between sub-index samples.
+   */
+  static final int SUB_INDEX_STRIDE = 64;
+
+  private static final int MAX_INTERPOLATION_STEPS = 8;
+  private static final int MIN_INTERPOLATION_RECORDS = 8;
+
+  private final int keyHashSize;
+  private final int fullRecordSize;
+  private final int prefixSize;
+
+  public KeyHashSearcher(int keyHashSize, int fullRecordSize) {
+    this.keyHashSize = keyHashSize;
+    this.fullRecordSize = fullRecordSize;
+    this.prefixSize = Math.min(8, keyHashSize);
+  }
+
+  /**
+   * Search the records in block[off, limit) for <i>keyHash</i>.
+   * 
+   * @return the offset of the matching record's value, or -1 if the key hash
+   *         isn't in the block
+   */
+  public int search(byte[] block, int off, int limit, byte[] keyHash, int keyHashOff) {
+    return search(block, null, off, 0, (limit - off) / fullRecordSize - 1, getTarget(keyHash, keyHashOff), keyHash, keyHashOff);
+  }
+
+  /**
+   * Search the records in table[off, limit), using only absolute gets so that
+   * the table can be shared between threads, and can live off-heap.
+   */
+  public int search(ByteBuffer table, int off, int limit, byte[] keyHash, int keyHashOff) {
+    return search(null, table, off, 0, (limit - off) / fullRecordSize - 1, getTarget(keyHash, keyHashOff), keyHash, keyHashOff);
+  }
+
+  /**
+   * Search a block using a sub-index previously built by
+   * {@link #buildSubIndex(byte[], int, int)}.
+   */
+  public int search(byte[] block, int off, int limit, long[] subIndex, byte[] keyHash, int keyHashOff) {
+    int numRecords = (limit - off) / fullRecordSize;
+    long target = getTarget(keyHash, keyHashOff);
+    if (subIndex == null) {
+      return search(block, null, off, 0, numRecords - 1, target, keyHash, keyHashOff);
+    }
+
+    // the key can only be between the last sample strictly less than it and
+    // the first sample strictly greater than it. (samples only hold a prefix
+    // of the key hash, so equal samples don't pin the key down.)
+    int lo = 0;
+    int hi = subIndex.length - 1;
+    int lastLess = -1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      if (flip(subIndex[mid]) < target) {
+        lastLess = mid;
+        lo = mid + 1;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    int firstGreater = lastLess + 1;
+    while (firstGreater < subIndex.length && flip(subIndex[firstGreater]) <= target) {
+      firstGreater++;
+    }
+
+    int loRecord = lastLess < 0 ? 0 : lastLess * SUB_INDEX_STRIDE;
+    int hiRecord = firstGreater >= subIndex.length ? numRecords - 1 : firstGreater * SUB_INDEX_STRIDE;
+    return search(block, null, off, loRecord, hiRecord, target, keyHash, keyHashOff);
+  }
+
+  /**
+   * Build a sub-index for block[off, limit), or return null if the block is
+   * too small to benefit from one.
+   */
+  public long[] buildSubIndex(byte[] block, int off, int limit) {
+    int numRecords = (limit - off) / fullRecordSize;
+    if (numRecords < SUB_INDEX_MIN_RECORDS) {
+      return null;
+    }
+    long[] subIndex = new long[(numRecords + SUB_INDEX_STRIDE - 1) / SUB_INDEX_STRIDE];
+    for (int i = 0; i < subIndex.length; i++) {
+      subIndex[i] = getPrefix(block, null, off + i * SUB_INDEX_STRIDE * fullRecordSize);
+    }
+    return subIndex;
+  }
+
+  /**
+   * Search records lo through hi of the block at <i>off</i>, which is either
+   * the heap array <i>array</i> or, if that's null, <i>buffer</i>. Every
+   * search ends up here, so there's a single implementation whatever the
+   * block lives in, and nothing is allocated along the way.
+   * 
+   * @param target
+   *          the flipped prefix of <i>keyHash</i>, see getTarget()
+   */
+  private int search(byte[] array, ByteBuffer buffer, int off, int lo, int hi, long target, byte[] keyHash, int keyHashOff) {
+    if (hi < lo) {
+      return -1;
+    }
+
+    int steps = 0;
+    while (hi - lo >= MIN_INTERPOLATION_RECORDS && steps < MAX_INTERPOLATION_STEPS) {
+      long loKey = flip(getPrefix(array, buffer, off + lo * fullRecordSize));
+      long hiKey = flip(getPrefix(array, buffer, off + hi * fullRecordSize));
+      if (target < loKey || target > hiKey) {
+        return -1;
+      }
+      if (loKey == hiKey) {
+        // the whole range shares a prefix, so there's nothing to interpolate on
+        break;
+      }
+      // the difference between two flipped longs can overflow a long, so do
+      // the arithmetic in doubles. the estimate only has to be close.
+      double fraction = ((double) target - (double) loKey) / ((double) hiKey - (double) loKey);
+      int probe = lo + (int) (fraction * (hi - lo));
+      probe = Math.max(lo, Math.min(hi, probe));
+
+      int comparison = compare(array, buffer, off + probe * fullRecordSize, keyHash, keyHashOff);
+      if (comparison == 0) {
+        return off + probe * fullRecordSize + keyHashSize;
+      } else if (comparison < 0) {
+        lo = probe + 1;
+      } else {
+        hi = probe - 1;
+      }
+      steps++;
+    }
+
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int comparison = compare(array, buffer, off + mid * fullRecordSize, keyHash, keyHashOff);
+      if (comparison == 0) {
+        return off + mid * fullRecordSize + keyHashSize;
+      } else if (comparison < 0) {
+        lo = mid + 1;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    // looked everywhere, didn't find it!
+    return -1;
+  }
+
+  private int compare(byte[] array, ByteBuffer buffer, int recordOff, byte[] keyHash, int keyHashOff) {
+    if (array != null) {
+      return Bytes.compareBytes(array, recordOff, keyHash, keyHashOff, keyHashSize);
+    }
+    for (int i = 0; i < keyHashSize; i++) {
+      int a = buffer.get(recordOff + i) & 0xff;
+      int b = keyHash[keyHashOff + i] & 0xff;
+      if (a != b) {
+        return a < b ? -1 : 1;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * @return the prefix of <i>keyHash</i>, flipped so that it can be compared
+   *         with the flipped prefixes of records
+   */
+  private long getTarget(byte[] keyHash, int keyHashOff) {
+    return flip(getPrefix(keyHash, null, keyHashOff));
+  }
+
+  /**
+   * The first (up to) 8 bytes of a key hash as a big-endian long, left aligned
+   * so that prefixes of short key hashes still compare correctly. The bytes
+   * come from <i>array</i>, or <i>buffer</i> if that's null.
+   */
+  private long getPrefix(byte[] array, ByteBuffer buffer, int off) {
+    long prefix = 0;
+    if (array != null) {
+      for (int i = 0; i < prefixSize; i++) {
+        prefix = (prefix << 8) | (array[off + i] & 0xff);
+      }
+    } else {
+      for (int i = 0; i < prefixSize; i++) {
+        prefix = (prefix << 8) | (buffer.get(off + i) & 0xff);
+      }
+    }
+    return prefix << (8 * (8 - prefixSize));
+  }
+
+  /**
+   * Map an unsigned long onto a signed one with the same ordering.
+   */
+  private static long flip(long unsigned) {
+    return unsigned ^ Long.MIN_VALUE;
+  }
+}
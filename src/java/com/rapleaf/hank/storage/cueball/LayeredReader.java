@@ -0,0 +1,101 @@
+/**
+ *  Copyright 2011 Rapleaf
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.rapleaf.hank.storage.cueball;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.rapleaf.hank.storage.MemoryUsageReporter;
+import com.rapleaf.hank.storage.Reader;
+import com.rapleaf.hank.storage.Result;
+
+/**
+ * Serves a base together with the deltas that haven't been merged into it yet
+ * (see DeltaMergePolicy). Lookups go through the layers newest first, and stop
+ * at the first one that has the key, so each key gets the value from the
+ * latest version that wrote it - the same one a merge would have kept.
+ * 
+ * Lookups for keys that aren't in the newer layers cost a lookup in each of
+ * them, which Bloom filters make cheap.
+ */
+public class LayeredReader implements Reader, MemoryUsageReporter {
+  private final Reader[] layers;
+
+  /**
+   * @param layers
+   *          the deltas, newest first, followed by the base
+   */
+  public LayeredReader(Reader[] layers) {
+    this.layers = layers;
+  }
+
+  @Override
+  public void get(ByteBuffer key, Result result) throws IOException {
+    for (Reader layer : layers) {
+      layer.get(key, result);
+      if (result.isFound()) {
+        return;
+      }
+    }
+  }
+
+  @Override
+  public void get(ByteBuffer[] keys, Result[] results) throws IOException {
+    ByteBuffer[] remainingKeys = keys;
+    Result[] remainingResults = results;
+    for (int i = 0; i < layers.length; i++) {
+      layers[i].get(remainingKeys, remainingResults);
+      if (i == layers.length - 1) {
+        return;
+      }
+
+      // only the keys that weren't found go on to the next layer
+      int numRemaining = 0;
+      for (Result result : remainingResults) {
+        if (!result.isFound()) {
+          numRemaining++;
+        }
+      }
+      if (numRemaining == 0) {
+        return;
+      }
+      if (numRemaining < remainingResults.length) {
+        ByteBuffer[] nextKeys = new ByteBuffer[numRemaining];
+        Result[] nextResults = new Result[numRemaining];
+        int j = 0;
+        for (int k = 0; k < remainingResults.length; k++) {
+          if (!remainingResults[k].isFound()) {
+            nextKeys[j] = remainingKeys[k];
+            nextResults[j++] = remainingResults[k];
+          }
+        }
+        remainingKeys = nextKeys;
+        remainingResults = nextResults;
+      }
+    }
+  }
+
+  @Override
+  public long getMemoryUsage() {
+    long memoryUsage = 0;
+    for (Reader layer : layers) {
+      if (layer instanceof MemoryUsageReporter) {
+        memoryUsage += ((MemoryUsageReporter) layer).getMemoryUsage();
+      }
+    }
+    return memoryUsage;
+  }
+}
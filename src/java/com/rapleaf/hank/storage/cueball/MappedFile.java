@@ -0,0 +1,133 @@
+/**
+ *  Copyright 2011 Rapleaf
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.rapleaf.hank.storage.cueball;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * Read-only memory mapping of a file that may be larger than the 2GB that a
+ * single MappedByteBuffer can address. The file is mapped as a series of
+ * segments, each of which overlaps the next by <i>overlap</i> bytes, so any
+ * range of at most <i>overlap</i> bytes can be served from one segment.
+ */
+final class MappedFile {
+  static final long DEFAULT_SEGMENT_SIZE = 1L << 30;
+
+  private final MappedByteBuffer[] segments;
+  private final long segmentSize;
+  private final long length;
+  private final int overlap;
+  // each thread's views of the segments, so that reads don't allocate
+  private final ThreadLocal<ByteBuffer[]> views;
+
+  public MappedFile(FileChannel channel, long length, int overlap) throws IOException {
+    this(channel, length, overlap, DEFAULT_SEGMENT_SIZE);
+  }
+
+  MappedFile(FileChannel channel, long length, int overlap, long segmentSize) throws IOException {
+    if (segmentSize + overlap > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Segment size " + segmentSize
+          + " plus overlap " + overlap + " exceeds the maximum mappable size!");
+    }
+    this.length = length;
+    this.overlap = overlap;
+    this.segmentSize = segmentSize;
+
+    int numSegments = (int) ((length + segmentSize - 1) / segmentSize);
+    segments = new MappedByteBuffer[numSegments];
+    for (int i = 0; i < numSegments; i++) {
+      long start = i * segmentSize;
+      long size = Math.min(length - start, segmentSize + overlap);
+      segments[i] = channel.map(MapMode.READ_ONLY, start, size);
+    }
+    views = new ThreadLocal<ByteBuffer[]>() {
+      @Override
+      protected ByteBuffer[] initialValue() {
+        return new ByteBuffer[segments.length];
+      }
+    };
+  }
+
+  /**
+   * Copy <i>len</i> bytes starting at file position <i>position</i> into
+   * <i>dst</i>. Reads that run past the end of the file are truncated.
+   * 
+   * @return the number of bytes copied
+   */
+  public int read(long position, byte[] dst, int off, int len) {
+    if (len > overlap) {
+      throw new IllegalArgumentException("Can't read " + len
+          + " bytes at once from a mapping with an overlap of " + overlap + " bytes!");
+    }
+    if (position >= length) {
+      return 0;
+    }
+    ByteBuffer segment = getView(position);
+    int toRead = Math.min(len, segment.remaining());
+    segment.get(dst, off, toRead);
+    return toRead;
+  }
+
+  /**
+   * Get a view of <i>len</i> bytes starting at file position
+   * <i>position</i>, without copying them. Views that run past the end of the
+   * file are truncated.
+   * 
+   * The view is shared with later calls on the same thread, so it's only good
+   * until the next read() or slice().
+   */
+  public ByteBuffer slice(long position, int len) {
+    if (len > overlap) {
+      throw new IllegalArgumentException("Can't read " + len
+          + " bytes at once from a mapping with an overlap of " + overlap + " bytes!");
+    }
+    if (position >= length) {
+      return ByteBuffer.allocate(0);
+    }
+    ByteBuffer segment = getView(position);
+    segment.limit(segment.position() + Math.min(len, segment.remaining()));
+    return segment;
+  }
+
+  /**
+   * @return this thread's view of the segment holding <i>position</i>,
+   *         positioned there with its limit at the end of the segment
+   */
+  private ByteBuffer getView(long position) {
+    int i = (int) (position / segmentSize);
+    ByteBuffer[] threadViews = views.get();
+    ByteBuffer view = threadViews[i];
+    if (view == null) {
+      view = segments[i].duplicate();
+      threadViews[i] = view;
+    }
+    view.clear();
+    view.position((int) (position % segmentSize));
+    return view;
+  }
+
+  public long length() {
+    return length;
+  }
+
+  int getNumSegments() {
+    return segments.length;
+  }
+}
@@ -0,0 +1,146 @@
+/**
+ *  Copyright 2011 Rapleaf
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.rapleaf.hank.storage.cueball;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Every decompressed block of a Cueball file, held off-heap for the in-memory
+ * read mode. Blocks are decompressed straight into a series of direct chunks
+ * as the file is loaded, so each block is only decompressed once, and a block
+ * never straddles two chunks. Each chunk wastes less than a block's worth of
+ * space at its end, except the last, which is trimmed to fit once loading is
+ * done.
+ */
+final class MemoryTable {
+  static final int DEFAULT_CHUNK_SIZE = 64 * 1024 * 1024;
+  // chunk, start and end of each block
+  private static final int BLOCK_ENTRY_SIZE = 12;
+
+  /**
+   * Fills a table one block at a time, in hash prefix order.
+   */
+  static final class Builder {
+    private final int maxBlockSize;
+    private final int chunkSize;
+    private final ByteBuffer blocks;
+    private ByteBuffer[] chunks = new ByteBuffer[1];
+    private int numChunks = 0;
+    private int numBlocksLeft;
+
+    /**
+     * @param numBlocks
+     *          the number of hash prefixes
+     * @param numNonEmptyBlocks
+     *          how many of them have a block, which along with
+     *          <i>maxBlockSize</i> bounds how much space is still needed
+     */
+    public Builder(int numBlocks, int numNonEmptyBlocks, int maxBlockSize, int chunkSize) {
+      this.maxBlockSize = maxBlockSize;
+      this.chunkSize = Math.max(chunkSize, maxBlockSize);
+      this.numBlocksLeft = numNonEmptyBlocks;
+      blocks = ByteBuffer.allocateDirect(numBlocks * BLOCK_ENTRY_SIZE);
+    }
+
+    /**
+     * @return a buffer to decompress the next non-empty block into, from its
+     *         position up to its limit
+     */
+    public ByteBuffer startBlock() {
+      ByteBuffer chunk = numChunks == 0 ? null : chunks[numChunks - 1];
+      if (chunk == null || chunk.capacity() - chunk.position() < maxBlockSize) {
+        long spaceLeft = (long) maxBlockSize * numBlocksLeft;
+        chunk = ByteBuffer.allocateDirect((int) Math.min(chunkSize, spaceLeft));
+        if (numChunks == chunks.length) {
+          ByteBuffer[] grown = new ByteBuffer[numChunks * 2];
+          System.arraycopy(chunks, 0, grown, 0, numChunks);
+          chunks = grown;
+        }
+        chunks[numChunks++] = chunk;
+      }
+      chunk.limit(chunk.position() + maxBlockSize);
+      return chunk;
+    }
+
+    /**
+     * Record the block for <i>hashPrefix</i>, which has been decompressed
+     * into the buffer from startBlock(), leaving its position at the end of
+     * the block.
+     */
+    public void endBlock(int hashPrefix, int start) {
+      ByteBuffer chunk = chunks[numChunks - 1];
+      blocks.putInt(hashPrefix * BLOCK_ENTRY_SIZE, numChunks - 1);
+      blocks.putInt(hashPrefix * BLOCK_ENTRY_SIZE + 4, start);
+      blocks.putInt(hashPrefix * BLOCK_ENTRY_SIZE + 8, chunk.position());
+      numBlocksLeft--;
+    }
+
+    public MemoryTable build() {
+      ByteBuffer[] result = new ByteBuffer[numChunks];
+      System.arraycopy(chunks, 0, result, 0, numChunks);
+      if (numChunks > 0) {
+        ByteBuffer last = result[numChunks - 1];
+        if (last.position() < last.capacity()) {
+          last.flip();
+          ByteBuffer trimmed = ByteBuffer.allocateDirect(last.remaining());
+          trimmed.put(last);
+          result[numChunks - 1] = trimmed;
+        }
+      }
+      for (ByteBuffer chunk : result) {
+        chunk.clear();
+      }
+      // empty blocks are left as chunk 0, from 0 to 0
+      return new MemoryTable(result, blocks);
+    }
+  }
+
+  private final ByteBuffer[] chunks;
+  private final ByteBuffer blocks;
+
+  private MemoryTable(ByteBuffer[] chunks, ByteBuffer blocks) {
+    this.chunks = chunks;
+    this.blocks = blocks;
+  }
+
+  /**
+   * @return the chunk holding the block for <i>hashPrefix</i>. Only absolute
+   *         gets may be used on it, since it's shared between threads.
+   */
+  public ByteBuffer getChunk(int hashPrefix) {
+    return chunks.length == 0 ? null : chunks[blocks.getInt(hashPrefix * BLOCK_ENTRY_SIZE)];
+  }
+
+  public int getStart(int hashPrefix) {
+    return blocks.getInt(hashPrefix * BLOCK_ENTRY_SIZE + 4);
+  }
+
+  public int getEnd(int hashPrefix) {
+    return blocks.getInt(hashPrefix * BLOCK_ENTRY_SIZE + 8);
+  }
+
+  public long getMemoryUsage() {
+    long usage = blocks.capacity();
+    for (ByteBuffer chunk : chunks) {
+      usage += chunk.capacity();
+    }
+    return usage;
+  }
+
+  int getNumChunks() {
+    return chunks.length;
+  }
+}
@@ -0,0 +1,51 @@
+/**
+ *  Copyright 2011 Rapleaf
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.rapleaf.hank.storage.cueball;
+
+/**
+ * How a CueballReader gets at the bytes of its base file.
+ */
+public enum ReadMode {
+  /**
+   * Positional reads through a FileChannel. Every lookup costs a read syscall
+   * and a copy out of the page cache.
+   */
+  CHANNEL,
+
+  /**
+   * The base file is memory-mapped and lookups are served straight out of the
+   * mapping, so hot partitions never leave user space.
+   */
+  MMAP,
+
+  /**
+   * The whole base file is decompressed into an off-heap table when the
+   * reader is constructed, and lookups never touch the file again. Meant for
+   * small, latency-critical domains.
+   */
+  MEMORY;
+
+  public static ReadMode parse(String s) {
+    if (s == null) {
+      return CHANNEL;
+    }
+    try {
+      return valueOf(s.toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Unknown read mode '" + s + "'!", e);
+    }
+  }
+}
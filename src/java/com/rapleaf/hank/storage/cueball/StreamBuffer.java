@@ -22,10 +22,24 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import com.rapleaf.hank.compress.CompressionCodec;
 import com.rapleaf.hank.util.Bytes;
 
+/**
+ * Reads the records of a Cueball file in order, a block at a time.
+ * 
+ * If given an executor to read ahead with, it's double-buffered: as soon as a
+ * block is loaded, the next non-empty one is read into the spare compressed
+ * buffer on the executor, so that the disk overlaps with consuming the current
+ * block. Blocks are only decompressed once their records are asked for, so
+ * blocks that are copied as they are (see readCompressedBlock()) are never
+ * decompressed at all.
+ */
 public final class StreamBuffer {
   private final int relativeIndex;
   private final int keyHashSize;
@@ -36,13 +50,22 @@ public final class StreamBuffer {
   private boolean complete;
   private final FileChannel channel;
 
-  private final long[] hashIndex;
-  private final byte[] uncompressedBuffer;
-  private final byte[] compressedBuffer;
+  private final HashIndex hashIndex;
+  private final BloomFilters bloomFilters;
+  private final int bloomFilterBitsPerKey;
+  private final int pageSize;
+  private byte[] uncompressedBuffer;
+  private byte[] compressedBuffer;
+
+  private final ExecutorService readAheadExecutor;
+  private byte[] readAheadCompressedBuffer;
+  private int readAheadHashIndexIdx = -1;
+  private Future<Integer> readAhead;
 
   private int currentHashIndexIdx = -1;
+  // the next non-empty block after the current one, once it's been looked up
+  private int nextHashIndexIdx = -1;
   private final CompressionCodec compressionCodec;
-  private final long dataLength;
 
   public StreamBuffer(String filePath,
       int relativeIndex,
@@ -50,6 +73,23 @@ public final class StreamBuffer {
       int valueSize,
       int hashIndexBits,
       CompressionCodec compressionCodec)
+  throws IOException {
+    this(filePath, relativeIndex, keyHashSize, valueSize, hashIndexBits, compressionCodec, null);
+  }
+
+  /**
+   * @param readAheadExecutor
+   *          if not null, the next block is read on this executor while the
+   *          current one is consumed. There's only ever
+   *          one block in flight per StreamBuffer.
+   */
+  public StreamBuffer(String filePath,
+      int relativeIndex,
+      int keyHashSize,
+      int valueSize,
+      int hashIndexBits,
+      CompressionCodec compressionCodec,
+      ExecutorService readAheadExecutor)
   throws IOException {
     this.relativeIndex = relativeIndex;
     this.compressionCodec = compressionCodec;
@@ -59,10 +99,16 @@ public final class StreamBuffer {
     this.fullRecordSize = valueSize + keyHashSize;
 
     Footer footer = new Footer(channel, hashIndexBits);
-    dataLength = footer.getDataLength();
-    hashIndex = footer.getHashIndex();
+    hashIndex = footer.getIndex();
+    bloomFilters = footer.getBloomFilters();
+    bloomFilterBitsPerKey = bloomFilters == null ? 0 : bloomFilters.getBitsPerKey();
+    pageSize = footer.getPageSize();
     uncompressedBuffer = new byte[footer.getMaxUncompressedBufferSize()];
     compressedBuffer = new byte[footer.getMaxCompressedBufferSize()];
+    this.readAheadExecutor = readAheadExecutor;
+    if (readAheadExecutor != null) {
+      readAheadCompressedBuffer = new byte[compressedBuffer.length];
+    }
   }
 
   public boolean anyRemaining() throws IOException {
@@ -74,62 +120,141 @@ public final class StreamBuffer {
     }
 
     // refill the buffer
+    final int compressedBytesRead = readCompressedBlock();
+    if (complete) {
+      return false;
+    }
+    // decompress the compressed block into the uncompressed buffer
+    int decompressedSize = compressionCodec.decompress(compressedBuffer, 0, compressedBytesRead, uncompressedBuffer, 0);
 
-    // advance to the next non-empty block
-    currentHashIndexIdx++;
-    while (currentHashIndexIdx < hashIndex.length) {
-      if (hashIndex[currentHashIndexIdx] != -1) {
-        break;
-      }
-      currentHashIndexIdx++;
+    // adjust the pointers 
+    currentOffset = 0;
+    currentLimit = decompressedSize;
+    return true;
+  }
+
+  /**
+   * @return the hash prefix of the block the next record is in, or the number
+   *         of hash prefixes if there are no more records. Blocks aren't read
+   *         ahead of time to find out.
+   */
+  public int getNextBlock() {
+    if (currentOffset < currentLimit) {
+      return currentHashIndexIdx;
+    }
+    if (complete) {
+      return hashIndex.size();
+    }
+    if (nextHashIndexIdx == -1) {
+      nextHashIndexIdx = findNonEmptyBlock(currentHashIndexIdx + 1);
+    }
+    return nextHashIndexIdx;
+  }
+
+  private int findNonEmptyBlock(int hashIndexIdx) {
+    while (hashIndexIdx < hashIndex.size() && hashIndex.getOffset(hashIndexIdx) == -1) {
+      hashIndexIdx++;
     }
+    return hashIndexIdx;
+  }
+
+  /**
+   * Skip ahead to the block for <i>hashPrefix</i>, or the first non-empty one
+   * after it. Only valid before anything has been read.
+   */
+  public void seekToBlock(int hashPrefix) {
+    currentHashIndexIdx = hashPrefix - 1;
+    nextHashIndexIdx = -1;
+  }
 
-    if (currentHashIndexIdx >= hashIndex.length) {
+  /**
+   * Read the next block into the compressed buffer, and move past it without
+   * decompressing it. Only valid once the records of the current block have
+   * all been consumed.
+   * 
+   * @return the compressed length of the block
+   */
+  public int readCompressedBlock() throws IOException {
+    currentHashIndexIdx = getNextBlock();
+    nextHashIndexIdx = -1;
+    currentOffset = 0;
+    currentLimit = 0;
+    if (currentHashIndexIdx >= hashIndex.size()) {
       // there are no more blocks. we're all done
       complete = true;
-      return false;
+      return 0;
     }
 
-    // there's at least one block left.
-    
-    long upperOffset;
-    if (currentHashIndexIdx == hashIndex.length - 1) {
-      // actually, there's *exactly* one block left. we need to compare the
-      // current offset to the data length to determine the compressed block
-      // size.
-      upperOffset = dataLength;
+    final int compressedLength;
+    if (readAhead != null && readAheadHashIndexIdx == currentHashIndexIdx) {
+      // the block is already in the spare buffer. swap it in
+      compressedLength = get(readAhead);
+      readAhead = null;
+      byte[] tmp = compressedBuffer;
+      compressedBuffer = readAheadCompressedBuffer;
+      readAheadCompressedBuffer = tmp;
     } else {
-      // so this isn't the last block in the index, but it might still be the
-      // last block in the file.
-      int nextHashIndexIdx = currentHashIndexIdx + 1;
-      while (nextHashIndexIdx < hashIndex.length) {
-        if (hashIndex[nextHashIndexIdx] != -1) {
-          break;
-        }
-        nextHashIndexIdx++;
+      // there's at least one block left. read it from disk into the
+      // compressed buffer
+      compressedLength = readFully(channel,
+          compressedBuffer,
+          hashIndex.getOffset(currentHashIndexIdx),
+          hashIndex.getLength(currentHashIndexIdx));
+    }
+
+    if (readAheadExecutor != null) {
+      readAhead(findNonEmptyBlock(currentHashIndexIdx + 1));
+    }
+    return compressedLength;
+  }
+
+  private void readAhead(final int hashIndexIdx) {
+    if (hashIndexIdx >= hashIndex.size()) {
+      return;
+    }
+    final byte[] compressed = readAheadCompressedBuffer;
+    readAheadHashIndexIdx = hashIndexIdx;
+    readAhead = readAheadExecutor.submit(new Callable<Integer>() {
+      @Override
+      public Integer call() throws IOException {
+        return readFully(channel,
+            compressed,
+            hashIndex.getOffset(hashIndexIdx),
+            hashIndex.getLength(hashIndexIdx));
       }
-      // need to examine the "next" we got back...
-      if (nextHashIndexIdx == hashIndex.length) {
-        // turns out that it was the last block in the file, so we should
-        // compare against the end of the data length.
-        upperOffset = dataLength;
-      } else {
-        // sweet, there's another block there somewhere. use that offset as the
-        // one to determine our compressed block length.
-        upperOffset = hashIndex[nextHashIndexIdx];
+    });
+  }
+
+  private static int get(Future<Integer> future) throws IOException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
       }
+      throw new RuntimeException(e.getCause());
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted while reading ahead", e);
     }
+  }
 
-    final int blockLength = (int) (upperOffset - hashIndex[currentHashIndexIdx]);
-    // read the compressed block from disk into the compressed buffer
-    final int compressedBytesRead = readFully(channel, compressedBuffer, blockLength);
-    // decompress the compressed block into the uncompressed buffer
-    final int decompressedSize = compressionCodec.decompress(compressedBuffer, 0, compressedBytesRead, uncompressedBuffer, 0);
+  public byte[] getCompressedBuffer() {
+    return compressedBuffer;
+  }
 
-    // adjust the pointers 
-    currentOffset = 0;
-    currentLimit = decompressedSize;
-    return true;
+  /**
+   * @return the largest any of the file's blocks can be once decompressed
+   */
+  public int getMaxUncompressedBlockSize() {
+    return uncompressedBuffer.length;
+  }
+
+  /**
+   * @return a copy of the Bloom filter for <i>hashPrefix</i>'s block, or null
+   *         if the file doesn't have Bloom filters
+   */
+  public byte[] getBloomFilter(int hashPrefix) {
+    return bloomFilters == null ? null : bloomFilters.getFilter(hashPrefix);
   }
 
   public int compareTo(StreamBuffer other) {
@@ -144,6 +269,22 @@ public final class StreamBuffer {
     currentOffset += fullRecordSize;
   }
 
+  /**
+   * @return the bits per key of the file's Bloom filters, or 0 if it doesn't
+   *         have any
+   */
+  public int getBloomFilterBitsPerKey() {
+    return bloomFilterBitsPerKey;
+  }
+
+  /**
+   * @return the page size the file's blocks are aligned to, or 0 if they
+   *         aren't
+   */
+  public int getPageSize() {
+    return pageSize;
+  }
+
   public int getIndex() {
     return relativeIndex;
   }
@@ -156,11 +297,21 @@ public final class StreamBuffer {
     return currentOffset;
   }
 
-  private static int readFully(FileChannel channel, byte[] buf, int readLength) throws IOException {
-    return channel.read(ByteBuffer.wrap(buf, 0, readLength));
+  private static int readFully(FileChannel channel, byte[] buf, long offset, int readLength) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(buf, 0, readLength);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, offset + buffer.position()) == -1) {
+        break;
+      }
+    }
+    return buffer.position();
   }
 
   public void close() throws IOException {
+    if (readAhead != null) {
+      readAhead.cancel(true);
+      readAhead = null;
+    }
     channel.close();
   }
 }
\ No newline at end of file
@@ -18,4 +18,11 @@ package com.rapleaf.hank.storage.cueball;
 
 public interface ValueTransformer {
   public void transform(byte[] buf, int off, int relIndex);
+
+  /**
+   * @return true if transform() leaves every value from the input at
+   *         <i>relIndex</i> as it is, so that blocks from that input can be
+   *         copied without being decompressed
+   */
+  public boolean isIdentity(int relIndex);
 }
@@ -35,6 +35,7 @@ import com.rapleaf.hank.config.PartservConfigurator;
 import com.rapleaf.hank.hasher.Hasher;
 import com.rapleaf.hank.storage.OutputStreamFactory;
 import com.rapleaf.hank.storage.Reader;
+import com.rapleaf.hank.storage.RecordHeat;
 import com.rapleaf.hank.storage.StorageEngine;
 import com.rapleaf.hank.storage.StorageEngineFactory;
 import com.rapleaf.hank.storage.Updater;
@@ -62,6 +63,18 @@ public class Curly implements StorageEngine {
     public static final String FILE_OPS_FACTORY_KEY = "file_ops_factory";
     public static final String HASHER_KEY = "hasher";
     private static final String COMPRESSION_CODEC = "compression_codec";
+    public static final String BLOOM_FILTER_BITS_PER_KEY_KEY = Cueball.Factory.BLOOM_FILTER_BITS_PER_KEY_KEY;
+    public static final String SINGLE_FLIGHT_KEY = Cueball.Factory.SINGLE_FLIGHT_KEY;
+    public static final String COMPRESSION_THREADS_KEY = Cueball.Factory.COMPRESSION_THREADS_KEY;
+    public static final String PAGE_SIZE_KEY = Cueball.Factory.PAGE_SIZE_KEY;
+    public static final String MERGE_THREADS_KEY = Cueball.Factory.MERGE_THREADS_KEY;
+    public static final String MERGE_READ_AHEAD_KEY = Cueball.Factory.MERGE_READ_AHEAD_KEY;
+    public static final String VALUE_LENGTH_SIZE_KEY = "value_length_size";
+    public static final String RECORD_FILE_BLOCK_SIZE_KEY = "record_file_block_size";
+    public static final String COMPACTION_DEAD_RATIO_KEY = "compaction_dead_ratio";
+    public static final String INLINE_VALUE_SIZE_KEY = "inline_value_size";
+    public static final String VALUE_DEDUP_BYTES_KEY = "value_dedup_bytes";
+    public static final String HOT_RECORD_HEAT_KEY = "hot_record_heat";
 
     private static final Set<String> REQUIRED_KEYS = new HashSet<String>(Arrays.asList(
         REMOTE_DOMAIN_ROOT_KEY,
@@ -106,7 +119,75 @@ public class Curly implements StorageEngine {
           (String)options.get(REMOTE_DOMAIN_ROOT_KEY),
           fileOpsFactory,
           compressionCodecClass,
-          domainName);
+          domainName,
+          getOptions(options));
+    }
+
+    /**
+     * The optional settings in <i>options</i>, each off unless configured.
+     */
+    public static CurlyOptions getOptions(Map<String, Object> options) {
+      return new CurlyOptions()
+          .setKeyfileOptions(Cueball.Factory.getOptions(options))
+          .setValueLengthSize(getValueLengthSize(options))
+          .setRecordFileBlockSize(getRecordFileBlockSize(options))
+          .setCompactionDeadRatio(getCompactionDeadRatio(options))
+          .setInlineValueSize(getInlineValueSize(options))
+          .setValueDedupBytes(getValueDedupBytes(options))
+          .setHotRecordHeat(getHotRecordHeat(options));
+    }
+
+    /**
+     * Clustering hot records is optional, and off unless a heat is
+     * configured.
+     */
+    public static int getHotRecordHeat(Map<String, Object> options) {
+      Integer hotRecordHeat = (Integer)options.get(HOT_RECORD_HEAT_KEY);
+      return hotRecordHeat == null ? 0 : hotRecordHeat;
+    }
+
+    /**
+     * Value dedup is optional, and off unless the memory to spend on it is
+     * configured.
+     */
+    public static long getValueDedupBytes(Map<String, Object> options) {
+      Number dedupBytes = (Number)options.get(VALUE_DEDUP_BYTES_KEY);
+      return dedupBytes == null ? 0 : dedupBytes.longValue();
+    }
+
+    /**
+     * Inlining values is optional, and off unless a max inline value size is
+     * configured.
+     */
+    public static int getInlineValueSize(Map<String, Object> options) {
+      Integer inlineValueSize = (Integer)options.get(INLINE_VALUE_SIZE_KEY);
+      return inlineValueSize == null ? 0 : inlineValueSize;
+    }
+
+    /**
+     * Compaction is optional, and off unless a dead ratio is configured.
+     */
+    public static double getCompactionDeadRatio(Map<String, Object> options) {
+      Number deadRatio = (Number)options.get(COMPACTION_DEAD_RATIO_KEY);
+      return deadRatio == null ? 0 : deadRatio.doubleValue();
+    }
+
+    /**
+     * Record file block compression is optional, and off unless a block size
+     * is configured.
+     */
+    public static int getRecordFileBlockSize(Map<String, Object> options) {
+      Integer blockSize = (Integer)options.get(RECORD_FILE_BLOCK_SIZE_KEY);
+      return blockSize == null ? 0 : blockSize;
+    }
+
+    /**
+     * Storing value lengths in the keyfile is optional, and off unless a size
+     * is configured.
+     */
+    public static int getValueLengthSize(Map<String, Object> options) {
+      Integer valueLengthSize = (Integer)options.get(VALUE_LENGTH_SIZE_KEY);
+      return valueLengthSize == null ? 0 : valueLengthSize;
     }
   }
 
@@ -121,6 +202,7 @@ public class Curly implements StorageEngine {
   private final IFileOpsFactory fileOpsFactory;
   private final int hashIndexBits;
   private final Class<? extends CompressionCodec> compressionCodecClass;
+  private final CurlyOptions options;
 
   public Curly(int keyHashSize,
       Hasher hasher,
@@ -132,6 +214,38 @@ public class Curly implements StorageEngine {
       Class<? extends CompressionCodec> compressionCodecClass,
       String domainName)
   {
+    this(keyHashSize,
+        hasher,
+        maxAllowedPartSize,
+        hashIndexBits,
+        recordFileReadBufferBytes,
+        remoteDomainRoot,
+        fileOpsFactory,
+        compressionCodecClass,
+        domainName,
+        new CurlyOptions());
+  }
+
+  /**
+   * @param options
+   *          the optional settings of the record files and keyfiles. See
+   *          CurlyOptions.
+   */
+  public Curly(int keyHashSize,
+      Hasher hasher,
+      long maxAllowedPartSize,
+      int hashIndexBits,
+      int recordFileReadBufferBytes,
+      String remoteDomainRoot,
+      IFileOpsFactory fileOpsFactory,
+      Class<? extends CompressionCodec> compressionCodecClass,
+      String domainName,
+      CurlyOptions options)
+  {
+    if (options.getInlineValueSize() > InlineValues.MAX_INLINE_VALUE_SIZE) {
+      throw new IllegalArgumentException("Values of up to " + InlineValues.MAX_INLINE_VALUE_SIZE
+          + " bytes can be inlined, not " + options.getInlineValueSize() + "!");
+    }
     this.keyHashSize = keyHashSize;
     this.hashIndexBits = hashIndexBits;
     this.recordFileReadBufferBytes = recordFileReadBufferBytes;
@@ -139,16 +253,20 @@ public class Curly implements StorageEngine {
     this.fileOpsFactory = fileOpsFactory;
     this.compressionCodecClass = compressionCodecClass;
     this.domainName = domainName;
-    this.offsetSize = (int) (Math.ceil(Math.ceil(Math.log(maxAllowedPartSize)
-        / Math.log(2)) / 8.0));
+    this.options = options;
+    this.offsetSize = RecordFileBlocks.getOffsetSize(maxAllowedPartSize, options.getRecordFileBlockSize());
+    // keyfile deltas only make sense along with their record files, so
+    // CurlyUpdater always merges them, and the keyfile engine's layered delta
+    // settings never come into play
     this.cueballStorageEngine = new Cueball(keyHashSize,
         hasher,
-        offsetSize,
+        InlineValues.getKeyfileValueSize(offsetSize, options.getValueLengthSize(), options.getInlineValueSize()),
         hashIndexBits,
         remoteDomainRoot,
         fileOpsFactory,
         compressionCodecClass,
-        domainName);
+        domainName,
+        options.getKeyfileOptions());
   }
 
   @Override
@@ -156,7 +274,13 @@ public class Curly implements StorageEngine {
   throws IOException {
     return new CurlyReader(getLocalDir(configurator, partNum),
         recordFileReadBufferBytes, cueballStorageEngine.getReader(configurator,
-            partNum));
+            partNum),
+        offsetSize,
+        options,
+        getCompressionCodec(),
+        configurator.getValueCache(),
+        configurator.getBlockCache(),
+        getHeat(configurator, partNum));
   }
 
   @Override
@@ -165,7 +289,7 @@ public class Curly implements StorageEngine {
   throws IOException {
     OutputStream outputStream = streamFactory.getOutputStream(partNum, getName(versionNumber, base));
     Writer cueballWriter = cueballStorageEngine.getWriter(streamFactory, partNum, versionNumber, base);
-    return new CurlyWriter(outputStream, cueballWriter, offsetSize);
+    return new CurlyWriter(outputStream, cueballWriter, offsetSize, options, getCompressionCodec());
   }
 
   private String padVersion(int versionNumber) {
@@ -183,7 +307,19 @@ public class Curly implements StorageEngine {
         offsetSize,
         fileOpsFactory.getFileOps(localDir, remotePartRoot),
         getCompressionCodec(),
-        hashIndexBits);
+        hashIndexBits,
+        options,
+        configurator.getValueCache(),
+        configurator.getBlockCache(),
+        configurator.getRecordHeat());
+  }
+
+  private RecordHeat.Partition getHeat(PartservConfigurator configurator, int partNum) {
+    RecordHeat recordHeat = configurator.getRecordHeat();
+    if (options.getHotRecordHeat() <= 0 || recordHeat == null) {
+      return null;
+    }
+    return recordHeat.getPartition(getLocalDir(configurator, partNum));
   }
 
   private CompressionCodec getCompressionCodec() throws IOException {
@@ -243,6 +379,6 @@ public class Curly implements StorageEngine {
         + ", hashIndexBits=" + hashIndexBits + ", keyHashSize=" + keyHashSize
         + ", offsetSize=" + offsetSize + ", recordFileReadBufferBytes="
         + recordFileReadBufferBytes + ", remoteDomainRoot=" + remoteDomainRoot
-        + "]";
+        + ", options=" + options + "]";
   }
 }
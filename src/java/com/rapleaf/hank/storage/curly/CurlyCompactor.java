@@ -0,0 +1,402 @@
+/**
+ *  Copyright 2011 Rapleaf
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.rapleaf.hank.storage.curly;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.rapleaf.hank.compress.CompressionCodec;
+import com.rapleaf.hank.storage.RecordHeat;
+import com.rapleaf.hank.storage.Result;
+import com.rapleaf.hank.storage.Writer;
+import com.rapleaf.hank.storage.cueball.CueballOptions;
+import com.rapleaf.hank.storage.cueball.CueballWriter;
+import com.rapleaf.hank.storage.cueball.StreamBuffer;
+import com.rapleaf.hank.util.EncodingHelper;
+
+/**
+ * Reclaims the records that deltas have overwritten. CurlyMerger only ever
+ * appends to the base, so without compaction a record file grows with every
+ * update, dead records and all.
+ * 
+ * The dead fraction of the record file is estimated with a pass over the
+ * keyfile. If it's above the configured threshold, the live records are
+ * copied to a new record file in keyfile order, and a new keyfile is written
+ * alongside with the new offsets, in a single pass.
+ * 
+ * Records shared by deduplicated values are counted once per key by the
+ * estimate, so files written with dedup are compacted conservatively. The
+ * copy dedups again, so that shared records stay shared.
+ * 
+ * With read stats from serving the partition (see RecordHeat), compaction can
+ * also pack the hot records together at the front of the record file, so
+ * that they share pages, and a small part of the file in the page cache
+ * serves most of the reads. The clustering degrades as records cool down and
+ * others heat up, so the partition is only rewritten for it once too few of
+ * the records at the front are hot.
+ */
+public class CurlyCompactor implements ICurlyCompactor {
+  /**
+   * Hands CurlyWriter's keyfile entries, whose "keys" are already hashed, to
+   * the new keyfile, or holds on to them while the hot records are written
+   * ahead of the rest.
+   */
+  private static final class KeyfileWriter implements Writer {
+    private final CueballWriter keyfile;
+    private Map<ByteBuffer, byte[]> heldValues;
+
+    public KeyfileWriter(CueballWriter keyfile) {
+      this.keyfile = keyfile;
+    }
+
+    @Override
+    public void write(ByteBuffer keyHash, ByteBuffer value) throws IOException {
+      if (heldValues == null) {
+        keyfile.writeHash(keyHash, value);
+        return;
+      }
+      byte[] keyHashCopy = new byte[keyHash.remaining()];
+      keyHash.duplicate().get(keyHashCopy);
+      byte[] valueCopy = new byte[value.remaining()];
+      value.duplicate().get(valueCopy);
+      heldValues.put(ByteBuffer.wrap(keyHashCopy), valueCopy);
+    }
+
+    @Override
+    public void close() throws IOException {
+      keyfile.close();
+    }
+  }
+
+  private static final int READ_BUFFER_SIZE = 32 * 1024;
+  private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+  // record sizes are sampled at a regular stride across the whole keyfile, so
+  // that the sample doesn't depend on how sizes are spread over key hashes
+  private static final int MAX_SAMPLES = 1024;
+  // the fraction of the hot records that have to be at the front of the
+  // record file for it to count as clustered
+  private static final double MIN_HOT_FRONT_FRACTION = 0.9;
+
+  private final int keyHashSize;
+  private final int offsetSize;
+  private final CurlyOptions options;
+  // reads the live records once, so it skips single flight
+  private final CurlyOptions readerOptions;
+  private final int valueLengthSize;
+  private final int recordFileBlockSize;
+  private final int keyfileValueSize;
+  private final int hashIndexBits;
+  private final CompressionCodec compressionCodec;
+  private final double maxDeadRatio;
+  private final int hotRecordHeat;
+
+  /**
+   * @param options
+   *          the layout of the partition, which the compacted files keep. If
+   *          the compaction dead ratio is positive, it's the fraction of the
+   *          record file that can be dead before it's compacted. If the hot
+   *          record heat is positive, records with at least that heat (out of
+   *          RecordHeat.MAX_HEAT) are clustered at the front of the record
+   *          file whenever there are read stats for the partition.
+   */
+  public CurlyCompactor(int keyHashSize,
+      int offsetSize,
+      int hashIndexBits,
+      CompressionCodec compressionCodec,
+      CurlyOptions options)
+  {
+    this.keyHashSize = keyHashSize;
+    this.offsetSize = offsetSize;
+    this.options = options;
+    this.readerOptions = new CurlyOptions()
+        .setValueLengthSize(options.getValueLengthSize())
+        .setRecordFileBlockSize(options.getRecordFileBlockSize())
+        .setInlineValueSize(options.getInlineValueSize());
+    this.valueLengthSize = options.getValueLengthSize();
+    this.recordFileBlockSize = options.getRecordFileBlockSize();
+    this.keyfileValueSize = InlineValues.getKeyfileValueSize(offsetSize, valueLengthSize, options.getInlineValueSize());
+    this.hashIndexBits = hashIndexBits;
+    this.compressionCodec = compressionCodec;
+    this.maxDeadRatio = options.getCompactionDeadRatio();
+    this.hotRecordHeat = options.getHotRecordHeat();
+  }
+
+  @Override
+  public boolean compact(String localPartitionRoot, String cueballBasePath, RecordHeat.Partition heat) throws IOException {
+    String curlyBasePath = Curly.getBases(localPartitionRoot).last();
+    CurlyReader records = getRecordReader(localPartitionRoot);
+    boolean clusterHotRecords = hotRecordHeat > 0 && heat != null && heat.getNumReads() > 0
+        && getHotFrontFraction(records, cueballBasePath, heat) < MIN_HOT_FRONT_FRACTION;
+    if (!clusterHotRecords
+        && !(maxDeadRatio > 0 && estimateDeadRatio(records, curlyBasePath, cueballBasePath) > maxDeadRatio)) {
+      records.close();
+      return false;
+    }
+    rewrite(records, curlyBasePath, cueballBasePath, clusterHotRecords ? heat : null);
+    return true;
+  }
+
+  /**
+   * Rewrite the live records and the keyfile that points at them.
+   * 
+   * @param heat
+   *          if not null, the records at least as hot as the configured heat
+   *          go first
+   */
+  void rewrite(CurlyReader records, String curlyBasePath, String cueballBasePath, RecordHeat.Partition heat) throws IOException {
+    String newCurlyBasePath = curlyBasePath + ".compacting";
+    String newCueballBasePath = cueballBasePath + ".compacting";
+    StreamBuffer keyfile = openKeyfile(cueballBasePath);
+    final CueballWriter cueballWriter = new CueballWriter(new FileOutputStream(newCueballBasePath),
+        keyHashSize,
+        null,
+        keyfileValueSize,
+        compressionCodec,
+        hashIndexBits,
+        new CueballOptions()
+            .setBloomFilterBitsPerKey(keyfile.getBloomFilterBitsPerKey())
+            .setPageSize(keyfile.getPageSize()));
+    KeyfileWriter keyfileWriter = new KeyfileWriter(cueballWriter);
+    CurlyWriter writer = new CurlyWriter(new BufferedOutputStream(new FileOutputStream(newCurlyBasePath), WRITE_BUFFER_SIZE),
+        keyfileWriter,
+        offsetSize,
+        options,
+        compressionCodec);
+
+    Result result = new Result();
+    Map<ByteBuffer, byte[]> hotKeyfileValues = null;
+    if (heat != null) {
+      // write the hot records at the front of the record file first, and hold
+      // on to their keyfile values until their turn comes in keyfile order
+      hotKeyfileValues = new HashMap<ByteBuffer, byte[]>();
+      keyfileWriter.heldValues = hotKeyfileValues;
+      while (keyfile.anyRemaining()) {
+        ByteBuffer keyfileValue = getKeyfileValue(keyfile);
+        if (!records.isInline(keyfileValue) && heat.getHeat(records.getOffset(keyfileValue)) >= hotRecordHeat) {
+          records.getRecord(keyfileValue, result);
+          writer.write(getKeyHash(keyfile), result.getBuffer());
+        }
+        keyfile.consume();
+      }
+      keyfile.close();
+      keyfileWriter.heldValues = null;
+      keyfile = openKeyfile(cueballBasePath);
+    }
+
+    while (keyfile.anyRemaining()) {
+      ByteBuffer keyHash = getKeyHash(keyfile);
+      byte[] hotKeyfileValue = hotKeyfileValues == null ? null : hotKeyfileValues.get(keyHash);
+      if (hotKeyfileValue != null) {
+        cueballWriter.writeHash(keyHash, ByteBuffer.wrap(hotKeyfileValue));
+      } else {
+        records.getRecord(getKeyfileValue(keyfile), result);
+        writer.write(keyHash, result.getBuffer());
+      }
+      keyfile.consume();
+    }
+    keyfile.close();
+    writer.close();
+    records.close();
+
+    rename(newCurlyBasePath, curlyBasePath);
+    rename(newCueballBasePath, cueballBasePath);
+  }
+
+  /**
+   * Estimate the fraction of the record file that no keyfile entry points to.
+   * For block-compressed record files, it's the fraction of the uncompressed
+   * records. Without value lengths in the keyfile, record sizes are sampled
+   * from every <i>stride</i>th record, and whenever the sample fills up, every
+   * other sample is dropped and the stride doubled. That keeps the sample
+   * spread over the whole keyfile in a single pass.
+   */
+  double estimateDeadRatio(CurlyReader records, String curlyBasePath, String cueballBasePath) throws IOException {
+    long totalBytes = getUncompressedSize(curlyBasePath);
+    if (totalBytes == 0) {
+      return 0;
+    }
+
+    StreamBuffer keyfile = openKeyfile(cueballBasePath);
+    Result result = new Result();
+    long exactBytes = 0;
+    // the records in the record file whose sizes have to be sampled
+    long numRecords = 0;
+    long stride = 1;
+    int[] samples = new int[MAX_SAMPLES];
+    int numSamples = 0;
+    while (keyfile.anyRemaining()) {
+      ByteBuffer keyfileValue = getKeyfileValue(keyfile);
+      if (records.isInline(keyfileValue)) {
+        // inline values don't take up any of the record file
+      } else if (valueLengthSize > 0) {
+        // the keyfile has every record's size, so the estimate is exact
+        exactBytes += getRecordBytes(records.getValueLength(keyfileValue));
+      } else {
+        if (numRecords % stride == 0 && numSamples == samples.length) {
+          for (int i = 0; i < numSamples / 2; i++) {
+            samples[i] = samples[i * 2];
+          }
+          numSamples /= 2;
+          stride *= 2;
+        }
+        if (numRecords % stride == 0) {
+          records.getRecord(keyfileValue, result);
+          samples[numSamples++] = getRecordBytes(result.getBuffer().remaining());
+        }
+        numRecords++;
+      }
+      keyfile.consume();
+    }
+    keyfile.close();
+
+    double liveBytes = exactBytes;
+    if (numSamples > 0) {
+      long sampledBytes = 0;
+      for (int i = 0; i < numSamples; i++) {
+        sampledBytes += samples[i];
+      }
+      liveBytes += (double) sampledBytes / numSamples * numRecords;
+    }
+    return Math.max(0, 1 - liveBytes / totalBytes);
+  }
+
+  /**
+   * The fraction of the hot records that are among the first records of the
+   * record file, taking as many of those as there are hot records. It's 1
+   * right after clustering, or if there aren't any hot records.
+   */
+  double getHotFrontFraction(CurlyReader records, String cueballBasePath, RecordHeat.Partition heat) throws IOException {
+    // offsets are in record file order, so the hot records' offsets sorted
+    // give their order in the file
+    long[] hotOffsets = new long[16];
+    int numHot = 0;
+    StreamBuffer keyfile = openKeyfile(cueballBasePath);
+    while (keyfile.anyRemaining()) {
+      ByteBuffer keyfileValue = getKeyfileValue(keyfile);
+      if (!records.isInline(keyfileValue)) {
+        long offset = records.getOffset(keyfileValue);
+        if (heat.getHeat(offset) >= hotRecordHeat) {
+          if (numHot == hotOffsets.length) {
+            hotOffsets = Arrays.copyOf(hotOffsets, numHot * 2);
+          }
+          hotOffsets[numHot++] = offset;
+        }
+      }
+      keyfile.consume();
+    }
+    keyfile.close();
+    if (numHot == 0) {
+      return 1;
+    }
+    hotOffsets = Arrays.copyOf(hotOffsets, numHot);
+    Arrays.sort(hotOffsets);
+
+    // count the other records in front of each hot one. a record's heat only
+    // depends on its offset, so no other record shares a hot one's offset.
+    int[] coldBefore = new int[numHot + 1];
+    keyfile = openKeyfile(cueballBasePath);
+    while (keyfile.anyRemaining()) {
+      ByteBuffer keyfileValue = getKeyfileValue(keyfile);
+      if (!records.isInline(keyfileValue)) {
+        int index = Arrays.binarySearch(hotOffsets, records.getOffset(keyfileValue));
+        if (index < 0) {
+          coldBefore[-index - 1]++;
+        }
+      }
+      keyfile.consume();
+    }
+    keyfile.close();
+
+    int hotInFront = 0;
+    int numColdBefore = 0;
+    for (int i = 0; i < numHot; i++) {
+      numColdBefore += coldBefore[i];
+      if (i + numColdBefore < numHot) {
+        hotInFront++;
+      }
+    }
+    return (double) hotInFront / numHot;
+  }
+
+  private static int getRecordBytes(int valueLength) {
+    return EncodingHelper.getVarIntSize(valueLength) + valueLength;
+  }
+
+  private long getUncompressedSize(String curlyBasePath) throws IOException {
+    FileChannel channel = new FileInputStream(curlyBasePath).getChannel();
+    try {
+      if (recordFileBlockSize <= 0) {
+        return channel.size();
+      }
+      // walk the block headers
+      long fileSize = channel.size();
+      long size = 0;
+      long position = 0;
+      ByteBuffer header = ByteBuffer.allocate(RecordFileBlocks.HEADER_SIZE);
+      while (position < fileSize) {
+        header.clear();
+        RecordFileBlocks.readFully(channel, header, position);
+        header.flip();
+        size += RecordFileBlocks.getUncompressedLength(header);
+        position += RecordFileBlocks.HEADER_SIZE + (RecordFileBlocks.getCompressedLength(header) & 0xffffffffL);
+      }
+      if (position != fileSize) {
+        throw new IOException("Record file " + curlyBasePath + " ends in the middle of a block!");
+      }
+      return size;
+    } finally {
+      channel.close();
+    }
+  }
+
+  CurlyReader getRecordReader(String localPartitionRoot) throws IOException {
+    return new CurlyReader(localPartitionRoot,
+        READ_BUFFER_SIZE,
+        null,
+        offsetSize,
+        readerOptions,
+        compressionCodec,
+        null,
+        null,
+        null);
+  }
+
+  private StreamBuffer openKeyfile(String cueballBasePath) throws IOException {
+    return new StreamBuffer(cueballBasePath, 0, keyHashSize, keyfileValueSize, hashIndexBits, compressionCodec);
+  }
+
+  private ByteBuffer getKeyHash(StreamBuffer keyfile) {
+    return ByteBuffer.wrap(keyfile.getBuffer(), keyfile.getCurrentOffset(), keyHashSize);
+  }
+
+  private ByteBuffer getKeyfileValue(StreamBuffer keyfile) {
+    return ByteBuffer.wrap(keyfile.getBuffer(), keyfile.getCurrentOffset() + keyHashSize, keyfileValueSize);
+  }
+
+  private static void rename(String from, String to) throws IOException {
+    if (!new File(from).renameTo(new File(to))) {
+      throw new IOException("Failed to rename " + from + " to " + to + "!");
+    }
+  }
+}
@@ -0,0 +1,142 @@
+/**
+ *  Copyright 2011 Rapleaf
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.rapleaf.hank.storage.curly;
+
+import com.rapleaf.hank.storage.cueball.CueballOptions;
+
+/**
+ * The optional settings of a Curly domain: how its record files are laid out
+ * and compacted, plus the options of the Cueball keyfiles underneath. Like
+ * CueballOptions, everything is off by default, and setters return the
+ * options.
+ * 
+ * Some keyfile options cover the record files too: single flight also
+ * coalesces reads of the same record, and the merge threads and read-ahead
+ * apply to the keyfile merge of every update. Keyfile deltas are always
+ * merged along with their record files, so the layered delta settings are
+ * ignored.
+ */
+public class CurlyOptions {
+  private CueballOptions keyfileOptions = new CueballOptions();
+  private int valueLengthSize;
+  private int recordFileBlockSize;
+  private double compactionDeadRatio;
+  private int inlineValueSize;
+  private long valueDedupBytes;
+  private int hotRecordHeat;
+
+  public CueballOptions getKeyfileOptions() {
+    return keyfileOptions;
+  }
+
+  public CurlyOptions setKeyfileOptions(CueballOptions keyfileOptions) {
+    this.keyfileOptions = keyfileOptions;
+    return this;
+  }
+
+  public int getValueLengthSize() {
+    return valueLengthSize;
+  }
+
+  /**
+   * If positive, each keyfile entry also holds its value's length in this
+   * many bytes, so that every record can be read with one exactly-sized
+   * read. Values must fit in that many bytes.
+   */
+  public CurlyOptions setValueLengthSize(int valueLengthSize) {
+    this.valueLengthSize = valueLengthSize;
+    return this;
+  }
+
+  public int getRecordFileBlockSize() {
+    return recordFileBlockSize;
+  }
+
+  /**
+   * If positive, the record file is written in blocks of at least this many
+   * bytes, each compressed with the compression codec. See RecordFileBlocks.
+   */
+  public CurlyOptions setRecordFileBlockSize(int recordFileBlockSize) {
+    this.recordFileBlockSize = recordFileBlockSize;
+    return this;
+  }
+
+  public double getCompactionDeadRatio() {
+    return compactionDeadRatio;
+  }
+
+  /**
+   * If positive, a partition's record file is compacted after an update once
+   * more than this fraction of it is dead records. See CurlyCompactor.
+   */
+  public CurlyOptions setCompactionDeadRatio(double compactionDeadRatio) {
+    this.compactionDeadRatio = compactionDeadRatio;
+    return this;
+  }
+
+  public int getInlineValueSize() {
+    return inlineValueSize;
+  }
+
+  /**
+   * If positive, values of up to this many bytes (at most 127) are stored in
+   * the keyfile instead of the record file, so looking them up takes a single
+   * read. See InlineValues.
+   */
+  public CurlyOptions setInlineValueSize(int inlineValueSize) {
+    this.inlineValueSize = inlineValueSize;
+    return this;
+  }
+
+  public long getValueDedupBytes() {
+    return valueDedupBytes;
+  }
+
+  /**
+   * If positive, writers spend up to this much memory remembering the values
+   * they've written, and point repeats of them at the existing record instead
+   * of writing another.
+   */
+  public CurlyOptions setValueDedupBytes(long valueDedupBytes) {
+    this.valueDedupBytes = valueDedupBytes;
+    return this;
+  }
+
+  public int getHotRecordHeat() {
+    return hotRecordHeat;
+  }
+
+  /**
+   * If positive (and the part daemon collects record heat), records that are
+   * read often enough to have at least this heat are clustered at the front
+   * of the record file by updates. See RecordHeat and CurlyCompactor.
+   */
+  public CurlyOptions setHotRecordHeat(int hotRecordHeat) {
+    this.hotRecordHeat = hotRecordHeat;
+    return this;
+  }
+
+  @Override
+  public String toString() {
+    return "CurlyOptions [compactionDeadRatio=" + compactionDeadRatio
+        + ", hotRecordHeat=" + hotRecordHeat
+        + ", inlineValueSize=" + inlineValueSize
+        + ", keyfileOptions=" + keyfileOptions
+        + ", recordFileBlockSize=" + recordFileBlockSize
+        + ", valueDedupBytes=" + valueDedupBytes
+        + ", valueLengthSize=" + valueLengthSize + "]";
+  }
+}
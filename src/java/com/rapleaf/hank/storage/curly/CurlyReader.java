@@ -15,26 +15,148 @@
  */
 package com.rapleaf.hank.storage.curly;
 
+import java.io.EOFException;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
 
+import com.rapleaf.hank.compress.CompressionCodec;
+import com.rapleaf.hank.storage.BlockCache;
+import com.rapleaf.hank.storage.DirectBuffers;
 import com.rapleaf.hank.storage.Reader;
+import com.rapleaf.hank.storage.RecordHeat;
 import com.rapleaf.hank.storage.Result;
+import com.rapleaf.hank.storage.SingleFlight;
+import com.rapleaf.hank.storage.ValueCache;
 import com.rapleaf.hank.util.EncodingHelper;
 
 public class CurlyReader implements Reader {
+  /**
+   * Reads a record for a SingleFlight, when the value length is known up
+   * front (<i>valueLength</i> >= 0) or not.
+   */
+  private final class RecordLoader implements SingleFlight.Loader<Long, byte[]> {
+    private final int valueLength;
+
+    public RecordLoader(int valueLength) {
+      this.valueLength = valueLength;
+    }
+
+    @Override
+    public byte[] load(Long recordFileOffset) throws IOException {
+      Result scratch = new Result();
+      readRecordFromFile(recordFileOffset, valueLength, scratch);
+      ByteBuffer buffer = scratch.getBuffer();
+      byte[] record = new byte[buffer.remaining()];
+      buffer.get(record);
+      return record;
+    }
+  }
+
   private final Reader keyfile;
   private final int readBufferSize;
+  private final int offsetSize;
+  private final int valueLengthSize;
+  private final int tagSize;
   private final FileChannel recordFile;
+  private final SingleFlight<Long, byte[]> recordLoads;
+  private final RecordLoader recordLoader;
+  private final ValueCache valueCache;
+  private final int fileId;
+  private final RecordHeat.Partition heat;
+  // block compression, if the record file uses it
+  private final boolean blockCompressed;
+  private final long recordFileSize;
+  private final int blockReadSize;
+  private final int intraBlockOffsetBits;
+  private final CompressionCodec compressionCodec;
+  private final BlockCache blockCache;
+  private final int blockCacheFileId;
+  private final SingleFlight<Integer, BlockCache.Block> blockLoads;
 
   public CurlyReader(String partitionRoot,
       int recordFileReadBufferBytes, Reader keyfileReader) throws IOException
   {
-    this.recordFile = new FileInputStream(Curly.getBases(partitionRoot).last()).getChannel();
+    this(partitionRoot, recordFileReadBufferBytes, keyfileReader, 0, new CurlyOptions(), null, null, null, null);
+  }
+
+  /**
+   * @param offsetSize
+   *          the size of the record file offsets in the keyfile. Only needed
+   *          if the keyfile values hold more than the offset.
+   * @param options
+   *          how the record file and the keyfile values are laid out. With
+   *          single flight in the keyfile options, concurrent reads of the
+   *          same record share a single read of the record file. This costs a
+   *          copy of the record per lookup, so it's only worth it for domains
+   *          with very hot keys.
+   * @param compressionCodec
+   *          the codec of a block-compressed record file (see
+   *          RecordFileBlocks)
+   * @param valueCache
+   *          if not null, values are served from and offered to this cache
+   * @param blockCache
+   *          if not null, decompressed record file blocks are cached here
+   * @param heat
+   *          if not null, every record read is counted here, so that hot
+   *          records can be clustered together later (see CurlyCompactor)
+   */
+  public CurlyReader(String partitionRoot,
+      int recordFileReadBufferBytes,
+      Reader keyfileReader,
+      int offsetSize,
+      CurlyOptions options,
+      CompressionCodec compressionCodec,
+      ValueCache valueCache,
+      BlockCache blockCache,
+      RecordHeat.Partition heat) throws IOException
+  {
+    String basePath = Curly.getBases(partitionRoot).last();
+    this.recordFile = new FileInputStream(basePath).getChannel();
+    this.valueCache = valueCache;
+    this.fileId = valueCache == null ? -1 : valueCache.getFileId(partitionRoot, basePath);
+    this.heat = heat;
     this.keyfile = keyfileReader;
     this.readBufferSize = recordFileReadBufferBytes;
+    this.offsetSize = offsetSize;
+    this.valueLengthSize = options.getValueLengthSize();
+    this.tagSize = options.getInlineValueSize() > 0 ? InlineValues.TAG_SIZE : 0;
+    if (options.getKeyfileOptions().isSingleFlight()) {
+      recordLoads = new SingleFlight<Long, byte[]>();
+      recordLoader = new RecordLoader(-1);
+    } else {
+      recordLoads = null;
+      recordLoader = null;
+    }
+
+    // record files are never modified once written
+    recordFileSize = recordFile.size();
+    if (options.getRecordFileBlockSize() > 0) {
+      blockCompressed = true;
+      // most blocks can be read along with their header in a single read
+      blockReadSize = RecordFileBlocks.HEADER_SIZE + compressionCodec.getMaxCompressBufferSize(options.getRecordFileBlockSize());
+      intraBlockOffsetBits = RecordFileBlocks.getIntraBlockOffsetBits(options.getRecordFileBlockSize());
+      this.compressionCodec = compressionCodec;
+      // cached blocks are keyed by their file offset over the minimum block
+      // size, which has to fit in the cache's block number
+      if (recordFileSize / RecordFileBlocks.MIN_BLOCK_SIZE > 0xffffffffL) {
+        blockCache = null;
+      }
+      this.blockCache = blockCache;
+      blockCacheFileId = blockCache == null ? -1 : blockCache.getFileId(partitionRoot, basePath);
+      blockLoads = blockCache == null ? null : new SingleFlight<Integer, BlockCache.Block>();
+    } else {
+      blockCompressed = false;
+      blockReadSize = 0;
+      intraBlockOffsetBits = 0;
+      this.compressionCodec = null;
+      this.blockCache = null;
+      blockCacheFileId = -1;
+      blockLoads = null;
+    }
   }
 
   @Override
@@ -45,21 +167,288 @@ public class CurlyReader implements Reader {
 
     if (result.isFound()) {
       ByteBuffer buffer = result.getBuffer();
-      long recordFileOffset = EncodingHelper.decodeLittleEndianFixedWidthLong(buffer);
+      if (!getInlineValue(buffer)) {
+        readRecord(getOffset(buffer), getValueLength(buffer), result);
+      }
+    }
+  }
 
-      buffer.rewind();
-      buffer.limit(readBufferSize);
-      recordFile.read(buffer, recordFileOffset);
-      buffer.rewind();
-      int recordSize = EncodingHelper.decodeLittleEndianVarInt(buffer);
-      int bytesInRecordSize = buffer.position();
-      if (buffer.remaining() < recordSize) {
-        int newSize = recordSize + EncodingHelper.MAX_VARINT_SIZE;
-        result.requiresBufferSize(newSize);
-        recordFile.read(buffer, recordFileOffset + bytesInRecordSize);
-        buffer.position(0);
+  /**
+   * Look up the record file offsets for the whole batch with a single batched
+   * keyfile lookup, then read the records in record file order.
+   */
+  @Override
+  public void get(ByteBuffer[] keys, Result[] results) throws IOException {
+    for (Result result : results) {
+      result.requiresBufferSize(readBufferSize);
+    }
+
+    keyfile.get(keys, results);
+
+    // the record file offset (and value length, if known) of each found key,
+    // and the indexes of the found keys, to be sorted by offset
+    long[] offsets = new long[keys.length];
+    int[] valueLengths = new int[keys.length];
+    int[] order = new int[keys.length];
+    int numFound = 0;
+    for (int i = 0; i < results.length; i++) {
+      // inline values are already there, so there's nothing to read
+      if (results[i].isFound() && !getInlineValue(results[i].getBuffer())) {
+        offsets[i] = getOffset(results[i].getBuffer());
+        valueLengths[i] = getValueLength(results[i].getBuffer());
+        order[numFound++] = i;
       }
-      buffer.limit(recordSize + buffer.position());
     }
+    sortByOffset(order, numFound, offsets);
+
+    for (int i = 0; i < numFound; i++) {
+      readRecord(offsets[order[i]], valueLengths[order[i]], results[order[i]]);
+    }
+  }
+
+  /**
+   * Read the record a keyfile value points to, bypassing any caches. For
+   * tools that walk the keyfile on their own (see CurlyCompactor).
+   */
+  void getRecord(ByteBuffer keyfileValue, Result result) throws IOException {
+    ByteBuffer inlineValue = keyfileValue.duplicate();
+    if (getInlineValue(inlineValue)) {
+      copyRecord(inlineValue, result);
+      return;
+    }
+    result.requiresBufferSize(readBufferSize);
+    readRecordFromFile(getOffset(keyfileValue), getValueLength(keyfileValue), result);
+  }
+
+  void close() throws IOException {
+    recordFile.close();
+  }
+
+  private static void sortByOffset(int[] order, int length, final long[] offsets) {
+    Integer[] boxed = new Integer[length];
+    for (int i = 0; i < length; i++) {
+      boxed[i] = order[i];
+    }
+    Arrays.sort(boxed, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        long diff = offsets[a] - offsets[b];
+        return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+      }
+    });
+    for (int i = 0; i < length; i++) {
+      order[i] = boxed[i];
+    }
+  }
+
+  /**
+   * @return true if the keyfile value holds the value itself rather than a
+   *         record file offset
+   */
+  boolean isInline(ByteBuffer keyfileValue) {
+    return tagSize > 0
+        && InlineValues.isInline(keyfileValue.array(), keyfileValue.arrayOffset() + keyfileValue.position());
+  }
+
+  /**
+   * If the keyfile value holds the value itself, narrow the buffer down to it.
+   * 
+   * @return true if the value was inline
+   */
+  private boolean getInlineValue(ByteBuffer keyfileValue) {
+    if (!isInline(keyfileValue)) {
+      return false;
+    }
+    int start = keyfileValue.position() + tagSize;
+    keyfileValue.limit(start + InlineValues.getInlineLength(keyfileValue.array(),
+        keyfileValue.arrayOffset() + keyfileValue.position()));
+    keyfileValue.position(start);
+    return true;
+  }
+
+  long getOffset(ByteBuffer keyfileValue) {
+    if (valueLengthSize == 0 && tagSize == 0) {
+      return EncodingHelper.decodeLittleEndianFixedWidthLong(keyfileValue);
+    }
+    return EncodingHelper.decodeLittleEndianFixedWidthLong(keyfileValue.array(),
+        keyfileValue.arrayOffset() + keyfileValue.position() + tagSize,
+        offsetSize);
+  }
+
+  /**
+   * @return the value length stored in the keyfile, or -1 if there isn't one
+   */
+  int getValueLength(ByteBuffer keyfileValue) {
+    if (valueLengthSize == 0) {
+      return -1;
+    }
+    return (int) EncodingHelper.decodeLittleEndianFixedWidthLong(keyfileValue.array(),
+        keyfileValue.arrayOffset() + keyfileValue.position() + tagSize + offsetSize,
+        valueLengthSize);
+  }
+
+  private void readRecord(long recordFileOffset, int valueLength, Result result) throws IOException {
+    if (heat != null) {
+      heat.recordRead(recordFileOffset);
+    }
+
+    if (valueCache != null) {
+      byte[] value = valueCache.get(fileId, recordFileOffset);
+      if (value != null) {
+        copyRecord(value, result);
+        return;
+      }
+    }
+
+    if (recordLoads == null) {
+      readRecordFromFile(recordFileOffset, valueLength, result);
+    } else {
+      // the record is shared with any concurrent readers, so it has to be
+      // copied
+      copyRecord(recordLoads.get(recordFileOffset,
+          valueLength < 0 ? recordLoader : new RecordLoader(valueLength)), result);
+    }
+
+    if (valueCache != null) {
+      valueCache.put(fileId, recordFileOffset, result.getBuffer());
+    }
+  }
+
+  private static void copyRecord(byte[] record, Result result) {
+    result.requiresBufferSize(record.length);
+    ByteBuffer buffer = result.getBuffer();
+    System.arraycopy(record, 0, buffer.array(), 0, record.length);
+    buffer.position(0);
+    buffer.limit(record.length);
+  }
+
+  private void readRecordFromFile(long recordFileOffset, int valueLength, Result result) throws IOException {
+    if (blockCompressed) {
+      readRecordFromBlock(recordFileOffset, result);
+      return;
+    }
+
+    // read through a direct buffer, so the record is only copied once on its
+    // way from the file to the (heap) result buffer
+    if (valueLength >= 0) {
+      // we know exactly where the value is, so there's no need to read its
+      // length
+      ByteBuffer scratch = DirectBuffers.get(valueLength);
+      RecordFileBlocks.readFully(recordFile, scratch, recordFileOffset + EncodingHelper.getVarIntSize(valueLength));
+      scratch.flip();
+      copyRecord(scratch, result);
+      return;
+    }
+
+    if (recordFileOffset >= recordFileSize) {
+      throw new EOFException("There's no record at offset " + recordFileOffset
+          + " of a " + recordFileSize + " byte record file!");
+    }
+    // the last records of the file are shorter than the read buffer
+    ByteBuffer scratch = DirectBuffers.get((int) Math.min(readBufferSize, recordFileSize - recordFileOffset));
+    RecordFileBlocks.readFully(recordFile, scratch, recordFileOffset);
+    scratch.flip();
+    int recordSize = EncodingHelper.decodeLittleEndianVarInt(scratch);
+    int bytesInRecordSize = scratch.position();
+    if (scratch.remaining() < recordSize) {
+      // growing replaces the buffer
+      scratch = DirectBuffers.get(recordSize);
+      RecordFileBlocks.readFully(recordFile, scratch, recordFileOffset + bytesInRecordSize);
+      scratch.flip();
+    }
+    scratch.limit(scratch.position() + recordSize);
+    copyRecord(scratch, result);
+  }
+
+  private void readRecordFromBlock(long keyfileOffset, Result result) throws IOException {
+    final long blockOffset = keyfileOffset >>> intraBlockOffsetBits;
+    int intraBlockOffset = (int) (keyfileOffset & ((1L << intraBlockOffsetBits) - 1));
+
+    if (blockCache == null) {
+      // decompress the block straight into the result, and point the result
+      // at the record
+      ByteBuffer buffer = readAndDecompressBlock(blockOffset, result);
+      buffer.position(intraBlockOffset);
+      int recordSize = EncodingHelper.decodeLittleEndianVarInt(buffer);
+      buffer.limit(buffer.position() + recordSize);
+      return;
+    }
+
+    final int blockNum = (int) (blockOffset / RecordFileBlocks.MIN_BLOCK_SIZE);
+    BlockCache.Block block = blockCache.get(blockCacheFileId, blockNum);
+    if (block == null) {
+      // concurrent misses on the same block share a single read
+      block = blockLoads.get(blockNum, new SingleFlight.Loader<Integer, BlockCache.Block>() {
+        @Override
+        public BlockCache.Block load(Integer key) throws IOException {
+          Result scratch = new Result();
+          ByteBuffer buffer = readAndDecompressBlock(blockOffset, scratch);
+          byte[] data = new byte[buffer.remaining()];
+          buffer.get(data);
+          BlockCache.Block block = new BlockCache.Block(data);
+          blockCache.put(blockCacheFileId, blockNum, block);
+          return block;
+        }
+      });
+    }
+    // the cached block is shared, so the record has to be copied out
+    ByteBuffer data = ByteBuffer.wrap(block.getData());
+    data.position(intraBlockOffset);
+    int recordSize = EncodingHelper.decodeLittleEndianVarInt(data);
+    data.limit(data.position() + recordSize);
+    copyRecord(data, result);
+  }
+
+  /**
+   * Read the block at file offset <i>start</i>, along with its header, and
+   * decompress it into <i>result</i>'s buffer. Blocks that compress to no
+   * more than the codec's bound on the block size are read with a single
+   * read.
+   * 
+   * @return the result's buffer, holding the decompressed block
+   */
+  private ByteBuffer readAndDecompressBlock(long start, Result result) throws IOException {
+    if (start + RecordFileBlocks.MIN_BLOCK_SIZE > recordFileSize) {
+      throw new IOException("There's no record file block at offset " + start + "!");
+    }
+    ByteBuffer compressed = DirectBuffers.get((int) Math.min(blockReadSize, recordFileSize - start));
+    RecordFileBlocks.readFully(recordFile, compressed, start);
+    compressed.flip();
+    long blockSize = RecordFileBlocks.HEADER_SIZE + (RecordFileBlocks.getCompressedLength(compressed) & 0xffffffffL);
+    if (start + blockSize > recordFileSize) {
+      throw new IOException("There's no record file block at offset " + start + "!");
+    }
+    if (blockSize > compressed.limit()) {
+      // growing replaces the buffer, so the whole block has to be read again
+      compressed = DirectBuffers.get((int) blockSize);
+      RecordFileBlocks.readFully(recordFile, compressed, start);
+      compressed.flip();
+    } else {
+      compressed.limit((int) blockSize);
+    }
+
+    result.requiresBufferSize(RecordFileBlocks.getUncompressedLength(compressed));
+    ByteBuffer buffer = result.getBuffer();
+    buffer.clear();
+    compressed.position(RecordFileBlocks.HEADER_SIZE);
+    compressionCodec.decompress(compressed, buffer);
+    buffer.flip();
+    return buffer;
+  }
+
+  private static void copyRecord(ByteBuffer record, Result result) {
+    result.requiresBufferSize(record.remaining());
+    ByteBuffer buffer = result.getBuffer();
+    buffer.clear();
+    buffer.put(record);
+    buffer.flip();
+  }
+
+  /**
+   * @return the number of record reads that were avoided by sharing a
+   *         concurrent read of the same record
+   */
+  public long getCoalescedReadCount() {
+    return recordLoads == null ? 0 : recordLoads.getCoalescedCount();
   }
 }
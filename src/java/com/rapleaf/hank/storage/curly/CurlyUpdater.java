@@ -22,7 +22,10 @@ import java.util.SortedSet;
 import java.util.TreeSet;
 
 import com.rapleaf.hank.compress.CompressionCodec;
+import com.rapleaf.hank.storage.BlockCache;
+import com.rapleaf.hank.storage.RecordHeat;
 import com.rapleaf.hank.storage.Updater;
+import com.rapleaf.hank.storage.ValueCache;
 import com.rapleaf.hank.storage.cueball.Cueball;
 import com.rapleaf.hank.storage.cueball.CueballMerger;
 import com.rapleaf.hank.storage.cueball.Fetcher;
@@ -36,41 +39,97 @@ public class CurlyUpdater implements Updater {
   public static final class OffsetTransformer implements ValueTransformer {
     private final long[] offsetAdjustments;
     private final int offsetSize;
+    private final boolean inlineValues;
 
     public OffsetTransformer(int offsetSize, long[] offsetAdjustments) {
+      this(offsetSize, offsetAdjustments, false);
+    }
+
+    /**
+     * @param inlineValues
+     *          if true, the values are tagged, and the inline ones are left
+     *          alone (see InlineValues)
+     */
+    public OffsetTransformer(int offsetSize, long[] offsetAdjustments, boolean inlineValues) {
       this.offsetSize = offsetSize;
       this.offsetAdjustments = offsetAdjustments;
+      this.inlineValues = inlineValues;
     }
 
     @Override
     public void transform(byte[] buf, int valueOff, int relIndex) {
       long adjustment = offsetAdjustments[relIndex];
+      if (inlineValues) {
+        if (InlineValues.isInline(buf, valueOff)) {
+          return;
+        }
+        valueOff += InlineValues.TAG_SIZE;
+      }
       if (adjustment != 0) {
         long offset = EncodingHelper.decodeLittleEndianFixedWidthLong(buf, valueOff, offsetSize);
         offset += adjustment;
         EncodingHelper.encodeLittleEndianFixedWidthLong(offset, buf, valueOff, offsetSize);
       }
     }
+
+    @Override
+    public boolean isIdentity(int relIndex) {
+      return offsetAdjustments[relIndex] == 0;
+    }
   }
 
   private final String localPartitionRoot;
   private final int keyHashSize;
   private final int offsetSize;
+  private final int valueLengthSize;
+  private final int inlineValueSize;
+  private final int intraBlockOffsetBits;
   private final IFetcher fetcher;
   private final ICurlyMerger curlyMerger;
   private final ICueballMerger cueballMerger;
   private final int hashIndexBits;
   private final CompressionCodec compressionCodec;
+  private final ValueCache valueCache;
+  private final BlockCache blockCache;
+  private final ICurlyCompactor compactor;
+  private final RecordHeat recordHeat;
 
   public CurlyUpdater(String localPartitionRoot, String remotePartitionRoot, int keyHashSize, int offsetSize, IFileOps fileOps, CompressionCodec compressionCodec, int hashIndexBits) {
+    this(localPartitionRoot, remotePartitionRoot, keyHashSize, offsetSize, fileOps, compressionCodec, hashIndexBits, new CurlyOptions(), null, null, null);
+  }
+
+  /**
+   * @param options
+   *          the partition's layout, and how its updates merge and compact
+   *          it. Records are compacted after updates that leave more than the
+   *          compaction dead ratio of the record file dead, or that have read
+   *          stats to cluster the hot records by (see CurlyCompactor).
+   * @param valueCache
+   *          if not null, the partition's cached values are dropped after
+   *          each update
+   * @param blockCache
+   *          if not null, the blocks cached for the partition's replaced
+   *          files are dropped after each update
+   * @param recordHeat
+   *          the read stats to cluster by. The partition's stats are reset
+   *          whenever its records move.
+   */
+  public CurlyUpdater(String localPartitionRoot, String remotePartitionRoot, int keyHashSize, int offsetSize, IFileOps fileOps, CompressionCodec compressionCodec, int hashIndexBits, CurlyOptions options, ValueCache valueCache, BlockCache blockCache, RecordHeat recordHeat) {
     this(localPartitionRoot,
         keyHashSize,
         offsetSize,
         new Fetcher(fileOps, new CurlyFileSelector()),
         new CurlyMerger(),
-        new CueballMerger(),
+        new CueballMerger(options.getKeyfileOptions().getMergeThreads(), options.getKeyfileOptions().isMergeReadAhead()),
         compressionCodec,
-        hashIndexBits);
+        hashIndexBits,
+        options,
+        valueCache,
+        blockCache,
+        recordHeat,
+        options.getCompactionDeadRatio() > 0 || (options.getHotRecordHeat() > 0 && recordHeat != null)
+            ? new CurlyCompactor(keyHashSize, offsetSize, hashIndexBits, compressionCodec, options)
+            : null);
   }
 
   CurlyUpdater(String localPartitionRoot,
@@ -81,15 +140,39 @@ public class CurlyUpdater implements Updater {
       ICueballMerger cueballMerger,
       CompressionCodec compressonCodec,
       int hashIndexBits)
+  {
+    this(localPartitionRoot, keyHashSize, offsetSize, fetcher, curlyMerger, cueballMerger, compressonCodec, hashIndexBits, new CurlyOptions(), null, null, null, null);
+  }
+
+  CurlyUpdater(String localPartitionRoot,
+      int keyHashSize,
+      int offsetSize,
+      IFetcher fetcher,
+      ICurlyMerger curlyMerger,
+      ICueballMerger cueballMerger,
+      CompressionCodec compressonCodec,
+      int hashIndexBits,
+      CurlyOptions options,
+      ValueCache valueCache,
+      BlockCache blockCache,
+      RecordHeat recordHeat,
+      ICurlyCompactor compactor)
   {
     this.localPartitionRoot = localPartitionRoot;
     this.keyHashSize = keyHashSize;
     this.offsetSize = offsetSize;
+    this.valueLengthSize = options.getValueLengthSize();
+    this.inlineValueSize = options.getInlineValueSize();
+    this.intraBlockOffsetBits = options.getRecordFileBlockSize() > 0 ? RecordFileBlocks.getIntraBlockOffsetBits(options.getRecordFileBlockSize()) : 0;
     this.fetcher = fetcher;
     this.curlyMerger = curlyMerger;
     this.cueballMerger = cueballMerger;
     this.compressionCodec = compressonCodec;
     this.hashIndexBits = hashIndexBits;
+    this.valueCache = valueCache;
+    this.blockCache = blockCache;
+    this.compactor = compactor;
+    this.recordHeat = recordHeat;
   }
 
   @Override
@@ -112,6 +195,13 @@ public class CurlyUpdater implements Updater {
 
     // merge the curly files
     long[] offsetAdjustments = curlyMerger.merge(latestCurlyBase, relevantCurlyDeltas);
+    // block-compressed offsets address blocks by file offset in their high
+    // bits
+    if (intraBlockOffsetBits > 0) {
+      for (int i = 0; i < offsetAdjustments.length; i++) {
+        offsetAdjustments[i] <<= intraBlockOffsetBits;
+      }
+    }
 
     // figure out which cueball files we want to merge
     SortedSet<String> cueballBases = Cueball.getBases(localPartitionRoot);
@@ -123,19 +213,22 @@ public class CurlyUpdater implements Updater {
     String latestCueballBase = cueballBases.last();
     SortedSet<String> relevantCueballDeltas = cueballDeltas.tailSet(latestCurlyBase);
 
+    String newCueballBasePath = null;
     if (relevantCueballDeltas.isEmpty()) {
       // no need to merge! in fact, we're done.
     } else {
       // run the cueball merger
-      String newCueballBasePath = localPartitionRoot + "/"
+      newCueballBasePath = localPartitionRoot + "/"
         + String.format("%05d", Cueball.parseVersionNumber(relevantCueballDeltas.last()))
         + ".base.cueball";
       cueballMerger.merge(latestCueballBase,
           relevantCueballDeltas,
           newCueballBasePath,
           keyHashSize,
-          offsetSize,
-          new OffsetTransformer(offsetSize, offsetAdjustments),
+          InlineValues.getKeyfileValueSize(offsetSize, valueLengthSize, inlineValueSize),
+          // only the offset needs adjusting - the value length that may
+          // follow it stays the same
+          new OffsetTransformer(offsetSize, offsetAdjustments, inlineValueSize > 0),
           hashIndexBits,
           compressionCodec);
   
@@ -147,8 +240,29 @@ public class CurlyUpdater implements Updater {
       new File(latestCurlyBase).renameTo(new File(newCurlyBasePath));
     }
 
+    // the read stats are by record offset, which a new base changes
+    boolean recordsMoved = !curlyBases.headSet(latestCurlyBase).isEmpty();
+
     // delete all the old curly bases
     deleteFiles(curlyBases.headSet(latestCurlyBase), cueballBases.headSet(latestCueballBase), curlyDeltas, cueballDeltas);
+
+    // the merge left the records the deltas overwrote in the record file.
+    // if there are enough of them, rewrite the base without them.
+    if (newCueballBasePath != null && compactor != null) {
+      RecordHeat.Partition heat = recordHeat == null ? null : recordHeat.getPartition(localPartitionRoot);
+      recordsMoved |= compactor.compact(localPartitionRoot, newCueballBasePath, heat);
+    }
+    if (recordsMoved && recordHeat != null) {
+      recordHeat.reset(localPartitionRoot);
+    }
+
+    // the base the cached values came from is gone or has been appended to
+    if (valueCache != null) {
+      valueCache.invalidate(localPartitionRoot);
+    }
+    if (blockCache != null) {
+      blockCache.invalidate(localPartitionRoot);
+    }
   }
 
   private int getLocalVersionNumber() {
@@ -18,7 +18,12 @@ package com.rapleaf.hank.storage.curly;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+import com.rapleaf.hank.compress.CompressionCodec;
 import com.rapleaf.hank.storage.Writer;
 import com.rapleaf.hank.util.EncodingHelper;
 
@@ -29,23 +34,82 @@ public class CurlyWriter implements Writer {
 
   private long currentRecordOffset;
   private final long maxOffset;
+  private final int offsetSize;
+  private final int valueLengthSize;
+  private final long maxValueLength;
   private final ByteBuffer offsetBuffer;
-  private final byte[] lengthBuffer = new byte[5];;
+  private final byte[] lengthBuffer = new byte[5];
+  private final int inlineValueSize;
+  private final int tagSize;
+
+  // block compression. when it's on, currentRecordOffset is the file offset
+  // of the block being filled.
+  private final int blockSize;
+  private final CompressionCodec compressionCodec;
+  private final int intraBlockOffsetBits;
+  private byte[] block;
+  private int blockLength;
+  private byte[] compressedBlock;
+
+  // value dedup. maps recently written values (hashed by content) to the
+  // keyfile values that point at their records, least recently used first.
+  private static final int DEDUP_ENTRY_OVERHEAD = 64;
+  private final LinkedHashMap<ByteBuffer, byte[]> writtenValues;
+  private final long maxDedupBytes;
+  private long dedupBytes;
 
   public CurlyWriter(OutputStream recordfileStream,
       Writer keyfileWriter,
       int offsetSize)
+  {
+    this(recordfileStream, keyfileWriter, offsetSize, new CurlyOptions(), null);
+  }
+
+  /**
+   * @param options
+   *          the record file layout: value lengths in the keyfile, block
+   *          compression, inline values and dedup. See CurlyOptions.
+   * @param compressionCodec
+   *          the codec blocks are compressed with, if the options ask for a
+   *          block size
+   */
+  public CurlyWriter(OutputStream recordfileStream,
+      Writer keyfileWriter,
+      int offsetSize,
+      CurlyOptions options,
+      CompressionCodec compressionCodec)
   {
     this.recordFileStream = recordfileStream;
     this.keyfileWriter = keyfileWriter;
     this.maxOffset = 1L << (offsetSize * 8);
+    this.offsetSize = offsetSize;
+    this.valueLengthSize = options.getValueLengthSize();
+    this.maxValueLength = valueLengthSize >= 4 ? Integer.MAX_VALUE : (1L << (valueLengthSize * 8)) - 1;
     this.currentRecordOffset = 0;
 
-    offsetBuffer = ByteBuffer.wrap(new byte[offsetSize]);
+    this.inlineValueSize = options.getInlineValueSize();
+    this.tagSize = inlineValueSize > 0 ? InlineValues.TAG_SIZE : 0;
+    offsetBuffer = ByteBuffer.wrap(new byte[InlineValues.getKeyfileValueSize(offsetSize, valueLengthSize, inlineValueSize)]);
+
+    this.blockSize = options.getRecordFileBlockSize();
+    this.compressionCodec = compressionCodec;
+    if (blockSize > 0) {
+      intraBlockOffsetBits = RecordFileBlocks.getIntraBlockOffsetBits(blockSize);
+      block = new byte[blockSize + EncodingHelper.MAX_VARINT_SIZE];
+      compressedBlock = new byte[RecordFileBlocks.HEADER_SIZE + compressionCodec.getMaxCompressBufferSize(block.length)];
+    } else {
+      intraBlockOffsetBits = 0;
+    }
+
+    this.maxDedupBytes = options.getValueDedupBytes();
+    writtenValues = maxDedupBytes > 0 ? new LinkedHashMap<ByteBuffer, byte[]>(16, 0.75f, true) : null;
   }
 
   @Override
   public void close() throws IOException {
+    if (blockLength > 0) {
+      flushBlock();
+    }
     recordFileStream.flush();
     recordFileStream.close();
     keyfileWriter.close();
@@ -53,20 +117,98 @@ public class CurlyWriter implements Writer {
 
   @Override
   public void write(ByteBuffer key, ByteBuffer value) throws IOException {
-    if (currentRecordOffset > maxOffset) {
+    if (currentRecordOffset > maxOffset >> intraBlockOffsetBits) {
       throw new IOException("Exceeded configured max recordfile size of "
           + maxOffset
           + ". Increase number of partitions to go back below this level.");
     }
 
-    EncodingHelper.encodeLittleEndianFixedWidthLong(currentRecordOffset, offsetBuffer.array());
+    int valueLen = value.remaining();
+    if (inlineValueSize > 0) {
+      // clear out the tag and whatever the last inline value left behind
+      Arrays.fill(offsetBuffer.array(), (byte) 0);
+      if (valueLen <= inlineValueSize) {
+        InlineValues.encodeInline(value, offsetBuffer.array());
+        keyfileWriter.write(key, offsetBuffer);
+        return;
+      }
+    }
+
+    if (writtenValues != null) {
+      byte[] keyfileValue = writtenValues.get(value);
+      if (keyfileValue != null) {
+        keyfileWriter.write(key, ByteBuffer.wrap(keyfileValue));
+        return;
+      }
+    }
+
+    long keyfileOffset = (currentRecordOffset << intraBlockOffsetBits) | blockLength;
+    EncodingHelper.encodeLittleEndianFixedWidthLong(keyfileOffset, offsetBuffer.array(), tagSize, offsetSize);
+    if (valueLengthSize > 0) {
+      if (valueLen > maxValueLength) {
+        throw new IOException("Value of " + valueLen
+            + " bytes is too big for the configured value length size of "
+            + valueLengthSize + " bytes!");
+      }
+      EncodingHelper.encodeLittleEndianFixedWidthLong(valueLen, offsetBuffer.array(), tagSize + offsetSize, valueLengthSize);
+    }
     keyfileWriter.write(key, offsetBuffer);
+    if (writtenValues != null) {
+      rememberValue(value);
+    }
 
-    int valueLen = value.remaining();
     int numBytes = EncodingHelper.encodeLittleEndianVarInt(valueLen, lengthBuffer);
+    if (blockSize > 0) {
+      appendToBlock(lengthBuffer, 0, numBytes);
+      appendToBlock(value.array(), value.arrayOffset() + value.position(), valueLen);
+      if (blockLength >= blockSize) {
+        flushBlock();
+      }
+      return;
+    }
     recordFileStream.write(lengthBuffer, 0, numBytes);
     recordFileStream.write(value.array(), value.arrayOffset() + value.position(), valueLen);
 
     currentRecordOffset += numBytes + valueLen;
   }
+
+  private void rememberValue(ByteBuffer value) {
+    long size = value.remaining() + offsetBuffer.capacity() + DEDUP_ENTRY_OVERHEAD;
+    if (size > maxDedupBytes) {
+      return;
+    }
+    ByteBuffer valueCopy = ByteBuffer.allocate(value.remaining());
+    valueCopy.put(value.duplicate());
+    valueCopy.flip();
+    writtenValues.put(valueCopy, offsetBuffer.array().clone());
+    dedupBytes += size;
+
+    Iterator<Map.Entry<ByteBuffer, byte[]>> eldest = writtenValues.entrySet().iterator();
+    while (dedupBytes > maxDedupBytes) {
+      Map.Entry<ByteBuffer, byte[]> entry = eldest.next();
+      dedupBytes -= entry.getKey().capacity() + entry.getValue().length + DEDUP_ENTRY_OVERHEAD;
+      eldest.remove();
+    }
+  }
+
+  private void appendToBlock(byte[] bytes, int off, int len) {
+    if (blockLength + len > block.length) {
+      // a single record can be bigger than a block, in which case it gets a
+      // block of its own
+      byte[] grown = new byte[blockLength + len];
+      System.arraycopy(block, 0, grown, 0, blockLength);
+      block = grown;
+      compressedBlock = new byte[RecordFileBlocks.HEADER_SIZE + compressionCodec.getMaxCompressBufferSize(block.length)];
+    }
+    System.arraycopy(bytes, off, block, blockLength, len);
+    blockLength += len;
+  }
+
+  private void flushBlock() throws IOException {
+    int compressedLength = compressionCodec.compress(block, 0, blockLength, compressedBlock, RecordFileBlocks.HEADER_SIZE);
+    RecordFileBlocks.encodeHeader(compressedLength, blockLength, compressedBlock);
+    recordFileStream.write(compressedBlock, 0, RecordFileBlocks.HEADER_SIZE + compressedLength);
+    currentRecordOffset += RecordFileBlocks.HEADER_SIZE + compressedLength;
+    blockLength = 0;
+  }
 }
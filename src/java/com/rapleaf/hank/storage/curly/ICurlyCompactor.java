@@ -0,0 +1,34 @@
+/**
+ *  Copyright 2011 Rapleaf
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.rapleaf.hank.storage.curly;
+
+import java.io.IOException;
+
+import com.rapleaf.hank.storage.RecordHeat;
+
+public interface ICurlyCompactor {
+  /**
+   * Rewrite the partition's latest Curly base and the Cueball base that
+   * indexes it, if enough of the record file is dead or the records can be
+   * laid out by heat.
+   * 
+   * @param heat
+   *          the partition's read stats, or null if there aren't any
+   * @return true if the files were rewritten
+   */
+  public boolean compact(String localPartitionRoot, String cueballBasePath, RecordHeat.Partition heat)
+  throws IOException;
+}
@@ -0,0 +1,64 @@
+/**
+ *  Copyright 2011 Rapleaf
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.rapleaf.hank.storage.curly;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The keyfile layout for domains that inline their small values. Each keyfile
+ * value starts with a tag byte. If its high bit is set, the low bits are the
+ * length of a value stored right after it, in the keyfile itself, and there's
+ * no record. Otherwise the tag byte is zero and the usual record file offset
+ * (and value length, if configured) follows.
+ * 
+ * Keyfile values are fixed-width, so they're as wide as the larger of the two
+ * forms, and shorter inline values are padded with zeros.
+ */
+final class InlineValues {
+  static final int TAG_SIZE = 1;
+  static final int MAX_INLINE_VALUE_SIZE = 0x7f;
+  private static final int INLINE_TAG = 0x80;
+
+  private InlineValues() {}
+
+  /**
+   * @return the width of a keyfile value
+   */
+  public static int getKeyfileValueSize(int offsetSize, int valueLengthSize, int inlineValueSize) {
+    if (inlineValueSize <= 0) {
+      return offsetSize + valueLengthSize;
+    }
+    return TAG_SIZE + Math.max(offsetSize + valueLengthSize, inlineValueSize);
+  }
+
+  public static boolean isInline(byte[] keyfileValue, int off) {
+    return (keyfileValue[off] & INLINE_TAG) != 0;
+  }
+
+  public static int getInlineLength(byte[] keyfileValue, int off) {
+    return keyfileValue[off] & MAX_INLINE_VALUE_SIZE;
+  }
+
+  /**
+   * Write <i>value</i> inline into <i>keyfileValue</i>, which must be
+   * zero-filled.
+   */
+  public static void encodeInline(ByteBuffer value, byte[] keyfileValue) {
+    int length = value.remaining();
+    keyfileValue[0] = (byte) (INLINE_TAG | length);
+    System.arraycopy(value.array(), value.arrayOffset() + value.position(), keyfileValue, TAG_SIZE, length);
+  }
+}
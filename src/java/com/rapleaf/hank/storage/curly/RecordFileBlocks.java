@@ -0,0 +1,119 @@
+/**
+ *  Copyright 2011 Rapleaf
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.rapleaf.hank.storage.curly;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.rapleaf.hank.util.EncodingHelper;
+
+/**
+ * The block-compressed record file layout. Instead of one record after
+ * another, the file is a series of independently compressed blocks, each of
+ * which holds whole records in the usual varint length + value form:
+ * 
+ * [4 byte compressed length][4 byte uncompressed length][compressed records]
+ * 
+ * A block is closed once it holds at least the configured block size, so a
+ * record always starts less than a block size into its block. Keyfile offsets
+ * address a record as the file offset of its block, shifted left by enough
+ * bits to hold an intra-block offset, plus its offset within the decompressed
+ * block.
+ * 
+ * Blocks describe their own length and there's no trailer, so record files
+ * can still be concatenated (see CurlyMerger). The offsets into an appended
+ * file just need the usual adjustment, shifted left the same way. Since a
+ * keyfile offset already holds its block's file offset, readers go straight
+ * to the block's header and never need an index of the blocks.
+ */
+final class RecordFileBlocks {
+  static final int HEADER_SIZE = 8;
+  // every block holds at least one compressed byte after its header
+  static final int MIN_BLOCK_SIZE = HEADER_SIZE + 1;
+
+  private RecordFileBlocks() {}
+
+  /**
+   * @return the number of low bits of a keyfile offset that hold the offset
+   *         within a block
+   */
+  public static int getIntraBlockOffsetBits(int blockSize) {
+    return 32 - Integer.numberOfLeadingZeros(blockSize - 1);
+  }
+
+  /**
+   * @return the number of bytes needed for a keyfile offset into a partition
+   *         of at most <i>maxAllowedPartSize</i> bytes
+   */
+  public static int getOffsetSize(long maxAllowedPartSize, int blockSize) {
+    int bits = (int) Math.ceil(Math.log(maxAllowedPartSize) / Math.log(2));
+    if (blockSize > 0) {
+      bits += getIntraBlockOffsetBits(blockSize);
+    }
+    return (int) Math.ceil(bits / 8.0);
+  }
+
+  public static void encodeHeader(int compressedLength, int uncompressedLength, byte[] header) {
+    EncodingHelper.encodeLittleEndianFixedWidthLong(compressedLength, header, 0, 4);
+    EncodingHelper.encodeLittleEndianFixedWidthLong(uncompressedLength, header, 4, 4);
+  }
+
+  /**
+   * @param block
+   *          a buffer positioned at the start of a block's header
+   * @return the length of the block's compressed records
+   */
+  public static int getCompressedLength(ByteBuffer block) {
+    return decodeInt(block, block.position());
+  }
+
+  /**
+   * @param block
+   *          a buffer positioned at the start of a block's header
+   * @return the block's uncompressed length
+   */
+  public static int getUncompressedLength(ByteBuffer block) {
+    return decodeInt(block, block.position() + 4);
+  }
+
+  private static int decodeInt(ByteBuffer block, int off) {
+    int value = 0;
+    for (int i = 3; i >= 0; i--) {
+      value = (value << 8) | (block.get(off + i) & 0xff);
+    }
+    return value;
+  }
+
+  /**
+   * Fill <i>buffer</i> from the record file, starting at <i>position</i>. Used
+   * for records as well as blocks.
+   * 
+   * @throws EOFException
+   *           if the file ends first
+   */
+  public static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    long start = position - buffer.position();
+    int length = buffer.remaining();
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, start + buffer.position()) < 0) {
+        throw new EOFException("Record file ends in the middle of the " + length
+            + " bytes at offset " + position + "!");
+      }
+    }
+  }
+}
@@ -65,6 +65,17 @@ public final class EncodingHelper {
     return i;
   }
 
+  /**
+   * @return the number of bytes encodeLittleEndianVarInt() uses for <i>n</i>
+   */
+  public static int getVarIntSize(int n) {
+    int size = 1;
+    while ((n >>>= 7) > 0) {
+      size++;
+    }
+    return size;
+  }
+
   public static int decodeLittleEndianVarInt(ByteBuffer buffer) {
     byte b = buffer.get();
     int result = b & 0x7f;
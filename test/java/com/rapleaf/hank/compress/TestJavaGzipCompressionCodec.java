@@ -1,9 +1,13 @@
 package com.rapleaf.hank.compress;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import com.rapleaf.hank.BaseTestCase;
 
@@ -46,4 +50,90 @@ public class TestJavaGzipCompressionCodec extends BaseTestCase {
       assertEquals(ByteBuffer.wrap(testcase), ByteBuffer.wrap(decompressedBytes, 0, decompressedLength));
     }
   }
+
+  public void testOffsets() throws Exception {
+    JavaGzipCompressionCodec codec = new JavaGzipCompressionCodec();
+    byte[] testcase = lotsOfBytes(1024);
+
+    byte[] compressedBytes = new byte[10 + codec.getMaxCompressBufferSize(testcase.length - 10)];
+    int compressedLength = codec.compress(testcase, 10, testcase.length - 10, compressedBytes, 10);
+
+    // decompress into the back half of a buffer, the way the readers do
+    byte[] decompressedBytes = new byte[2 * testcase.length];
+    int decompressedLength = codec.decompress(compressedBytes, 10, compressedLength, decompressedBytes, testcase.length);
+    assertEquals(testcase.length - 10, decompressedLength);
+    assertEquals(ByteBuffer.wrap(testcase, 10, testcase.length - 10),
+        ByteBuffer.wrap(decompressedBytes, testcase.length, decompressedLength));
+  }
+
+  public void testByteBuffers() throws Exception {
+    JavaGzipCompressionCodec codec = new JavaGzipCompressionCodec();
+
+    for (byte[] testcase : TESTCASES) {
+      ByteBuffer src = ByteBuffer.allocateDirect(testcase.length);
+      src.put(testcase);
+      src.flip();
+      ByteBuffer compressed = ByteBuffer.allocateDirect(codec.getMaxCompressBufferSize(testcase.length));
+      int compressedLength = codec.compress(src, compressed);
+      assertEquals(compressedLength, compressed.position());
+      assertFalse(src.hasRemaining());
+      compressed.flip();
+
+      // direct to direct
+      ByteBuffer decompressed = ByteBuffer.allocateDirect(testcase.length + 1);
+      assertEquals(testcase.length, codec.decompress(compressed.duplicate(), decompressed));
+      decompressed.flip();
+      assertEquals(ByteBuffer.wrap(testcase), decompressed);
+
+      // direct to a slice of a heap buffer
+      ByteBuffer heap = ByteBuffer.wrap(new byte[testcase.length + 10]);
+      heap.position(10);
+      ByteBuffer slice = heap.slice();
+      assertEquals(testcase.length, codec.decompress(compressed.duplicate(), slice));
+      assertEquals(ByteBuffer.wrap(testcase), ByteBuffer.wrap(heap.array(), 10, testcase.length));
+
+      // and the array path agrees
+      byte[] compressedBytes = new byte[compressedLength];
+      compressed.duplicate().get(compressedBytes);
+      byte[] decompressedBytes = new byte[testcase.length];
+      assertEquals(testcase.length, codec.decompress(compressedBytes, 0, compressedLength, decompressedBytes, 0));
+      assertEquals(ByteBuffer.wrap(testcase), ByteBuffer.wrap(decompressedBytes));
+    }
+  }
+
+  public void testGzipStreamsAgree() throws Exception {
+    JavaGzipCompressionCodec codec = new JavaGzipCompressionCodec();
+    for (byte[] testcase : TESTCASES.subList(1, TESTCASES.size())) {
+      // what the codec writes, the gzip streams can read
+      byte[] compressed = new byte[codec.getMaxCompressBufferSize(testcase.length)];
+      int compressedLength = codec.compress(testcase, 0, testcase.length, compressed, 0);
+      GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed, 0, compressedLength));
+      byte[] decompressed = new byte[testcase.length];
+      int off = 0;
+      int n;
+      while (off < decompressed.length && (n = in.read(decompressed, off, decompressed.length - off)) != -1) {
+        off += n;
+      }
+      assertEquals(-1, in.read());
+      in.close();
+      assertEquals(ByteBuffer.wrap(testcase), ByteBuffer.wrap(decompressed));
+
+      // and the other way around
+      ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+      GZIPOutputStream out = new GZIPOutputStream(bytesOut);
+      out.write(testcase);
+      out.close();
+      byte[] streamed = bytesOut.toByteArray();
+      decompressed = new byte[testcase.length];
+      assertEquals(testcase.length, codec.decompress(streamed, 0, streamed.length, decompressed, 0));
+      assertEquals(ByteBuffer.wrap(testcase), ByteBuffer.wrap(decompressed));
+
+      // a bad checksum is caught
+      streamed[streamed.length - 8] ^= 1;
+      try {
+        codec.decompress(streamed, 0, streamed.length, decompressed, 0);
+        fail("should have thrown an exception");
+      } catch (RuntimeException e) {}
+    }
+  }
 }
@@ -48,5 +48,38 @@ public class TestYamlPartservConfigurator extends BaseTestCase {
     assertEquals("rg1", conf.getRingGroupName());
     assertEquals(5, conf.getNumConcurrentUpdates());
     assertEquals(5, conf.getNumThreads());
+    assertNull(conf.getBlockCache());
+    assertNull(conf.getValueCache());
+    assertNull(conf.getRecordHeat());
+  }
+
+  public void testBlockCache() throws Exception {
+    PrintWriter pw = new PrintWriter(new FileWriter(configPath));
+    pw.println("partserv:");
+    pw.println("  local_data_dirs: ");
+    pw.println("    - /path/to/some/data ");
+    pw.println("  service_port: 1");
+    pw.println("  ring_group_name: rg1");
+    pw.println("  part_daemon:");
+    pw.println("    num_worker_threads: 5");
+    pw.println("    block_cache_bytes: 1048576");
+    pw.println("    value_cache_bytes: 2097152");
+    pw.println("    record_heat_expected_records: 1000");
+    pw.println("  update_daemon:");
+    pw.println("    num_concurrent_updates: 5");
+    pw.println("coordinator:");
+    pw.println("  factory: " + MockCoordinator.Factory.class.getName());
+    pw.println("  options:");
+    pw.println("    blah: blah");
+    pw.close();
+
+    YamlPartservConfigurator conf = new YamlPartservConfigurator(configPath);
+    assertEquals(1048576, conf.getBlockCache().getCapacity());
+    // every reader has to get the same cache
+    assertSame(conf.getBlockCache(), conf.getBlockCache());
+    assertEquals(2097152, conf.getValueCache().getCapacity());
+    assertSame(conf.getValueCache(), conf.getValueCache());
+    assertEquals(1000, conf.getRecordHeat().getExpectedRecords());
+    assertSame(conf.getRecordHeat(), conf.getRecordHeat());
   }
 }
@@ -20,6 +20,9 @@ import java.util.Set;
 
 import com.rapleaf.hank.config.PartservConfigurator;
 import com.rapleaf.hank.coordinator.Coordinator;
+import com.rapleaf.hank.storage.BlockCache;
+import com.rapleaf.hank.storage.RecordHeat;
+import com.rapleaf.hank.storage.ValueCache;
 
 public class MockPartDaemonConfigurator implements PartservConfigurator {
 
@@ -64,4 +67,19 @@ public class MockPartDaemonConfigurator implements PartservConfigurator {
   public int getNumConcurrentUpdates() {
     return 1;
   }
+
+  @Override
+  public BlockCache getBlockCache() {
+    return null;
+  }
+
+  @Override
+  public ValueCache getValueCache() {
+    return null;
+  }
+
+  @Override
+  public RecordHeat getRecordHeat() {
+    return null;
+  }
 }
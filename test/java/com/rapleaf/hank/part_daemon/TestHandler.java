@@ -134,6 +134,8 @@ public class TestHandler extends BaseTestCase {
 
     assertEquals(HankResponse.value(V1), handler.get((byte) 0, K1));
     assertEquals(HankResponse.value(V1), handler.get((byte) 0, K5));
+    // value responses are reused by the serving thread
+    assertSame(handler.get((byte) 0, K1), handler.get((byte) 0, K5));
 
     assertEquals(HankResponse.wrong_host(true), handler.get((byte) 0, K2));
     assertEquals(HankResponse.wrong_host(true), handler.get((byte) 0, K3));
@@ -49,4 +49,11 @@ public class MapReader implements Reader {
       result.getBuffer().rewind();
     }
   }
+
+  @Override
+  public void get(ByteBuffer[] keys, Result[] results) throws IOException {
+    for (int i = 0; i < keys.length; i++) {
+      get(keys[i], results[i]);
+    }
+  }
 }
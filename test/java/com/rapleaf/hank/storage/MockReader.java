@@ -48,4 +48,11 @@ public class MockReader implements Reader {
   public int getPartNum() {
     return partNum;
   }
+
+  @Override
+  public void get(ByteBuffer[] keys, Result[] results) throws IOException {
+    for (int i = 0; i < keys.length; i++) {
+      get(keys[i], results[i]);
+    }
+  }
 }
@@ -0,0 +1,107 @@
+/**
+ *  Copyright 2011 Rapleaf
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.rapleaf.hank.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import com.rapleaf.hank.BaseTestCase;
+
+public class TestBlockCache extends BaseTestCase {
+  public void testHitsAndMisses() throws Exception {
+    BlockCache cache = new BlockCache(1024, 1);
+    assertNull(cache.get(0, 1));
+    cache.put(0, 1, new BlockCache.Block(new byte[]{1}));
+    assertEquals(1, cache.get(0, 1).getData()[0]);
+    // same block number, different file
+    assertNull(cache.get(1, 1));
+
+    assertEquals(1, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+    assertEquals(1 + BlockCache.ENTRY_OVERHEAD, cache.getSize());
+  }
+
+  public void testEvictsLeastRecentlyUsed() throws Exception {
+    final int blockSize = 100;
+    BlockCache cache = new BlockCache(3 * (blockSize + BlockCache.ENTRY_OVERHEAD), 1);
+    cache.put(0, 0, new BlockCache.Block(new byte[blockSize]));
+    cache.put(0, 1, new BlockCache.Block(new byte[blockSize]));
+    cache.put(0, 2, new BlockCache.Block(new byte[blockSize]));
+
+    // touch block 0 so that block 1 becomes the eldest
+    assertNotNull(cache.get(0, 0));
+    cache.put(0, 3, new BlockCache.Block(new byte[blockSize]));
+
+    assertNotNull(cache.get(0, 0));
+    assertNull(cache.get(0, 1));
+    assertNotNull(cache.get(0, 2));
+    assertNotNull(cache.get(0, 3));
+    assertEquals(1, cache.getEvictionCount());
+    assertEquals(3 * (blockSize + BlockCache.ENTRY_OVERHEAD), cache.getSize());
+
+    // blocks bigger than the whole cache are never admitted
+    cache.put(0, 4, new BlockCache.Block(new byte[10 * blockSize]));
+    assertNull(cache.get(0, 4));
+    assertNotNull(cache.get(0, 0));
+  }
+
+  public void testIndexIsCharged() throws Exception {
+    BlockCache cache = new BlockCache(1024, 1);
+    cache.put(0, 0, new BlockCache.Block(new byte[10], new long[4]));
+    assertEquals(10 + 4 * 8 + BlockCache.ENTRY_OVERHEAD, cache.getSize());
+  }
+
+  public void testFileIds() throws Exception {
+    String path1 = localTmpDir + "/file1";
+    String path2 = localTmpDir + "/file2";
+    new FileOutputStream(path1).close();
+    new FileOutputStream(path2).close();
+
+    BlockCache cache = new BlockCache(1024);
+    int id1 = cache.getFileId(localTmpDir, path1);
+    assertEquals(id1, cache.getFileId(localTmpDir, path1));
+    assertFalse(id1 == cache.getFileId(localTmpDir, path2));
+  }
+
+  public void testInvalidate() throws Exception {
+    String path1 = localTmpDir + "/file1";
+    String path2 = localTmpDir + "/file2";
+    new FileOutputStream(path1).close();
+    new FileOutputStream(path2).close();
+
+    BlockCache cache = new BlockCache(1024, 1);
+    int id1 = cache.getFileId(localTmpDir, path1);
+    int id2 = cache.getFileId(localTmpDir, path2);
+    cache.put(id1, 0, new BlockCache.Block(new byte[]{1}));
+    cache.put(id2, 0, new BlockCache.Block(new byte[]{2}));
+
+    // untouched files keep their ids and blocks
+    cache.invalidate(localTmpDir);
+    assertEquals(id1, cache.getFileId(localTmpDir, path1));
+    assertNotNull(cache.get(id1, 0));
+
+    // replaced ones lose both
+    new File(path2).delete();
+    cache.invalidate(localTmpDir);
+    assertNull(cache.get(id2, 0));
+    assertNotNull(cache.get(id1, 0));
+    assertEquals(1 + BlockCache.ENTRY_OVERHEAD, cache.getSize());
+    FileOutputStream out = new FileOutputStream(path2);
+    out.write(1);
+    out.close();
+    assertFalse(id2 == cache.getFileId(localTmpDir, path2));
+  }
+}
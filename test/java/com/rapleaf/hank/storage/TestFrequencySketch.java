@@ -0,0 +1,52 @@
+/**
+ *  Copyright 2011 Rapleaf
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.rapleaf.hank.storage;
+
+import com.rapleaf.hank.BaseTestCase;
+
+public class TestFrequencySketch extends BaseTestCase {
+  public void testCounts() throws Exception {
+    FrequencySketch sketch = new FrequencySketch(1024);
+    assertEquals(0, sketch.frequency(42));
+    for (int i = 0; i < 5; i++) {
+      sketch.increment(42);
+    }
+    assertEquals(5, sketch.frequency(42));
+    assertEquals(0, sketch.frequency(43));
+
+    // counters top out at 15
+    for (int i = 0; i < 20; i++) {
+      sketch.increment(42);
+    }
+    assertEquals(15, sketch.frequency(42));
+  }
+
+  public void testAging() throws Exception {
+    FrequencySketch sketch = new FrequencySketch(1024);
+    for (int i = 0; i < 15; i++) {
+      sketch.increment(-1);
+    }
+    assertEquals(15, sketch.frequency(-1));
+
+    // enough other keys go by that every counter gets halved
+    int numOthers = 0;
+    while (sketch.frequency(-1) == 15 && numOthers < 100000) {
+      sketch.increment(numOthers++);
+    }
+    assertTrue(numOthers < 100000);
+    assertTrue(sketch.frequency(-1) <= 8);
+  }
+}
@@ -0,0 +1,130 @@
+/**
+ *  Copyright 2011 Rapleaf
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.rapleaf.hank.storage;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import com.rapleaf.hank.BaseTestCase;
+import com.rapleaf.hank.compress.NoCompressionCodec;
+import com.rapleaf.hank.hasher.Murmur64Hasher;
+import com.rapleaf.hank.partitioner.Murmur64Partitioner;
+import com.rapleaf.hank.partitioner.Partitioner;
+import com.rapleaf.hank.storage.cueball.Cueball;
+import com.rapleaf.hank.storage.cueball.CueballReader;
+import com.rapleaf.hank.storage.curly.Curly;
+import com.rapleaf.hank.storage.curly.CurlyReader;
+
+public class TestLocalDomainBuilder extends BaseTestCase {
+  private static final int NUM_PARTS = 3;
+  private static final int KEY_HASH_SIZE = 12;
+  private static final int VALUE_SIZE = 4;
+  private static final int HASH_INDEX_BITS = 4;
+  private static final long MAX_PART_SIZE = 1 << 20;
+  // enough bytes to address MAX_PART_SIZE
+  private static final int CURLY_OFFSET_SIZE = 3;
+
+  public void testBuild() throws Exception {
+    doTestBuild(64);
+  }
+
+  public void testBuildWithMergePasses() throws Exception {
+    // each partition has far more runs than can be merged at once
+    doTestBuild(3);
+  }
+
+  public void testBuildCurly() throws Exception {
+    Curly curly = new Curly(KEY_HASH_SIZE, new Murmur64Hasher(), MAX_PART_SIZE, HASH_INDEX_BITS, 1024, "", null, NoCompressionCodec.class, "domain");
+    Partitioner partitioner = new Murmur64Partitioner();
+    LocalDomainBuilder builder = new LocalDomainBuilder(curly, partitioner, NUM_PARTS, localTmpDir + "/tmp", 16 * 1024, 3, 3);
+    for (int i = 0; i < 2000; i++) {
+      builder.add(getKey(i), getCurlyValue(i));
+    }
+    builder.build(new LocalDiskOutputStreamFactory(localTmpDir + "/out"), 0, true);
+    assertFalse(new File(localTmpDir + "/tmp").exists());
+
+    CurlyReader[] readers = new CurlyReader[NUM_PARTS];
+    for (int i = 0; i < NUM_PARTS; i++) {
+      String root = localTmpDir + "/out/" + i;
+      assertTrue(new File(root + "/00000.base.curly").exists());
+      readers[i] = new CurlyReader(root, 1024,
+          new CueballReader(root, KEY_HASH_SIZE, new Murmur64Hasher(), CURLY_OFFSET_SIZE, HASH_INDEX_BITS, new NoCompressionCodec()));
+    }
+    Result result = new Result();
+    for (int i = 0; i < 2000; i++) {
+      ByteBuffer key = getKey(i);
+      readers[partitioner.partition(key) % NUM_PARTS].get(key, result);
+      assertTrue(result.isFound());
+      assertEquals(getCurlyValue(i), result.getBuffer());
+    }
+  }
+
+  private void doTestBuild(int mergeFactor) throws Exception {
+    Cueball cueball = new Cueball(KEY_HASH_SIZE, new Murmur64Hasher(), VALUE_SIZE, HASH_INDEX_BITS, "", null, NoCompressionCodec.class, "domain");
+    Partitioner partitioner = new Murmur64Partitioner();
+    // small enough that the pairs are spilled in many runs
+    LocalDomainBuilder builder = new LocalDomainBuilder(cueball, partitioner, NUM_PARTS, localTmpDir + "/tmp", 16 * 1024, 3, mergeFactor);
+    for (int i = 0; i < 2000; i++) {
+      builder.add(getKey(i), getValue(i));
+    }
+    builder.build(new LocalDiskOutputStreamFactory(localTmpDir + "/out"), 0, true);
+    assertFalse(new File(localTmpDir + "/tmp").exists());
+
+    CueballReader[] readers = new CueballReader[NUM_PARTS];
+    for (int i = 0; i < NUM_PARTS; i++) {
+      assertTrue(new File(localTmpDir + "/out/" + i + "/00000.base.cueball").exists());
+      readers[i] = new CueballReader(localTmpDir + "/out/" + i, KEY_HASH_SIZE, new Murmur64Hasher(), VALUE_SIZE, HASH_INDEX_BITS, new NoCompressionCodec());
+    }
+    Result result = new Result();
+    for (int i = 0; i < 2000; i++) {
+      ByteBuffer key = getKey(i);
+      readers[partitioner.partition(key) % NUM_PARTS].get(key, result);
+      assertTrue(result.isFound());
+      assertEquals(getValue(i), result.getBuffer());
+    }
+  }
+
+  public void testEmptyPartitions() throws Exception {
+    Cueball cueball = new Cueball(KEY_HASH_SIZE, new Murmur64Hasher(), VALUE_SIZE, HASH_INDEX_BITS, "", null, NoCompressionCodec.class, "domain");
+    LocalDomainBuilder builder = new LocalDomainBuilder(cueball, new Murmur64Partitioner(), NUM_PARTS, localTmpDir + "/tmp", 1024 * 1024, 2);
+    builder.build(new LocalDiskOutputStreamFactory(localTmpDir + "/out"), 0, true);
+    for (int i = 0; i < NUM_PARTS; i++) {
+      CueballReader reader = new CueballReader(localTmpDir + "/out/" + i, KEY_HASH_SIZE, new Murmur64Hasher(), VALUE_SIZE, HASH_INDEX_BITS, new NoCompressionCodec());
+      Result result = new Result();
+      reader.get(getKey(1), result);
+      assertFalse(result.isFound());
+    }
+  }
+
+  private static ByteBuffer getKey(int i) {
+    // not in any particular order
+    byte[] key = new byte[8];
+    new Random(i).nextBytes(key);
+    return ByteBuffer.wrap(key);
+  }
+
+  private static ByteBuffer getCurlyValue(int i) {
+    // values of different lengths
+    byte[] value = new byte[1 + i % 7];
+    value[0] = (byte) i;
+    return ByteBuffer.wrap(value);
+  }
+
+  private static ByteBuffer getValue(int i) {
+    return ByteBuffer.wrap(new byte[]{(byte) i, (byte) (i >> 8), 1, 2});
+  }
+}
@@ -0,0 +1,48 @@
+/**
+ *  Copyright 2011 Rapleaf
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.rapleaf.hank.storage;
+
+import com.rapleaf.hank.BaseTestCase;
+
+public class TestRecordHeat extends BaseTestCase {
+  public void testHeat() throws Exception {
+    RecordHeat recordHeat = new RecordHeat(1024);
+    RecordHeat.Partition heat = recordHeat.getPartition("/a/1");
+    assertSame(heat, recordHeat.getPartition("/a/1"));
+    assertNotSame(heat, recordHeat.getPartition("/a/2"));
+
+    for (int i = 0; i < 100; i++) {
+      heat.recordRead(5);
+    }
+    heat.recordRead(17);
+    assertEquals(101, heat.getNumReads());
+    assertEquals(RecordHeat.MAX_HEAT, heat.getHeat(5));
+    assertTrue(heat.getHeat(17) >= 1);
+    assertTrue(heat.getHeat(17) < RecordHeat.MAX_HEAT);
+    // other partitions have their own stats
+    assertEquals(0, recordHeat.getPartition("/a/2").getNumReads());
+  }
+
+  public void testReset() throws Exception {
+    RecordHeat recordHeat = new RecordHeat(1024);
+    RecordHeat.Partition heat = recordHeat.getPartition("/a/1");
+    heat.recordRead(5);
+    recordHeat.reset("/a/1");
+    assertNotSame(heat, recordHeat.getPartition("/a/1"));
+    assertEquals(0, recordHeat.getPartition("/a/1").getNumReads());
+    assertEquals(0, recordHeat.getPartition("/a/1").getHeat(5));
+  }
+}
@@ -0,0 +1,101 @@
+/**
+ *  Copyright 2011 Rapleaf
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.rapleaf.hank.storage;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.rapleaf.hank.BaseTestCase;
+
+public class TestSingleFlight extends BaseTestCase {
+  public void testConcurrentLoadsAreCoalesced() throws Exception {
+    final SingleFlight<Integer, byte[]> singleFlight = new SingleFlight<Integer, byte[]>();
+    final AtomicInteger loads = new AtomicInteger();
+    final CountDownLatch release = new CountDownLatch(1);
+    final SingleFlight.Loader<Integer, byte[]> loader = new SingleFlight.Loader<Integer, byte[]>() {
+      @Override
+      public byte[] load(Integer key) throws IOException {
+        loads.incrementAndGet();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        return new byte[]{key.byteValue()};
+      }
+    };
+
+    final byte[][] values = new byte[2][];
+    Thread[] threads = new Thread[2];
+    for (int i = 0; i < threads.length; i++) {
+      final int threadNum = i;
+      threads[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            values[threadNum] = singleFlight.get(7, loader);
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      });
+    }
+    threads[0].start();
+    while (loads.get() == 0) {
+      Thread.sleep(1);
+    }
+    threads[1].start();
+    // wait for the second thread to join the first one's load
+    while (singleFlight.getCoalescedCount() == 0) {
+      Thread.sleep(1);
+    }
+    release.countDown();
+    threads[0].join();
+    threads[1].join();
+
+    assertEquals(1, loads.get());
+    assertEquals(7, values[0][0]);
+    assertSame(values[0], values[1]);
+
+    // nothing is remembered once the load is done
+    release.countDown();
+    singleFlight.get(7, loader);
+    assertEquals(2, loads.get());
+  }
+
+  public void testFailuresAreNotRemembered() throws Exception {
+    SingleFlight<Integer, byte[]> singleFlight = new SingleFlight<Integer, byte[]>();
+    try {
+      singleFlight.get(1, new SingleFlight.Loader<Integer, byte[]>() {
+        @Override
+        public byte[] load(Integer key) throws IOException {
+          throw new IOException("failed");
+        }
+      });
+      fail("should have thrown");
+    } catch (IOException e) {
+      assertEquals("failed", e.getMessage());
+    }
+
+    assertEquals(1, singleFlight.get(1, new SingleFlight.Loader<Integer, byte[]>() {
+      @Override
+      public byte[] load(Integer key) throws IOException {
+        return new byte[]{1};
+      }
+    })[0]);
+  }
+}
@@ -0,0 +1,108 @@
+/**
+ *  Copyright 2011 Rapleaf
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.rapleaf.hank.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+
+import com.rapleaf.hank.BaseTestCase;
+
+public class TestValueCache extends BaseTestCase {
+  public void testHitsAndMisses() throws Exception {
+    ValueCache cache = new ValueCache(1024, 1);
+    int fileId = cache.getFileId(localTmpDir, localTmpDir + "/00000.base.curly");
+    assertEquals(fileId, cache.getFileId(localTmpDir, localTmpDir + "/00000.base.curly"));
+
+    assertNull(cache.get(fileId, 5));
+    ByteBuffer value = ByteBuffer.wrap(new byte[]{9, 1, 2, 3});
+    value.position(1);
+    cache.put(fileId, 5, value);
+    // the cache takes a copy, and leaves the buffer alone
+    assertEquals(1, value.position());
+    assertEquals(ByteBuffer.wrap(new byte[]{1, 2, 3}), ByteBuffer.wrap(cache.get(fileId, 5)));
+    // same offset, different file
+    assertNull(cache.get(fileId + 1, 5));
+
+    assertEquals(1, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+    assertEquals(3 + ValueCache.ENTRY_OVERHEAD, cache.getSize());
+  }
+
+  public void testScanResistance() throws Exception {
+    final int valueSize = 100;
+    final int entrySize = valueSize + ValueCache.ENTRY_OVERHEAD;
+    ValueCache cache = new ValueCache(3 * entrySize, 1);
+    ByteBuffer value = ByteBuffer.wrap(new byte[valueSize]);
+
+    // three hot values, each asked for a few times
+    for (int i = 0; i < 3; i++) {
+      for (int j = 0; j < 3; j++) {
+        if (cache.get(0, i) == null) {
+          cache.put(0, i, value);
+        }
+      }
+    }
+    assertEquals(3 * entrySize, cache.getSize());
+
+    // a scan over cold values doesn't push any of them out
+    for (int i = 100; i < 200; i++) {
+      assertNull(cache.get(0, i));
+      cache.put(0, i, value);
+    }
+    for (int i = 0; i < 3; i++) {
+      assertNotNull(cache.get(0, i));
+    }
+    assertEquals(0, cache.getEvictionCount());
+    assertEquals(100, cache.getRejectionCount());
+
+    // but a value that becomes hot replaces the least recently used one
+    for (int j = 0; j < 5; j++) {
+      cache.get(0, 1000);
+    }
+    cache.put(0, 1000, value);
+    assertNotNull(cache.get(0, 1000));
+    assertNull(cache.get(0, 0));
+    assertEquals(1, cache.getEvictionCount());
+  }
+
+  public void testInvalidate() throws Exception {
+    ValueCache cache = new ValueCache(1024, 1);
+    String partitionRoot = localTmpDir + "/0";
+    String path = partitionRoot + "/00000.base.curly";
+    new File(partitionRoot).mkdir();
+    new FileOutputStream(path).close();
+    int fileId = cache.getFileId(partitionRoot, path);
+    int otherFileId = cache.getFileId(localTmpDir + "/1", localTmpDir + "/1/00000.base.curly");
+    cache.put(fileId, 0, ByteBuffer.wrap(new byte[]{1}));
+    cache.put(otherFileId, 0, ByteBuffer.wrap(new byte[]{2}));
+
+    // untouched files keep their ids and values
+    cache.invalidate(partitionRoot);
+    assertEquals(fileId, cache.getFileId(partitionRoot, path));
+    assertNotNull(cache.get(fileId, 0));
+
+    // replaced ones lose both, and other partitions are left alone
+    FileOutputStream out = new FileOutputStream(path);
+    out.write(1);
+    out.close();
+    cache.invalidate(partitionRoot);
+    assertNull(cache.get(fileId, 0));
+    assertNotNull(cache.get(otherFileId, 0));
+    assertEquals(1 + ValueCache.ENTRY_OVERHEAD, cache.getSize());
+    assertFalse(fileId == cache.getFileId(partitionRoot, path));
+  }
+}
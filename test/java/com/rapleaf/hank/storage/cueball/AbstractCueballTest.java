@@ -25,6 +25,27 @@ import com.rapleaf.hank.test.MapHasher;
 
 public class AbstractCueballTest extends BaseTestCase {
   protected static final byte[] EXPECTED_DATA = new byte[]{
+     1,1,1,1,1,1,1,1,1,1, // KEY1
+     1,2,1,2,1, // value 1 (truncated)
+     2,2,2,2,2,2,2,2,2,2, // KEY2
+     2,1,2,1,2,// value 2 (truncated)
+     (byte)0x8f,(byte)0x8f,(byte)0x8f,(byte)0x8f,(byte)0x8f,(byte)0x8f,(byte)0x8f,(byte)0x8f,(byte)0x8f,(byte)0x8f, // KEY3
+     (byte)0x8f,1,2,1,2,// value 3 (truncated)
+     1,0,0,0, // hash index bits
+     0,0,0,0,0,0,0,0, 0,0,0,0, // sample for hash prefix 0
+     60, // hash prefix 0: 30 bytes, no gap
+     30, // hash prefix 1: 15 bytes, no gap
+     18,0,0,0, // hash index length
+     30,0,0,0, // max uncompressed block
+     30,0,0,0, // max compressed block
+     2,0,0,0, // footer version
+     (byte)0xa1,0x0c,(byte)0xb1,(byte)0xcb, // footer magic
+  };
+
+  /**
+   * The same data, with the original fixed-width footer.
+   */
+  protected static final byte[] LEGACY_EXPECTED_DATA = new byte[]{
      1,1,1,1,1,1,1,1,1,1, // KEY1
      1,2,1,2,1, // value 1 (truncated)
      2,2,2,2,2,2,2,2,2,2, // KEY2
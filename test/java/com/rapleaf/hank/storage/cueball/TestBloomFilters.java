@@ -0,0 +1,68 @@
+/**
+ *  Copyright 2011 Rapleaf
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.rapleaf.hank.storage.cueball;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class TestBloomFilters extends TestCase {
+  private static final int KEY_HASH_SIZE = 10;
+  private static final int FULL_RECORD_SIZE = KEY_HASH_SIZE + 2;
+
+  public void testFilters() throws Exception {
+    final int hashIndexBits = 4;
+    Random random = new Random(1);
+    BloomFilters.Builder builder = new BloomFilters.Builder(hashIndexBits, 10);
+
+    // fill every other block with a different number of records
+    byte[][] blocks = new byte[1 << hashIndexBits][];
+    for (int i = 0; i < blocks.length; i += 2) {
+      blocks[i] = new byte[(i * 100 + 1) * FULL_RECORD_SIZE];
+      random.nextBytes(blocks[i]);
+      builder.addBlock(i, blocks[i], 0, blocks[i].length, KEY_HASH_SIZE, FULL_RECORD_SIZE);
+    }
+
+    BloomFilters filters = new BloomFilters(ByteBuffer.wrap(builder.toByteArray()), hashIndexBits);
+    assertEquals(10, filters.getBitsPerKey());
+
+    int falsePositives = 0;
+    int absentLookups = 0;
+    byte[] keyHash = new byte[KEY_HASH_SIZE];
+    for (int i = 0; i < blocks.length; i++) {
+      if (blocks[i] == null) {
+        random.nextBytes(keyHash);
+        assertFalse(filters.mightContain(i, keyHash, 0, KEY_HASH_SIZE));
+        continue;
+      }
+      // no false negatives
+      for (int off = 0; off < blocks[i].length; off += FULL_RECORD_SIZE) {
+        assertTrue(filters.mightContain(i, blocks[i], off, KEY_HASH_SIZE));
+      }
+      for (int j = 0; j < 1000; j++) {
+        random.nextBytes(keyHash);
+        absentLookups++;
+        if (filters.mightContain(i, keyHash, 0, KEY_HASH_SIZE)) {
+          falsePositives++;
+        }
+      }
+    }
+    // 10 bits per key should be around 1%
+    assertTrue("false positive rate was " + falsePositives + "/" + absentLookups,
+        falsePositives < absentLookups * 0.03);
+  }
+}
@@ -48,5 +48,11 @@ public class TestCueballFactory extends BaseTestCase {
     options.put(Cueball.Factory.REMOTE_DOMAIN_ROOT_KEY, "/path/to/what/i/say");
     options.put(Cueball.Factory.VALUE_SIZE_KEY, 15);
     factory.getStorageEngine(options, "domain0");
+
+    options.put(Cueball.Factory.BLOOM_FILTER_BITS_PER_KEY_KEY, 10);
+    assertTrue(factory.getStorageEngine(options, "domain0").toString().contains("bloomFilterBitsPerKey=10"));
+
+    options.put(Cueball.Factory.SINGLE_FLIGHT_KEY, true);
+    assertTrue(factory.getStorageEngine(options, "domain0").toString().contains("singleFlight=true"));
   }
 }
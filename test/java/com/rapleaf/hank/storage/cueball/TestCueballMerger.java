@@ -22,8 +22,14 @@ import java.io.FileOutputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.rapleaf.hank.compress.JavaGzipCompressionCodec;
 import com.rapleaf.hank.compress.NoCompressionCodec;
 
 public class TestCueballMerger extends AbstractCueballTest {
@@ -145,14 +151,24 @@ public class TestCueballMerger extends AbstractCueballTest {
     (byte) 0x8c, //1, 2, 3, 4,
     // value 12
     12, //1, 2, 3,
-    // block 0 offset
-    0,0,0,0,0,0,0,0,
-    // block 1 offset
-    10,0,0,0,0,0,0,0,
+    // hash index bits
+    1,0,0,0,
+    // sample for block 0
+    0,0,0,0,0,0,0,0, 0,0,0,0,
+    // block 0 length (10 bytes, no gap)
+    20,
+    // block 1 length (6 bytes, no gap)
+    12,
+    // hash index length
+    18,0,0,0,
     // max uncompressed size
     10,0,0,0,
     // max compressed size
     10,0,0,0,
+    // footer version
+    2,0,0,0,
+    // footer magic
+    (byte) 0xa1,0x0c,(byte) 0xb1,(byte) 0xcb,
   };
 
   public void testMerge() throws Exception {
@@ -188,4 +204,308 @@ public class TestCueballMerger extends AbstractCueballTest {
 
     assertEquals(ByteBuffer.wrap(EXPECTED_MERGED_DATA), ByteBuffer.wrap(actualMergedData));
   }
+
+  public void testMergeKeepsBloomFilters() throws Exception {
+    new File(LOCAL_ROOT).mkdirs();
+    // a base with bloom filters, and a delta without
+    CueballWriter writer = new CueballWriter(new FileOutputStream(BASE_FILE_PATH), 1, null, 1, new NoCompressionCodec(), 1, new CueballOptions().setBloomFilterBitsPerKey(8));
+    writer.writeHash(ByteBuffer.wrap(new byte[]{0x01}), ByteBuffer.wrap(new byte[]{1}));
+    writer.writeHash(ByteBuffer.wrap(new byte[]{(byte) 0x8a}), ByteBuffer.wrap(new byte[]{10}));
+    writer.close();
+
+    OutputStream s = new FileOutputStream(DELTA_1_FILE_PATH);
+    s.write(DELTA_1_DATA);
+    s.flush();
+    s.close();
+
+    new CueballMerger().merge(BASE_FILE_PATH,
+        new TreeSet<String>(Arrays.asList(DELTA_1_FILE_PATH)),
+        NEW_BASE_PATH,
+        1,
+        1,
+        null,
+        1,
+        new NoCompressionCodec());
+
+    Footer footer = new Footer(new FileInputStream(NEW_BASE_PATH).getChannel(), 1);
+    BloomFilters filters = footer.getBloomFilters();
+    assertNotNull(filters);
+    assertEquals(8, filters.getBitsPerKey());
+    for (byte key : new byte[]{0x01, 0x02, (byte) 0x8a, (byte) 0x8c}) {
+      assertTrue(filters.mightContain((key & 0x80) == 0 ? 0 : 1, new byte[]{key}, 0, 1));
+    }
+  }
+
+  public void testMergeManyDeltas() throws Exception {
+    new File(LOCAL_ROOT).mkdirs();
+    // each file has a random subset of the keys, with values recording which
+    // file they came from
+    SortedSet<String> deltas = new TreeSet<String>();
+    Map<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+    Random random = new Random(1);
+    for (int file = 0; file <= 8; file++) {
+      String path = LOCAL_ROOT + "/0000" + file + (file == 0 ? ".base" : ".delta") + ".cueball";
+      if (file > 0) {
+        deltas.add(path);
+      }
+      CueballWriter writer = new CueballWriter(new FileOutputStream(path), 1, null, 2, new NoCompressionCodec(), 1);
+      for (int key = 0; key < 256; key++) {
+        if (random.nextInt(3) == 0) {
+          writer.writeHash(ByteBuffer.wrap(new byte[]{(byte) key}), ByteBuffer.wrap(new byte[]{(byte) key, (byte) file}));
+          expected.put(key, file);
+        }
+      }
+      writer.close();
+    }
+
+    new CueballMerger().merge(LOCAL_ROOT + "/00000.base.cueball",
+        deltas,
+        NEW_BASE_PATH,
+        1,
+        2,
+        new ValueTransformer() {
+          @Override
+          public void transform(byte[] buf, int off, int relIndex) {
+            // only the winning value is transformed
+            assertEquals(relIndex, buf[off + 1]);
+            buf[off + 1] += 100;
+          }
+
+          @Override
+          public boolean isIdentity(int relIndex) {
+            return false;
+          }
+        },
+        1,
+        new NoCompressionCodec());
+
+    StreamBuffer merged = new StreamBuffer(NEW_BASE_PATH, 0, 1, 2, 1, new NoCompressionCodec());
+    for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+      assertTrue(merged.anyRemaining());
+      byte[] buf = merged.getBuffer();
+      int off = merged.getCurrentOffset();
+      assertEquals(entry.getKey().intValue(), buf[off] & 0xff);
+      assertEquals(entry.getKey().intValue(), buf[off + 1] & 0xff);
+      assertEquals(entry.getValue() + 100, buf[off + 2]);
+      merged.consume();
+    }
+    assertFalse(merged.anyRemaining());
+  }
+
+  public void testMergeCopiesUntouchedBlocks() throws Exception {
+    new File(LOCAL_ROOT).mkdirs();
+    // a gzipped base with Bloom filters and a key in each of 16 blocks, and a
+    // delta that only touches the fourth block
+    CueballWriter writer = new CueballWriter(new FileOutputStream(BASE_FILE_PATH), 1, null, 1, new JavaGzipCompressionCodec(), 4, new CueballOptions().setBloomFilterBitsPerKey(8));
+    for (int key = 0; key < 256; key += 16) {
+      writer.writeHash(ByteBuffer.wrap(new byte[]{(byte) key}), ByteBuffer.wrap(new byte[]{1}));
+    }
+    writer.close();
+    writer = new CueballWriter(new FileOutputStream(DELTA_1_FILE_PATH), 1, null, 1, new JavaGzipCompressionCodec(), 4);
+    writer.writeHash(ByteBuffer.wrap(new byte[]{0x31}), ByteBuffer.wrap(new byte[]{2}));
+    writer.close();
+
+    // reading ahead mustn't decompress the blocks that get copied either
+    for (CueballMerger merger : new CueballMerger[]{new CueballMerger(), new CueballMerger(1, true), new CueballMerger(3, true)}) {
+      final AtomicInteger numDecompressed = new AtomicInteger();
+      merger.merge(BASE_FILE_PATH,
+          new TreeSet<String>(Arrays.asList(DELTA_1_FILE_PATH)),
+          NEW_BASE_PATH,
+          1,
+          1,
+          null,
+          4,
+          new JavaGzipCompressionCodec() {
+            @Override
+            public int decompress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOff) {
+              numDecompressed.incrementAndGet();
+              return super.decompress(src, srcOffset, srcLength, dst, dstOff);
+            }
+
+            @Override
+            public int decompress(ByteBuffer src, ByteBuffer dst) {
+              numDecompressed.incrementAndGet();
+              return super.decompress(src, dst);
+            }
+          });
+      // only the fourth block of the base and the delta's block
+      assertEquals(2, numDecompressed.get());
+    }
+
+    Footer baseFooter = new Footer(new FileInputStream(BASE_FILE_PATH).getChannel(), 4);
+    Footer footer = new Footer(new FileInputStream(NEW_BASE_PATH).getChannel(), 4);
+    byte[] baseData = readData(BASE_FILE_PATH, baseFooter);
+    byte[] data = readData(NEW_BASE_PATH, footer);
+    for (int block = 0; block < 16; block++) {
+      if (block == 3) {
+        continue;
+      }
+      // the untouched blocks are just the same, compressed bytes and all
+      assertEquals(ByteBuffer.wrap(baseData, (int) baseFooter.getIndex().getOffset(block), baseFooter.getIndex().getLength(block)),
+          ByteBuffer.wrap(data, (int) footer.getIndex().getOffset(block), footer.getIndex().getLength(block)));
+      assertTrue(footer.getBloomFilters().mightContain(block, new byte[]{(byte) (block * 16)}, 0, 1));
+    }
+    assertTrue(footer.getBloomFilters().mightContain(3, new byte[]{0x31}, 0, 1));
+
+    StreamBuffer merged = new StreamBuffer(NEW_BASE_PATH, 0, 1, 1, 4, new JavaGzipCompressionCodec());
+    for (int key = 0; key < 256; key += 16) {
+      assertTrue(merged.anyRemaining());
+      assertEquals(key, merged.getBuffer()[merged.getCurrentOffset()] & 0xff);
+      assertEquals(1, merged.getBuffer()[merged.getCurrentOffset() + 1]);
+      merged.consume();
+      if (key == 0x30) {
+        assertTrue(merged.anyRemaining());
+        assertEquals(0x31, merged.getBuffer()[merged.getCurrentOffset()]);
+        assertEquals(2, merged.getBuffer()[merged.getCurrentOffset() + 1]);
+        merged.consume();
+      }
+    }
+    assertFalse(merged.anyRemaining());
+  }
+
+  public void testParallelMerge() throws Exception {
+    new File(LOCAL_ROOT).mkdirs();
+    writeRandomInputs(0);
+    merge(new CueballMerger(), NEW_BASE_PATH);
+    merge(new CueballMerger(3), LOCAL_ROOT + "/parallel.cueball");
+    // the same file, footer and all
+    assertEquals(ByteBuffer.wrap(readFile(NEW_BASE_PATH)), ByteBuffer.wrap(readFile(LOCAL_ROOT + "/parallel.cueball")));
+    assertFalse(new File(LOCAL_ROOT + "/parallel.cueball.segment0").exists());
+
+    // page-aligned segments may be padded differently, but hold the same
+    // records
+    writeRandomInputs(64);
+    merge(new CueballMerger(), NEW_BASE_PATH);
+    merge(new CueballMerger(3), LOCAL_ROOT + "/parallel.cueball");
+    Footer footer = new Footer(new FileInputStream(LOCAL_ROOT + "/parallel.cueball").getChannel(), 4);
+    assertEquals(64, footer.getPageSize());
+    StreamBuffer serial = new StreamBuffer(NEW_BASE_PATH, 0, 1, 1, 4, new JavaGzipCompressionCodec());
+    StreamBuffer parallel = new StreamBuffer(LOCAL_ROOT + "/parallel.cueball", 0, 1, 1, 4, new JavaGzipCompressionCodec());
+    while (serial.anyRemaining()) {
+      assertTrue(parallel.anyRemaining());
+      assertEquals(ByteBuffer.wrap(serial.getBuffer(), serial.getCurrentOffset(), 2),
+          ByteBuffer.wrap(parallel.getBuffer(), parallel.getCurrentOffset(), 2));
+      serial.consume();
+      parallel.consume();
+    }
+    assertFalse(parallel.anyRemaining());
+    for (int key = 0; key < 256; key++) {
+      if (key % 3 == 0) {
+        assertTrue(footer.getBloomFilters().mightContain(key >> 4, new byte[]{(byte) key}, 0, 1));
+      }
+    }
+  }
+
+  public void testFailedMergeLeavesNoFiles() throws Exception {
+    new File(LOCAL_ROOT).mkdirs();
+    writeRandomInputs(0);
+    ValueTransformer failing = new ValueTransformer() {
+      @Override
+      public void transform(byte[] buf, int off, int relIndex) {
+        throw new IllegalStateException("can't transform");
+      }
+
+      @Override
+      public boolean isIdentity(int relIndex) {
+        return false;
+      }
+    };
+    for (CueballMerger merger : new CueballMerger[]{new CueballMerger(), new CueballMerger(3)}) {
+      try {
+        merger.merge(BASE_FILE_PATH,
+            new TreeSet<String>(Arrays.asList(DELTA_1_FILE_PATH, DELTA_2_FILE_PATH)),
+            NEW_BASE_PATH,
+            1,
+            1,
+            failing,
+            4,
+            new JavaGzipCompressionCodec());
+        fail("should have thrown an exception");
+      } catch (RuntimeException e) {}
+      assertFalse(new File(NEW_BASE_PATH).exists());
+      for (int i = 0; i < 3; i++) {
+        assertFalse(new File(NEW_BASE_PATH + ".segment" + i).exists());
+      }
+    }
+  }
+
+  public void testMergeReadAhead() throws Exception {
+    new File(LOCAL_ROOT).mkdirs();
+    writeRandomInputs(0);
+    merge(new CueballMerger(), NEW_BASE_PATH);
+    merge(new CueballMerger(1, true), LOCAL_ROOT + "/read_ahead.cueball");
+    assertEquals(ByteBuffer.wrap(readFile(NEW_BASE_PATH)), ByteBuffer.wrap(readFile(LOCAL_ROOT + "/read_ahead.cueball")));
+    merge(new CueballMerger(3, true), LOCAL_ROOT + "/read_ahead.cueball");
+    assertEquals(ByteBuffer.wrap(readFile(NEW_BASE_PATH)), ByteBuffer.wrap(readFile(LOCAL_ROOT + "/read_ahead.cueball")));
+  }
+
+  private void writeRandomInputs(int pageSize) throws Exception {
+    // a base with every third key, and deltas with random ones
+    Random random = new Random(1);
+    String[] paths = {BASE_FILE_PATH, DELTA_1_FILE_PATH, DELTA_2_FILE_PATH};
+    for (int file = 0; file < paths.length; file++) {
+      CueballWriter writer = new CueballWriter(new FileOutputStream(paths[file]), 1, null, 1, new JavaGzipCompressionCodec(), 4,
+          new CueballOptions().setBloomFilterBitsPerKey(8).setPageSize(pageSize));
+      for (int key = 0; key < 256; key++) {
+        if (file == 0 ? key % 3 == 0 : random.nextInt(8) == 0) {
+          writer.writeHash(ByteBuffer.wrap(new byte[]{(byte) key}), ByteBuffer.wrap(new byte[]{(byte) file}));
+        }
+      }
+      writer.close();
+    }
+  }
+
+  private void merge(CueballMerger merger, String newBasePath) throws Exception {
+    merger.merge(BASE_FILE_PATH,
+        new TreeSet<String>(Arrays.asList(DELTA_1_FILE_PATH, DELTA_2_FILE_PATH)),
+        newBasePath,
+        1,
+        1,
+        null,
+        4,
+        new JavaGzipCompressionCodec());
+  }
+
+  private static byte[] readFile(String path) throws Exception {
+    byte[] data = new byte[(int) new File(path).length()];
+    DataInputStream in = new DataInputStream(new FileInputStream(path));
+    in.readFully(data);
+    in.close();
+    return data;
+  }
+
+  private static byte[] readData(String path, Footer footer) throws Exception {
+    byte[] data = new byte[(int) footer.getDataLength()];
+    DataInputStream in = new DataInputStream(new FileInputStream(path));
+    in.readFully(data);
+    in.close();
+    return data;
+  }
+
+  public void testMergeKeepsPageSize() throws Exception {
+    new File(LOCAL_ROOT).mkdirs();
+    // a page-aligned base, and a delta that isn't
+    CueballWriter writer = new CueballWriter(new FileOutputStream(BASE_FILE_PATH), 1, null, 1, new NoCompressionCodec(), 1, new CueballOptions().setPageSize(4096));
+    writer.writeHash(ByteBuffer.wrap(new byte[]{0x01}), ByteBuffer.wrap(new byte[]{1}));
+    writer.writeHash(ByteBuffer.wrap(new byte[]{(byte) 0x8a}), ByteBuffer.wrap(new byte[]{10}));
+    writer.close();
+
+    OutputStream s = new FileOutputStream(DELTA_1_FILE_PATH);
+    s.write(DELTA_1_DATA);
+    s.flush();
+    s.close();
+
+    new CueballMerger().merge(BASE_FILE_PATH,
+        new TreeSet<String>(Arrays.asList(DELTA_1_FILE_PATH)),
+        NEW_BASE_PATH,
+        1,
+        1,
+        null,
+        1,
+        new NoCompressionCodec());
+
+    Footer footer = new Footer(new FileInputStream(NEW_BASE_PATH).getChannel(), 1);
+    assertEquals(4096, footer.getPageSize());
+    assertNull(footer.getBloomFilters());
+  }
 }
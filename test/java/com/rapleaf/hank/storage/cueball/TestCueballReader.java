@@ -19,21 +19,196 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.rapleaf.hank.compress.JavaGzipCompressionCodec;
 import com.rapleaf.hank.compress.NoCompressionCodec;
+import com.rapleaf.hank.storage.BlockCache;
 import com.rapleaf.hank.storage.Result;
 
 public class TestCueballReader extends AbstractCueballTest {
   public void testRead() throws Exception {
-    // set up fake cueball file
+    doTestRead(ReadMode.CHANNEL, null);
+  }
+
+  public void testReadMmap() throws Exception {
+    doTestRead(ReadMode.MMAP, null);
+  }
+
+  public void testReadMemory() throws Exception {
+    CueballReader reader = doTestRead(ReadMode.MEMORY, null);
+    // 45 bytes of records, plus a chunk, start and end for each of the two
+    // blocks
+    assertEquals(45 + 2 * 12, reader.getMemoryUsage());
+  }
+
+  public void testReadLegacyFooter() throws Exception {
+    doTestRead(LEGACY_EXPECTED_DATA, ReadMode.CHANNEL, null);
+    doTestRead(LEGACY_EXPECTED_DATA, ReadMode.MMAP, null);
+    doTestRead(LEGACY_EXPECTED_DATA, ReadMode.MEMORY, null);
+  }
+
+  public void testReadWithBlockCache() throws Exception {
+    BlockCache cache = new BlockCache(1024, 1);
+    doTestRead(ReadMode.CHANNEL, cache);
+    // two blocks were loaded, everything else was served from the cache
+    assertEquals(2, cache.getMissCount());
+    assertEquals(4, cache.getHitCount());
+  }
+
+  public void testReadSingleFlight() throws Exception {
+    CueballReader reader = doTestRead(EXPECTED_DATA, ReadMode.CHANNEL, null, true);
+    // one thread can't race itself
+    assertEquals(0, reader.getCoalescedReadCount());
+
+    BlockCache cache = new BlockCache(1024, 1);
+    doTestRead(EXPECTED_DATA, ReadMode.CHANNEL, cache, true);
+    assertEquals(2, cache.getMissCount());
+    assertEquals(4, cache.getHitCount());
+  }
+
+  public void testReadGzipWithBlockCache() throws Exception {
+    String root = localTmpDir + "/1";
+    new File(root).mkdir();
+    CueballWriter writer = new CueballWriter(new FileOutputStream(root + "/00000.base.cueball"),
+        10, HASHER, 5, new JavaGzipCompressionCodec(), 1);
+    writer.write(ByteBuffer.wrap(KEY1), ByteBuffer.wrap(new byte[]{1,2,1,2,1}));
+    writer.write(ByteBuffer.wrap(KEY2), ByteBuffer.wrap(new byte[]{2,1,2,1,2}));
+    writer.write(ByteBuffer.wrap(KEY3), ByteBuffer.wrap(new byte[]{(byte) 0x8f,1,2,1,2}));
+    writer.close();
+
+    BlockCache cache = new BlockCache(1024, 1);
+    CueballReader reader = new CueballReader(root, 10, HASHER, 5, 1, new JavaGzipCompressionCodec(), ReadMode.CHANNEL, cache);
+    Result result = new Result();
+    for (int i = 0; i < 2; i++) {
+      reader.get(ByteBuffer.wrap(KEY2), result);
+      assertTrue(result.isFound());
+      assertEquals(ByteBuffer.wrap(new byte[]{2,1,2,1,2}), result.getBuffer());
+
+      reader.get(ByteBuffer.wrap(KEY3), result);
+      assertTrue(result.isFound());
+      assertEquals(ByteBuffer.wrap(new byte[]{(byte) 0x8f,1,2,1,2}), result.getBuffer());
+
+      reader.get(ByteBuffer.wrap(KEY4), result);
+      assertFalse(result.isFound());
+    }
+    assertEquals(2, cache.getMissCount());
+    assertEquals(4, cache.getHitCount());
+
+    // each block is decompressed straight into the memory table, just once
+    final AtomicInteger numDecompressed = new AtomicInteger();
+    reader = new CueballReader(root, 10, HASHER, 5, 1, new JavaGzipCompressionCodec() {
+      @Override
+      public int decompress(ByteBuffer src, ByteBuffer dst) {
+        numDecompressed.incrementAndGet();
+        return super.decompress(src, dst);
+      }
+    }, ReadMode.MEMORY, null);
+    assertEquals(2, numDecompressed.get());
+    reader.get(ByteBuffer.wrap(KEY1), result);
+    assertEquals(ByteBuffer.wrap(new byte[]{1,2,1,2,1}), result.getBuffer());
+    reader.get(ByteBuffer.wrap(KEY3), result);
+    assertEquals(ByteBuffer.wrap(new byte[]{(byte) 0x8f,1,2,1,2}), result.getBuffer());
+    assertEquals(3 * 15 + 2 * 12, reader.getMemoryUsage());
+  }
+
+  public void testReadWithBloomFilters() throws Exception {
+    String root = localTmpDir + "/1";
+    new File(root).mkdir();
+    CueballWriter writer = new CueballWriter(new FileOutputStream(root + "/00000.base.cueball"),
+        10, HASHER, 5, new NoCompressionCodec(), 1, new CueballOptions().setBloomFilterBitsPerKey(10));
+    writer.write(ByteBuffer.wrap(KEY1), ByteBuffer.wrap(new byte[]{1,2,1,2,1}));
+    writer.write(ByteBuffer.wrap(KEY2), ByteBuffer.wrap(new byte[]{2,1,2,1,2}));
+    writer.write(ByteBuffer.wrap(KEY3), ByteBuffer.wrap(new byte[]{(byte) 0x8f,1,2,1,2}));
+    writer.close();
+
+    // every lookup that reaches the data goes through the cache, so the miss
+    // count shows which lookups the filters let through
+    BlockCache cache = new BlockCache(1024, 1);
+    CueballReader reader = new CueballReader(root, 10, HASHER, 5, 1, new NoCompressionCodec(), ReadMode.CHANNEL, cache);
+    Result result = new Result();
+    reader.get(ByteBuffer.wrap(KEY1), result);
+    assertTrue(result.isFound());
+    assertEquals(ByteBuffer.wrap(new byte[]{1,2,1,2,1}), result.getBuffer());
+
+    reader.get(ByteBuffer.wrap(KEY3), result);
+    assertTrue(result.isFound());
+    assertEquals(ByteBuffer.wrap(new byte[]{(byte) 0x8f,1,2,1,2}), result.getBuffer());
+
+    reader.get(ByteBuffer.wrap(KEY2), result);
+    assertTrue(result.isFound());
+    assertEquals(ByteBuffer.wrap(new byte[]{2,1,2,1,2}), result.getBuffer());
+    assertEquals(3, cache.getHitCount() + cache.getMissCount());
+
+    // absent keys, one in each of the occupied blocks
+    reader.get(ByteBuffer.wrap(KEY4), result);
+    assertFalse(result.isFound());
+    reader.get(ByteBuffer.wrap(KEY10), result);
+    assertFalse(result.isFound());
+    assertEquals(3, cache.getHitCount() + cache.getMissCount());
+  }
+
+  public void testBatchRead() throws Exception {
+    doTestBatchRead(ReadMode.CHANNEL, null);
+    doTestBatchRead(ReadMode.MEMORY, null);
+
+    BlockCache cache = new BlockCache(1024, 1);
+    doTestBatchRead(ReadMode.CHANNEL, cache);
+    // each block was only loaded once, even though the batch hit one of them
+    // three times
+    assertEquals(2, cache.getMissCount());
+    assertEquals(0, cache.getHitCount());
+  }
+
+  private void doTestBatchRead(ReadMode readMode, BlockCache blockCache) throws Exception {
     String root = localTmpDir + "/1";
     new File(root).mkdir();
     OutputStream os = new FileOutputStream(root + "/00000.base.cueball");
     os.write(EXPECTED_DATA);
+    os.close();
+
+    CueballReader reader = new CueballReader(root, 10, HASHER, 5, 1, new NoCompressionCodec(), readMode, blockCache);
+    ByteBuffer[] keys = new ByteBuffer[]{
+        ByteBuffer.wrap(KEY3),
+        ByteBuffer.wrap(KEY1),
+        ByteBuffer.wrap(KEY4),
+        ByteBuffer.wrap(KEY10),
+        ByteBuffer.wrap(KEY2),
+    };
+    Result[] results = new Result[keys.length];
+    for (int i = 0; i < results.length; i++) {
+      results[i] = new Result();
+    }
+    reader.get(keys, results);
+
+    assertTrue(results[0].isFound());
+    assertEquals(ByteBuffer.wrap(new byte[]{(byte) 0x8f,1,2,1,2}), results[0].getBuffer());
+    assertTrue(results[1].isFound());
+    assertEquals(ByteBuffer.wrap(new byte[]{1,2,1,2,1}), results[1].getBuffer());
+    assertFalse(results[2].isFound());
+    assertFalse(results[3].isFound());
+    assertTrue(results[4].isFound());
+    assertEquals(ByteBuffer.wrap(new byte[]{2,1,2,1,2}), results[4].getBuffer());
+  }
+
+  private CueballReader doTestRead(ReadMode readMode, BlockCache blockCache) throws Exception {
+    return doTestRead(EXPECTED_DATA, readMode, blockCache);
+  }
+
+  private CueballReader doTestRead(byte[] data, ReadMode readMode, BlockCache blockCache) throws Exception {
+    return doTestRead(data, readMode, blockCache, false);
+  }
+
+  private CueballReader doTestRead(byte[] data, ReadMode readMode, BlockCache blockCache, boolean singleFlight) throws Exception {
+    // set up fake cueball file
+    String root = localTmpDir + "/1";
+    new File(root).mkdir();
+    OutputStream os = new FileOutputStream(root + "/00000.base.cueball");
+    os.write(data);
     os.flush();
     os.close();
 
-    CueballReader reader = new CueballReader(root, 10, HASHER, 5, 1, new NoCompressionCodec());
+    CueballReader reader = new CueballReader(root, 10, HASHER, 5, 1, new NoCompressionCodec(), readMode, blockCache, singleFlight);
 
     Result result = new Result();
     reader.get(ByteBuffer.wrap(KEY1), result);
@@ -58,5 +233,6 @@ public class TestCueballReader extends AbstractCueballTest {
 
     reader.get(ByteBuffer.wrap(KEY10), result);
     assertFalse(result.isFound());
+    return reader;
   }
 }
@@ -118,6 +118,40 @@ public class TestCueballUpdater extends BaseTestCase {
     assertFalse(localFileExists(LOCAL_ROOT + "/00007.delta.cueball"));
   }
 
+  public void testLayeredDeltas() throws Exception {
+    makeLocalFile("00005.base.cueball");
+
+    MockFetcher fetcher = new MockFetcher(LOCAL_ROOT, "00006.delta.cueball", "00007.delta.cueball");
+    MockCueballMerger merger = new MockCueballMerger();
+    CueballUpdater updater = new CueballUpdater(LOCAL_ROOT, 12, 5, fetcher,
+        merger, new NoCompressionCodec(), 1, new DeltaMergePolicy(2, 0), null);
+
+    updater.update(7);
+
+    // two deltas are left alone next to the base
+    assertFalse(merger.called);
+    assertTrue(localFileExists("/00005.base.cueball"));
+    assertTrue(localFileExists("/00006.delta.cueball"));
+    assertTrue(localFileExists("/00007.delta.cueball"));
+
+    fetcher = new MockFetcher(LOCAL_ROOT, "00008.delta.cueball");
+    updater = new CueballUpdater(LOCAL_ROOT, 12, 5, fetcher,
+        merger, new NoCompressionCodec(), 1, new DeltaMergePolicy(2, 0), null);
+
+    updater.update(8);
+
+    // the unmerged deltas count towards the local version
+    assertEquals(7, fetcher.latestLocalVersion);
+
+    // but three are too many
+    assertEquals(LOCAL_ROOT + "/00005.base.cueball", merger.latestBase);
+    assertEquals(3, merger.deltas.size());
+    assertEquals(LOCAL_ROOT + "/00008.base.cueball", merger.newBasePath);
+    assertFalse(localFileExists("/00005.base.cueball"));
+    assertFalse(localFileExists("/00006.delta.cueball"));
+    assertFalse(localFileExists("/00008.delta.cueball"));
+  }
+
   private boolean localFileExists(String localFile) {
     return new File(LOCAL_ROOT + "/" + localFile).exists();
   }
@@ -15,8 +15,13 @@
  */
 package com.rapleaf.hank.storage.cueball;
 import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 
+import com.rapleaf.hank.compress.CompressionCodec;
+import com.rapleaf.hank.compress.JavaGzipCompressionCodec;
 import com.rapleaf.hank.compress.NoCompressionCodec;
 
 
@@ -35,4 +40,133 @@ public class TestCueballWriter extends AbstractCueballTest {
     assertEquals(ByteBuffer.wrap(EXPECTED_DATA),
         ByteBuffer.wrap(result));
   }
+
+  public void testCompressionThreads() throws Exception {
+    ByteArrayOutputStream s = new ByteArrayOutputStream();
+    CueballWriter cw = new CueballWriter(s, 10, HASHER, 5, new NoCompressionCodec(), 1, new CueballOptions().setCompressionThreads(2));
+    cw.write(ByteBuffer.wrap(KEY1), ByteBuffer.wrap(new byte[]{1,2,1,2,1,2}));
+    cw.write(ByteBuffer.wrap(KEY2), ByteBuffer.wrap(new byte[]{2,1,2,1,2,1}));
+    cw.write(ByteBuffer.wrap(KEY3), ByteBuffer.wrap(new byte[]{(byte) 0x8f,1,2,1,2,1}));
+    cw.close();
+    assertEquals(ByteBuffer.wrap(EXPECTED_DATA), ByteBuffer.wrap(s.toByteArray()));
+
+    // with more blocks than can be in flight at once, the file is the same
+    // as one written on a single thread
+    for (int threads = 1; threads <= 3; threads++) {
+      assertEquals(ByteBuffer.wrap(writeBlocks(new JavaGzipCompressionCodec(), 0)),
+          ByteBuffer.wrap(writeBlocks(new JavaGzipCompressionCodec(), threads)));
+    }
+  }
+
+  public void testFailedWriteStopsCompressionThreads() throws Exception {
+    CueballWriter cw = new CueballWriter(new ByteArrayOutputStream(), 10, HASHER, 5, new NoCompressionCodec(), 8, new CueballOptions().setCompressionThreads(2));
+    byte[] value = new byte[5];
+    for (int i = 1; i <= 3; i++) {
+      cw.writeHash(ByteBuffer.wrap(new byte[]{(byte) i, 0, 0, 0, 0, 0, 0, 0, 0, 0}), ByteBuffer.wrap(value));
+    }
+    try {
+      cw.writeHash(ByteBuffer.wrap(new byte[10]), ByteBuffer.wrap(value));
+      fail("should have thrown an exception");
+    } catch (IOException e) {}
+
+    // the writer is never closed, but its threads still go away
+    Thread[] threads = new Thread[Thread.activeCount() * 2];
+    int numThreads = Thread.enumerate(threads);
+    for (int i = 0; i < numThreads; i++) {
+      if (threads[i].getName().startsWith("CueballWriter Compression Thread")) {
+        assertTrue(threads[i].isDaemon());
+        threads[i].join(10000);
+        assertFalse(threads[i].isAlive());
+      }
+    }
+  }
+
+  public void testAppendSegmentChecksSettings() throws Exception {
+    CueballOptions bloomFilters = new CueballOptions().setBloomFilterBitsPerKey(10);
+    // Bloom filters on one side only
+    doTestAppendMismatchedSegment(new CueballOptions(), 1, bloomFilters, 1);
+    doTestAppendMismatchedSegment(bloomFilters, 1, new CueballOptions(), 1);
+    doTestAppendMismatchedSegment(bloomFilters, 1, new CueballOptions().setBloomFilterBitsPerKey(8), 1);
+    doTestAppendMismatchedSegment(new CueballOptions().setPageSize(4096), 1, new CueballOptions(), 1);
+    doTestAppendMismatchedSegment(new CueballOptions(), 1, new CueballOptions(), 2);
+  }
+
+  private void doTestAppendMismatchedSegment(CueballOptions options, int hashIndexBits, CueballOptions segmentOptions, int segmentHashIndexBits) throws Exception {
+    CueballWriter writer = new CueballWriter(new ByteArrayOutputStream(), 10, HASHER, 5, new NoCompressionCodec(), hashIndexBits, options);
+    CueballWriter segment = new CueballWriter(new ByteArrayOutputStream(), 10, HASHER, 5, new NoCompressionCodec(), segmentHashIndexBits, segmentOptions);
+    segment.write(ByteBuffer.wrap(KEY1), ByteBuffer.wrap(new byte[]{1,2,1,2,1}));
+    segment.closeSegment();
+    try {
+      writer.appendSegment(segment, localTmpDir + "/segment");
+      fail("should have thrown an exception");
+    } catch (IllegalArgumentException e) {}
+  }
+
+  public void testPageAligned() throws Exception {
+    for (int threads = 0; threads <= 2; threads++) {
+      String alignedPath = localTmpDir + "/aligned" + threads;
+      FileOutputStream out = new FileOutputStream(alignedPath);
+      out.write(writeBlocks(new NoCompressionCodec(), 8, threads, 64));
+      out.close();
+      String unalignedPath = localTmpDir + "/unaligned" + threads;
+      out = new FileOutputStream(unalignedPath);
+      out.write(writeBlocks(new NoCompressionCodec(), 8, threads, 0));
+      out.close();
+
+      Footer footer = new Footer(new FileInputStream(alignedPath).getChannel(), 8);
+      assertEquals(64, footer.getPageSize());
+      assertNotNull(footer.getBloomFilters());
+      int numMoved = 0;
+      for (int i = 0; i < footer.getIndex().size(); i++) {
+        long offset = footer.getIndex().getOffset(i);
+        if (offset == -1) {
+          continue;
+        }
+        int length = footer.getIndex().getLength(i);
+        assertTrue(length <= 64);
+        assertEquals(offset / 64, (offset + length - 1) / 64);
+        if (offset % 64 == 0) {
+          numMoved++;
+        }
+      }
+      assertTrue(numMoved > 1);
+
+      // the padding doesn't change what's in the file
+      StreamBuffer aligned = new StreamBuffer(alignedPath, 0, 4, 2, 8, new NoCompressionCodec());
+      StreamBuffer unaligned = new StreamBuffer(unalignedPath, 0, 4, 2, 8, new NoCompressionCodec());
+      int numEntries = 0;
+      while (unaligned.anyRemaining()) {
+        assertTrue(aligned.anyRemaining());
+        assertEquals(ByteBuffer.wrap(unaligned.getBuffer(), unaligned.getCurrentOffset(), 6),
+            ByteBuffer.wrap(aligned.getBuffer(), aligned.getCurrentOffset(), 6));
+        aligned.consume();
+        unaligned.consume();
+        numEntries++;
+      }
+      assertFalse(aligned.anyRemaining());
+      assertEquals(1000, numEntries);
+    }
+  }
+
+  private static byte[] writeBlocks(CompressionCodec codec, int compressionThreads) throws Exception {
+    return writeBlocks(codec, 4, compressionThreads, 0);
+  }
+
+  private static byte[] writeBlocks(CompressionCodec codec, int hashIndexBits, int compressionThreads, int pageSize) throws Exception {
+    ByteArrayOutputStream s = new ByteArrayOutputStream();
+    CueballWriter cw = new CueballWriter(s, 4, null, 2, codec, hashIndexBits, new CueballOptions()
+        .setBloomFilterBitsPerKey(8)
+        .setCompressionThreads(compressionThreads)
+        .setPageSize(pageSize));
+    for (int i = 0; i < 1000; i++) {
+      // the first hashIndexBits bits are the hash prefix, so this covers all
+      // the blocks
+      ByteBuffer keyHash = ByteBuffer.allocate(4);
+      keyHash.putInt(i * 4000000);
+      keyHash.flip();
+      cw.writeHash(keyHash, ByteBuffer.wrap(new byte[]{(byte) i, (byte) (i % 7)}));
+    }
+    cw.close();
+    return s.toByteArray();
+  }
 }
@@ -2,8 +2,11 @@ package com.rapleaf.hank.storage.cueball;
 
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 import com.rapleaf.hank.BaseTestCase;
 
@@ -32,6 +35,123 @@ public class TestFooter extends BaseTestCase {
     assertTrue(Arrays.equals(new long[]{5, 25, 125, 255}, footer.getHashIndex()));
   }
 
+  public void testCompact() throws Exception {
+    // enough blocks to span several samples, with empty blocks and gaps
+    final int hashIndexBits = 9;
+    long[] offsets = new long[1 << hashIndexBits];
+    int[] lengths = new int[1 << hashIndexBits];
+    Random random = new Random(1);
+    long offset = 0;
+    for (int i = 0; i < offsets.length; i++) {
+      if (random.nextInt(3) == 0) {
+        offsets[i] = -1;
+        continue;
+      }
+      if (random.nextInt(5) == 0) {
+        offset += random.nextInt(4096);
+      }
+      offsets[i] = offset;
+      lengths[i] = 1 + random.nextInt(70000);
+      offset += lengths[i];
+    }
+
+    final FileOutputStream out = new FileOutputStream(filePath);
+    out.write(new byte[(int) offset]);
+    byte[] encoded = Footer.encode(offsets, lengths, hashIndexBits, 130, 250);
+    out.write(encoded);
+    out.flush();
+    out.close();
+
+    final Footer footer = new Footer(new FileInputStream(filePath).getChannel(), hashIndexBits);
+    assertEquals(2, footer.getVersion());
+    assertEquals(offset, footer.getDataLength());
+    assertEquals(encoded.length, footer.getFooterLength());
+    assertEquals(250, footer.getMaxCompressedBufferSize());
+    assertEquals(130, footer.getMaxUncompressedBufferSize());
+    assertTrue(Arrays.equals(offsets, footer.getHashIndex()));
+    for (int i = 0; i < offsets.length; i++) {
+      if (offsets[i] != -1) {
+        assertEquals(lengths[i], footer.getIndex().getLength(i));
+      }
+    }
+    // the compact index should be much smaller than the fixed-width one
+    assertTrue(encoded.length < offsets.length * 8 / 2);
+
+    // hash index bits have to match
+    try {
+      new Footer(new FileInputStream(filePath).getChannel(), hashIndexBits + 1);
+      fail("should have thrown an exception");
+    } catch (IOException e) {}
+  }
+
+  public void testPageAligned() throws Exception {
+    final FileOutputStream out = new FileOutputStream(filePath);
+    out.write(new byte[4096 + 100]);
+    byte[] encoded = Footer.encode(new long[]{0, 4096}, new int[]{4000, 100}, 1, 130, 250, null, 4096);
+    out.write(encoded);
+    out.flush();
+    out.close();
+
+    final Footer footer = new Footer(new FileInputStream(filePath).getChannel(), 1);
+    assertEquals(Footer.PAGE_ALIGNED_VERSION, footer.getVersion());
+    assertEquals(4096, footer.getPageSize());
+    assertNull(footer.getBloomFilters());
+    assertEquals(4096 + 100, footer.getDataLength());
+    assertEquals(250, footer.getMaxCompressedBufferSize());
+    assertEquals(130, footer.getMaxUncompressedBufferSize());
+    assertTrue(Arrays.equals(new long[]{0, 4096}, footer.getHashIndex()));
+    assertEquals(100, footer.getIndex().getLength(1));
+  }
+
+  public void testCompactInvalid() throws Exception {
+    byte[] valid = Footer.encode(new long[]{0, -1}, new int[]{10, 0}, 1, 10, 10);
+    List<byte[]> cases = new ArrayList<byte[]>();
+
+    // refers to more data than there is
+    cases.add(valid);
+
+    // unknown version
+    byte[] data = new byte[10 + valid.length];
+    System.arraycopy(valid, 0, data, 10, valid.length);
+    data[data.length - 8] = 3;
+    cases.add(data);
+
+    // index length longer than the file
+    data = new byte[10 + valid.length];
+    System.arraycopy(valid, 0, data, 10, valid.length);
+    data[data.length - 19] = 1;
+    cases.add(data);
+
+    // truncated index
+    byte[] truncated = new byte[valid.length - 1];
+    System.arraycopy(valid, 0, truncated, 0, valid.length - 21);
+    System.arraycopy(valid, valid.length - 20, truncated, valid.length - 21, 20);
+    truncated[truncated.length - 20]--;
+    data = new byte[10 + truncated.length];
+    System.arraycopy(truncated, 0, data, 10, truncated.length);
+    cases.add(data);
+
+    for (int i = 0; i < cases.size(); i++) {
+      final FileOutputStream out = new FileOutputStream(filePath);
+      out.write(cases.get(i));
+      out.flush();
+      out.close();
+
+      try {
+        new Footer(new FileInputStream(filePath).getChannel(), 1);
+        fail("should have thrown an exception for case " + i);
+      } catch (IOException e) {}
+    }
+
+    // and make sure the valid one really is valid
+    data = new byte[10 + valid.length];
+    System.arraycopy(valid, 0, data, 10, valid.length);
+    final FileOutputStream out = new FileOutputStream(filePath);
+    out.write(data);
+    out.close();
+    assertTrue(Arrays.equals(new long[]{0, -1}, new Footer(new FileInputStream(filePath).getChannel(), 1).getHashIndex()));
+  }
+
   private static final List<byte[]> INVALID_CASES = Arrays.asList(
       // offset inversion
       new byte[]{
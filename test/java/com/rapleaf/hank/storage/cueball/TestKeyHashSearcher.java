@@ -0,0 +1,116 @@
+/**
+ *  Copyright 2011 Rapleaf
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.rapleaf.hank.storage.cueball;
+
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+
+import com.rapleaf.hank.util.Bytes;
+
+public class TestKeyHashSearcher extends TestCase {
+  private static final int VALUE_SIZE = 5;
+
+  public void testSmallBlock() throws Exception {
+    doTestSearch(10, 50, false);
+  }
+
+  public void testLargeBlock() throws Exception {
+    doTestSearch(10, 20000, false);
+  }
+
+  public void testShortKeyHashes() throws Exception {
+    doTestSearch(3, 5000, false);
+  }
+
+  public void testSkewedBlock() throws Exception {
+    doTestSearch(10, 5000, true);
+  }
+
+  public void testSubIndexOnlyForLargeBlocks() throws Exception {
+    KeyHashSearcher searcher = new KeyHashSearcher(10, 10 + VALUE_SIZE);
+    byte[] small = new byte[(KeyHashSearcher.SUB_INDEX_MIN_RECORDS - 1) * (10 + VALUE_SIZE)];
+    assertNull(searcher.buildSubIndex(small, 0, small.length));
+    byte[] large = new byte[KeyHashSearcher.SUB_INDEX_MIN_RECORDS * (10 + VALUE_SIZE)];
+    assertEquals(KeyHashSearcher.SUB_INDEX_MIN_RECORDS / KeyHashSearcher.SUB_INDEX_STRIDE,
+        searcher.buildSubIndex(large, 0, large.length).length);
+  }
+
+  private void doTestSearch(int keyHashSize, int numRecords, boolean skewed) throws Exception {
+    Random random = new Random(numRecords);
+    SortedSet<byte[]> keyHashes = new TreeSet<byte[]>(new Comparator<byte[]>() {
+      @Override
+      public int compare(byte[] a, byte[] b) {
+        return Bytes.compareBytes(a, 0, b, 0, a.length);
+      }
+    });
+    while (keyHashes.size() < numRecords) {
+      byte[] keyHash = new byte[keyHashSize];
+      random.nextBytes(keyHash);
+      if (skewed) {
+        // most of the records crowd into the bottom of the range, with a few
+        // outliers at the top
+        if (random.nextInt(100) > 0) {
+          keyHash[0] = 0;
+          keyHash[1] = 0;
+        }
+      }
+      keyHashes.add(keyHash);
+    }
+
+    int fullRecordSize = keyHashSize + VALUE_SIZE;
+    // pad the front of the block to make sure offsets are respected
+    int off = 7;
+    byte[] block = new byte[off + numRecords * fullRecordSize];
+    int i = 0;
+    for (byte[] keyHash : keyHashes) {
+      int recordOff = off + i * fullRecordSize;
+      System.arraycopy(keyHash, 0, block, recordOff, keyHashSize);
+      block[recordOff + keyHashSize] = (byte) i;
+      i++;
+    }
+
+    KeyHashSearcher searcher = new KeyHashSearcher(keyHashSize, fullRecordSize);
+    long[] subIndex = searcher.buildSubIndex(block, off, block.length);
+    assertEquals(numRecords >= KeyHashSearcher.SUB_INDEX_MIN_RECORDS, subIndex != null);
+
+    ByteBuffer table = ByteBuffer.allocateDirect(block.length);
+    table.put(block);
+
+    i = 0;
+    for (byte[] keyHash : keyHashes) {
+      int expected = off + i * fullRecordSize + keyHashSize;
+      assertEquals(expected, searcher.search(block, off, block.length, keyHash, 0));
+      assertEquals(expected, searcher.search(table, off, block.length, keyHash, 0));
+      assertEquals(expected, searcher.search(block, off, block.length, subIndex, keyHash, 0));
+      i++;
+    }
+
+    for (int j = 0; j < 1000; j++) {
+      byte[] keyHash = new byte[keyHashSize];
+      random.nextBytes(keyHash);
+      if (!keyHashes.contains(keyHash)) {
+        assertEquals(-1, searcher.search(block, off, block.length, keyHash, 0));
+        assertEquals(-1, searcher.search(table, off, block.length, keyHash, 0));
+        assertEquals(-1, searcher.search(block, off, block.length, subIndex, keyHash, 0));
+      }
+    }
+  }
+}
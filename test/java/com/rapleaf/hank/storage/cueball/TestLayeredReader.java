@@ -0,0 +1,69 @@
+/**
+ *  Copyright 2011 Rapleaf
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.rapleaf.hank.storage.cueball;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+
+import com.rapleaf.hank.compress.NoCompressionCodec;
+import com.rapleaf.hank.storage.Reader;
+import com.rapleaf.hank.storage.Result;
+
+public class TestLayeredReader extends AbstractCueballTest {
+  private final String BASE_PATH = localTmpDir + "/00000.base.cueball";
+  private final String DELTA_PATH = localTmpDir + "/00001.delta.cueball";
+
+  public void testNewestLayerWins() throws Exception {
+    write(BASE_PATH, new byte[][]{KEY1, KEY2}, new byte[]{1, 2});
+    write(DELTA_PATH, new byte[][]{KEY2, KEY3}, new byte[]{12, 13});
+    LayeredReader reader = new LayeredReader(new Reader[]{getReader(DELTA_PATH), getReader(BASE_PATH)});
+
+    Result result = new Result();
+    reader.get(ByteBuffer.wrap(KEY1), result);
+    assertTrue(result.isFound());
+    assertEquals(1, result.getBuffer().get(result.getBuffer().position()));
+    reader.get(ByteBuffer.wrap(KEY2), result);
+    assertTrue(result.isFound());
+    assertEquals(12, result.getBuffer().get(result.getBuffer().position()));
+    reader.get(ByteBuffer.wrap(KEY3), result);
+    assertTrue(result.isFound());
+    assertEquals(13, result.getBuffer().get(result.getBuffer().position()));
+    reader.get(ByteBuffer.wrap(KEY4), result);
+    assertFalse(result.isFound());
+
+    ByteBuffer[] keys = {ByteBuffer.wrap(KEY4), ByteBuffer.wrap(KEY3), ByteBuffer.wrap(KEY2), ByteBuffer.wrap(KEY1)};
+    Result[] results = {new Result(), new Result(), new Result(), new Result()};
+    reader.get(keys, results);
+    assertFalse(results[0].isFound());
+    assertEquals(13, results[1].getBuffer().get(results[1].getBuffer().position()));
+    assertEquals(12, results[2].getBuffer().get(results[2].getBuffer().position()));
+    assertEquals(1, results[3].getBuffer().get(results[3].getBuffer().position()));
+  }
+
+  private void write(String path, byte[][] keys, byte[] values) throws Exception {
+    new File(localTmpDir).mkdirs();
+    CueballWriter writer = new CueballWriter(new FileOutputStream(path), 10, HASHER, 1, new NoCompressionCodec(), 1);
+    for (int i = 0; i < keys.length; i++) {
+      writer.write(ByteBuffer.wrap(keys[i]), ByteBuffer.wrap(new byte[]{values[i]}));
+    }
+    writer.close();
+  }
+
+  private CueballReader getReader(String path) throws Exception {
+    return new CueballReader(new File(path), 10, HASHER, 1, 1, new NoCompressionCodec(), ReadMode.CHANNEL, null, false);
+  }
+}
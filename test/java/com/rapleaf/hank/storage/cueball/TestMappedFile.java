@@ -0,0 +1,76 @@
+/**
+ *  Copyright 2011 Rapleaf
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.rapleaf.hank.storage.cueball;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.rapleaf.hank.BaseTestCase;
+
+public class TestMappedFile extends BaseTestCase {
+  private final String filePath = localTmpDir + "/mapped_file";
+
+  public void testReadsAcrossSegments() throws Exception {
+    byte[] data = new byte[100];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) i;
+    }
+    FileOutputStream out = new FileOutputStream(filePath);
+    out.write(data);
+    out.flush();
+    out.close();
+
+    FileChannel channel = new FileInputStream(filePath).getChannel();
+    // 16-byte segments that overlap by 8 bytes
+    MappedFile mappedFile = new MappedFile(channel, 90, 8, 16);
+    assertEquals(6, mappedFile.getNumSegments());
+    assertEquals(90, mappedFile.length());
+
+    byte[] buf = new byte[8];
+    // entirely inside the first segment
+    assertEquals(8, mappedFile.read(0, buf, 0, 8));
+    assertEquals(ByteBuffer.wrap(data, 0, 8), ByteBuffer.wrap(buf));
+
+    // straddles the boundary between the first and second segments
+    assertEquals(8, mappedFile.read(12, buf, 0, 8));
+    assertEquals(ByteBuffer.wrap(data, 12, 8), ByteBuffer.wrap(buf));
+
+    // runs past the mapped length
+    assertEquals(4, mappedFile.read(86, buf, 0, 8));
+    assertEquals(ByteBuffer.wrap(data, 86, 4), ByteBuffer.wrap(buf, 0, 4));
+
+    assertEquals(0, mappedFile.read(90, buf, 0, 8));
+
+    // slices see the same bytes without copying them
+    assertEquals(ByteBuffer.wrap(data, 12, 8), mappedFile.slice(12, 8));
+    assertEquals(ByteBuffer.wrap(data, 86, 4), mappedFile.slice(86, 8));
+    assertEquals(0, mappedFile.slice(90, 8).remaining());
+
+    // a thread's views are reused rather than allocated per read
+    ByteBuffer view = mappedFile.slice(0, 4);
+    assertSame(view, mappedFile.slice(4, 4));
+    assertEquals(ByteBuffer.wrap(data, 4, 4), view);
+
+    try {
+      mappedFile.read(0, new byte[9], 0, 9);
+      fail("should have thrown an exception");
+    } catch (IllegalArgumentException e) {}
+
+    channel.close();
+  }
+}
@@ -0,0 +1,64 @@
+/**
+ *  Copyright 2011 Rapleaf
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.rapleaf.hank.storage.cueball;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+public class TestMemoryTable extends TestCase {
+  public void testBlocksFillChunks() throws Exception {
+    // four hash prefixes, three with blocks of up to 4 bytes, and room for
+    // two max-sized blocks per chunk
+    MemoryTable.Builder builder = new MemoryTable.Builder(4, 3, 4, 8);
+    addBlock(builder, 0, new byte[]{1, 2, 3});
+    addBlock(builder, 2, new byte[]{4, 5, 6, 7});
+    // only one byte is left in the first chunk, so this starts a new one
+    addBlock(builder, 3, new byte[]{8, 9});
+    MemoryTable table = builder.build();
+
+    assertEquals(2, table.getNumChunks());
+    assertBlock(table, 0, new byte[]{1, 2, 3});
+    assertBlock(table, 1, new byte[]{});
+    assertBlock(table, 2, new byte[]{4, 5, 6, 7});
+    assertBlock(table, 3, new byte[]{8, 9});
+    // the first chunk is only as big as it needed to be for the blocks left,
+    // and the last one is trimmed to fit
+    assertEquals(4 * 12 + 8 + 2, table.getMemoryUsage());
+  }
+
+  public void testNoBlocks() throws Exception {
+    MemoryTable table = new MemoryTable.Builder(2, 0, 4, 8).build();
+    assertEquals(0, table.getNumChunks());
+    assertNull(table.getChunk(1));
+    assertEquals(2 * 12, table.getMemoryUsage());
+  }
+
+  private static void addBlock(MemoryTable.Builder builder, int hashPrefix, byte[] block) {
+    ByteBuffer chunk = builder.startBlock();
+    int start = chunk.position();
+    chunk.put(block);
+    builder.endBlock(hashPrefix, start);
+  }
+
+  private static void assertBlock(MemoryTable table, int hashPrefix, byte[] expected) {
+    ByteBuffer chunk = table.getChunk(hashPrefix);
+    assertEquals(expected.length, table.getEnd(hashPrefix) - table.getStart(hashPrefix));
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(expected[i], chunk.get(table.getStart(hashPrefix) + i));
+    }
+  }
+}
@@ -2,6 +2,8 @@ package com.rapleaf.hank.storage.cueball;
 
 import java.io.FileOutputStream;
 import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import com.rapleaf.hank.BaseTestCase;
 import com.rapleaf.hank.compress.NoCompressionCodec;
@@ -120,4 +122,23 @@ public class TestStreamBuffer extends BaseTestCase {
 
     assertFalse(sb.anyRemaining());
   }
+
+  public void testReadAhead() throws Exception {
+    final FileOutputStream stream = new FileOutputStream(DISCONTIG_INTERNAL_HOLE_PATH);
+    stream.write(DISCONTIG_DATA_INTERNAL_HOLE);
+    stream.flush();
+    stream.close();
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    final StreamBuffer sb = new StreamBuffer(DISCONTIG_INTERNAL_HOLE_PATH, 0, 1, 1, 2, new NoCompressionCodec(), executor);
+    for (int i = 0; i < 3; i++) {
+      assertTrue(sb.anyRemaining());
+      assertEquals(0, sb.getCurrentOffset());
+      assertEquals(ByteBuffer.wrap(DISCONTIG_DATA_INTERNAL_HOLE, i * 2, 2), ByteBuffer.wrap(sb.getBuffer(), 0, 2));
+      sb.consume();
+    }
+    assertFalse(sb.anyRemaining());
+    sb.close();
+    executor.shutdown();
+  }
 }
@@ -0,0 +1,338 @@
+/**
+ *  Copyright 2011 Rapleaf
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.rapleaf.hank.storage.curly;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.rapleaf.hank.compress.CompressionCodec;
+import com.rapleaf.hank.compress.JavaGzipCompressionCodec;
+import com.rapleaf.hank.compress.NoCompressionCodec;
+import com.rapleaf.hank.hasher.Murmur64Hasher;
+import com.rapleaf.hank.storage.MapWriter;
+import com.rapleaf.hank.storage.RecordHeat;
+import com.rapleaf.hank.storage.Result;
+import com.rapleaf.hank.storage.cueball.CueballMerger;
+import com.rapleaf.hank.storage.cueball.CueballReader;
+import com.rapleaf.hank.storage.cueball.CueballWriter;
+import com.rapleaf.hank.storage.cueball.MockFetcher;
+import com.rapleaf.hank.util.Bytes;
+import com.rapleaf.hank.util.FsUtils;
+
+public class TestCurlyCompactor extends AbstractCurlyTestBase {
+  private static final String LOCAL_ROOT = "/tmp/TestCurlyCompactor";
+  private static final int KEY_HASH_SIZE = 12;
+  private static final int OFFSET_SIZE = 3;
+  private static final int HASH_INDEX_BITS = 1;
+
+  private static final ByteBuffer NEW_VALUE1 = ByteBuffer.wrap(new byte[]{1, 1, 1, 1, 1, 1});
+  private static final ByteBuffer NEW_VALUE2 = ByteBuffer.wrap(new byte[]{2, 2, 2, 2, 2, 2});
+
+  public void setUp() throws Exception {
+    FsUtils.rmrf(LOCAL_ROOT);
+    new File(LOCAL_ROOT).mkdirs();
+  }
+
+  public void testCompact() throws Exception {
+    doTestCompact(0, 0, new NoCompressionCodec());
+  }
+
+  public void testCompactWithValueLengths() throws Exception {
+    doTestCompact(1, 0, new NoCompressionCodec());
+  }
+
+  public void testCompactBlockCompressed() throws Exception {
+    doTestCompact(0, 8, new JavaGzipCompressionCodec());
+  }
+
+  public void testBelowThreshold() throws Exception {
+    // 10 of the 29 bytes are dead
+    update(0, 0, new NoCompressionCodec(), 0.5);
+    assertEquals(29, new File(LOCAL_ROOT + "/00001.base.curly").length());
+    doTestReader(0, 0, new NoCompressionCodec());
+  }
+
+  public void testEstimateDeadRatio() throws Exception {
+    update(1, 0, new NoCompressionCodec(), 0.5);
+    CurlyCompactor compactor = getCompactor(1, 0, 0, 0, new NoCompressionCodec(), 0.5);
+    double deadRatio = compactor.estimateDeadRatio(compactor.getRecordReader(LOCAL_ROOT), LOCAL_ROOT + "/00001.base.curly", LOCAL_ROOT + "/00001.base.cueball");
+    assertEquals(10 / 29.0, deadRatio, 0.0001);
+  }
+
+  public void testEstimateDeadRatioSamplesWholeKeyfile() throws Exception {
+    // records whose key hashes sort first are small, and the rest are big, so
+    // only a sample spread over the whole keyfile sees both
+    ByteBuffer[] keysAndValues = new ByteBuffer[2 * 4096];
+    byte[] keyHash = new byte[KEY_HASH_SIZE];
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      ByteBuffer key = ByteBuffer.wrap(Bytes.intToBytes(i));
+      new Murmur64Hasher().hash(key, keyHash);
+      keysAndValues[i] = key;
+      keysAndValues[i + 1] = ByteBuffer.wrap(new byte[(keyHash[0] & 0x80) == 0 ? 1 : 64]);
+    }
+    write("00000.base", 0, 0, 0, 0, new NoCompressionCodec(), keysAndValues);
+    CurlyCompactor compactor = getCompactor(0, 0, 0, 0, new NoCompressionCodec(), 0.5);
+    double deadRatio = compactor.estimateDeadRatio(compactor.getRecordReader(LOCAL_ROOT), LOCAL_ROOT + "/00000.base.curly", LOCAL_ROOT + "/00000.base.cueball");
+    // nothing is dead
+    assertEquals(0, deadRatio, 0.1);
+  }
+
+  public void testCompactWithInlineValues() throws Exception {
+    // the second key's record is dead once its new value is inline
+    write("00000.base", 0, 0, 4, 0, new NoCompressionCodec(), KEY1, VALUE1, KEY2, NEW_VALUE2, KEY3, NEW_VALUE1);
+    write("00001.delta", 0, 0, 4, 0, new NoCompressionCodec(), KEY1, NEW_VALUE1, KEY2, VALUE2);
+    update(0, 0, 4, new NoCompressionCodec(), 0.2);
+    assertEquals(7 + 7, new File(LOCAL_ROOT + "/00001.base.curly").length());
+
+    CurlyReader reader = getReader(0, 0, 4, new NoCompressionCodec());
+    Result result = new Result();
+    reader.get(KEY1, result);
+    assertEquals(NEW_VALUE1, result.getBuffer());
+    reader.get(KEY2, result);
+    assertEquals(VALUE2, result.getBuffer());
+    reader.get(KEY3, result);
+    assertEquals(NEW_VALUE1, result.getBuffer());
+  }
+
+  public void testCompactDeduped() throws Exception {
+    // records are shared within the base and within the delta
+    write("00000.base", 0, 0, 0, 1024, new NoCompressionCodec(), KEY1, VALUE1, KEY2, VALUE1, KEY3, VALUE3);
+    write("00001.delta", 0, 0, 0, 1024, new NoCompressionCodec(), KEY1, NEW_VALUE1, KEY3, NEW_VALUE1);
+    assertEquals(10, new File(LOCAL_ROOT + "/00000.base.curly").length());
+    assertEquals(7, new File(LOCAL_ROOT + "/00001.delta.curly").length());
+    // the estimate counts shared records once per key, so it doesn't see
+    // the dead one
+    update(getCompactor(0, 0, 0, 1024, new NoCompressionCodec(), 0.2), 0, 0, 0, new NoCompressionCodec());
+    assertEquals(10 + 7, new File(LOCAL_ROOT + "/00001.base.curly").length());
+    doTestDedupedReader();
+
+    // the shared records survive the compaction
+    CurlyCompactor compactor = getCompactor(0, 0, 0, 1024, new NoCompressionCodec(), 0.2);
+    compactor.rewrite(compactor.getRecordReader(LOCAL_ROOT), LOCAL_ROOT + "/00001.base.curly", LOCAL_ROOT + "/00001.base.cueball", null);
+    assertEquals(5 + 7, new File(LOCAL_ROOT + "/00001.base.curly").length());
+    doTestDedupedReader();
+  }
+
+  public void testClusterHotRecords() throws Exception {
+    write("00000.base", 0, 0, 0, 0, new NoCompressionCodec(), KEY1, VALUE1, KEY2, VALUE2, KEY3, VALUE3);
+    write("00001.delta", 0, 0, 0, 0, new NoCompressionCodec(), KEY4, NEW_VALUE1);
+    RecordHeat recordHeat = new RecordHeat(1024);
+    RecordHeat.Partition heat = recordHeat.getPartition(LOCAL_ROOT);
+    // the third record is hot, the first one is read just once
+    for (int i = 0; i < 5; i++) {
+      heat.recordRead(10);
+    }
+    heat.recordRead(0);
+
+    update(getCompactor(0, 0, 0, 0, new NoCompressionCodec(), 0, 3), recordHeat, 0, 0, 0, new NoCompressionCodec());
+
+    // nothing is dead, but the hot record moved to the front
+    byte[] recordFile = new byte[22];
+    FileInputStream in = new FileInputStream(LOCAL_ROOT + "/00001.base.curly");
+    assertEquals(22, in.read(recordFile));
+    assertEquals(-1, in.read());
+    in.close();
+    assertEquals(ByteBuffer.wrap(new byte[]{4, 12, 11, 10, 9}), ByteBuffer.wrap(recordFile, 0, 5));
+    // and the stats were reset along with it
+    assertNotSame(heat, recordHeat.getPartition(LOCAL_ROOT));
+    assertEquals(0, recordHeat.getPartition(LOCAL_ROOT).getNumReads());
+
+    CurlyReader reader = getReader(0, 0, 0, new NoCompressionCodec());
+    Result result = new Result();
+    reader.get(KEY1, result);
+    assertEquals(VALUE1, result.getBuffer());
+    reader.get(KEY2, result);
+    assertEquals(VALUE2, result.getBuffer());
+    reader.get(KEY3, result);
+    assertEquals(VALUE3, result.getBuffer());
+    reader.get(KEY4, result);
+    assertEquals(NEW_VALUE1, result.getBuffer());
+  }
+
+  public void testNoReclusteringWhileClustered() throws Exception {
+    write("00000.base", 0, 0, 0, 0, new NoCompressionCodec(), KEY1, VALUE1, KEY2, VALUE2, KEY3, VALUE3);
+    RecordHeat.Partition heat = new RecordHeat(1024).getPartition(LOCAL_ROOT);
+    CurlyCompactor compactor = getCompactor(0, 0, 0, 0, new NoCompressionCodec(), 0, 3);
+    // the only hot record is already the first one
+    for (int i = 0; i < 5; i++) {
+      heat.recordRead(0);
+    }
+    assertEquals(1.0, compactor.getHotFrontFraction(compactor.getRecordReader(LOCAL_ROOT), LOCAL_ROOT + "/00000.base.cueball", heat));
+    assertFalse(compactor.compact(LOCAL_ROOT, LOCAL_ROOT + "/00000.base.cueball", heat));
+
+    // half of the hot records are at the front
+    for (int i = 0; i < 5; i++) {
+      heat.recordRead(10);
+    }
+    assertEquals(0.5, compactor.getHotFrontFraction(compactor.getRecordReader(LOCAL_ROOT), LOCAL_ROOT + "/00000.base.cueball", heat));
+    assertTrue(compactor.compact(LOCAL_ROOT, LOCAL_ROOT + "/00000.base.cueball", heat));
+  }
+
+  public void testNoClusteringWithoutReads() throws Exception {
+    write("00000.base", 0, 0, 0, 0, new NoCompressionCodec(), KEY1, VALUE1, KEY2, VALUE2, KEY3, VALUE3);
+    CurlyCompactor compactor = getCompactor(0, 0, 0, 0, new NoCompressionCodec(), 0, 3);
+    assertFalse(compactor.compact(LOCAL_ROOT, LOCAL_ROOT + "/00000.base.cueball", new RecordHeat(1024).getPartition(LOCAL_ROOT)));
+    assertFalse(compactor.compact(LOCAL_ROOT, LOCAL_ROOT + "/00000.base.cueball", null));
+  }
+
+  private void doTestDedupedReader() throws IOException {
+    CurlyReader reader = getReader(0, 0, 0, new NoCompressionCodec());
+    Result result = new Result();
+    reader.get(KEY1, result);
+    assertEquals(NEW_VALUE1, result.getBuffer());
+    reader.get(KEY2, result);
+    assertEquals(VALUE1, result.getBuffer());
+    reader.get(KEY3, result);
+    assertEquals(NEW_VALUE1, result.getBuffer());
+  }
+
+  private void doTestCompact(int valueLengthSize, int blockSize, CompressionCodec codec) throws Exception {
+    update(valueLengthSize, blockSize, codec, 0.2);
+    if (blockSize == 0) {
+      // only the live records are left
+      assertEquals(7 + 7 + 5, new File(LOCAL_ROOT + "/00001.base.curly").length());
+    }
+    assertFalse(new File(LOCAL_ROOT + "/00001.base.curly.compacting").exists());
+    assertFalse(new File(LOCAL_ROOT + "/00001.base.cueball.compacting").exists());
+    doTestReader(valueLengthSize, blockSize, codec);
+  }
+
+  /**
+   * Write a base with all three keys and a delta that overwrites the first
+   * two, then run an update with real mergers.
+   */
+  private void update(int valueLengthSize, int blockSize, CompressionCodec codec, double deadRatio) throws Exception {
+    write("00000.base", valueLengthSize, blockSize, 0, 0, codec, KEY1, VALUE1, KEY2, VALUE2, KEY3, VALUE3);
+    write("00001.delta", valueLengthSize, blockSize, 0, 0, codec, KEY1, NEW_VALUE1, KEY2, NEW_VALUE2);
+    update(valueLengthSize, blockSize, 0, codec, deadRatio);
+  }
+
+  private void update(int valueLengthSize, int blockSize, int inlineValueSize, CompressionCodec codec, double deadRatio) throws Exception {
+    update(getCompactor(valueLengthSize, blockSize, inlineValueSize, 0, codec, deadRatio), valueLengthSize, blockSize, inlineValueSize, codec);
+  }
+
+  private void update(CurlyCompactor compactor, int valueLengthSize, int blockSize, int inlineValueSize, CompressionCodec codec) throws Exception {
+    update(compactor, null, valueLengthSize, blockSize, inlineValueSize, codec);
+  }
+
+  private void update(CurlyCompactor compactor, RecordHeat recordHeat, int valueLengthSize, int blockSize, int inlineValueSize, CompressionCodec codec) throws Exception {
+    CurlyUpdater updater = new CurlyUpdater(LOCAL_ROOT,
+        KEY_HASH_SIZE,
+        OFFSET_SIZE,
+        new MockFetcher(LOCAL_ROOT),
+        new CurlyMerger(),
+        new CueballMerger(),
+        codec,
+        HASH_INDEX_BITS,
+        getOptions(valueLengthSize, blockSize, inlineValueSize),
+        null,
+        null,
+        recordHeat,
+        compactor);
+    updater.update(1);
+  }
+
+  private void doTestReader(int valueLengthSize, int blockSize, CompressionCodec codec) throws IOException {
+    CurlyReader reader = getReader(valueLengthSize, blockSize, 0, codec);
+    Result result = new Result();
+    reader.get(KEY1, result);
+    assertEquals(NEW_VALUE1, result.getBuffer());
+    reader.get(KEY2, result);
+    assertEquals(NEW_VALUE2, result.getBuffer());
+    reader.get(KEY3, result);
+    assertEquals(VALUE3, result.getBuffer());
+    reader.get(KEY4, result);
+    assertFalse(result.isFound());
+  }
+
+  private static CurlyReader getReader(int valueLengthSize, int blockSize, int inlineValueSize, CompressionCodec codec) throws IOException {
+    return new CurlyReader(LOCAL_ROOT,
+        1024,
+        new CueballReader(LOCAL_ROOT,
+            KEY_HASH_SIZE,
+            new Murmur64Hasher(),
+            InlineValues.getKeyfileValueSize(OFFSET_SIZE, valueLengthSize, inlineValueSize),
+            HASH_INDEX_BITS,
+            codec),
+        OFFSET_SIZE,
+        getOptions(valueLengthSize, blockSize, inlineValueSize),
+        codec,
+        null,
+        null,
+        null);
+  }
+
+  private static CurlyOptions getOptions(int valueLengthSize, int blockSize, int inlineValueSize) {
+    return new CurlyOptions()
+        .setValueLengthSize(valueLengthSize)
+        .setRecordFileBlockSize(blockSize)
+        .setInlineValueSize(inlineValueSize);
+  }
+
+  private static CurlyCompactor getCompactor(int valueLengthSize, int blockSize, int inlineValueSize, long dedupBytes, CompressionCodec codec, double deadRatio) {
+    return getCompactor(valueLengthSize, blockSize, inlineValueSize, dedupBytes, codec, deadRatio, 0);
+  }
+
+  private static CurlyCompactor getCompactor(int valueLengthSize, int blockSize, int inlineValueSize, long dedupBytes, CompressionCodec codec, double deadRatio, int hotRecordHeat) {
+    return new CurlyCompactor(KEY_HASH_SIZE, OFFSET_SIZE, HASH_INDEX_BITS, codec, getOptions(valueLengthSize, blockSize, inlineValueSize)
+        .setValueDedupBytes(dedupBytes)
+        .setCompactionDeadRatio(deadRatio)
+        .setHotRecordHeat(hotRecordHeat));
+  }
+
+  private static void write(String name, int valueLengthSize, int blockSize, int inlineValueSize, long dedupBytes, CompressionCodec codec, ByteBuffer... keysAndValues) throws IOException {
+    MapWriter keyfile = new MapWriter();
+    CurlyWriter writer = new CurlyWriter(new FileOutputStream(LOCAL_ROOT + "/" + name + ".curly"),
+        keyfile,
+        OFFSET_SIZE,
+        getOptions(valueLengthSize, blockSize, inlineValueSize).setValueDedupBytes(dedupBytes),
+        codec);
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      writer.write(keysAndValues[i], keysAndValues[i + 1]);
+    }
+    writer.close();
+
+    // the keyfile has to be written in key hash order
+    SortedMap<ByteBuffer, ByteBuffer> hashed = new TreeMap<ByteBuffer, ByteBuffer>(new Comparator<ByteBuffer>() {
+      @Override
+      public int compare(ByteBuffer a, ByteBuffer b) {
+        return Bytes.compareBytes(a, b);
+      }
+    });
+    for (Map.Entry<ByteBuffer, ByteBuffer> entry : keyfile.map.entrySet()) {
+      byte[] keyHash = new byte[KEY_HASH_SIZE];
+      new Murmur64Hasher().hash(entry.getKey(), keyHash);
+      hashed.put(ByteBuffer.wrap(keyHash), entry.getValue());
+    }
+    CueballWriter keyfileWriter = new CueballWriter(new FileOutputStream(LOCAL_ROOT + "/" + name + ".cueball"),
+        KEY_HASH_SIZE,
+        null,
+        InlineValues.getKeyfileValueSize(OFFSET_SIZE, valueLengthSize, inlineValueSize),
+        codec,
+        HASH_INDEX_BITS);
+    for (Map.Entry<ByteBuffer, ByteBuffer> entry : hashed.entrySet()) {
+      keyfileWriter.writeHash(entry.getKey(), entry.getValue());
+    }
+    keyfileWriter.close();
+  }
+}
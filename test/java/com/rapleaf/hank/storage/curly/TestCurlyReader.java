@@ -15,17 +15,272 @@
  */
 package com.rapleaf.hank.storage.curly;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.TreeSet;
 
+import com.rapleaf.hank.compress.JavaGzipCompressionCodec;
+import com.rapleaf.hank.storage.BlockCache;
 import com.rapleaf.hank.storage.MapReader;
+import com.rapleaf.hank.storage.MapWriter;
+import com.rapleaf.hank.storage.Reader;
+import com.rapleaf.hank.storage.RecordHeat;
 import com.rapleaf.hank.storage.Result;
+import com.rapleaf.hank.storage.ValueCache;
+import com.rapleaf.hank.storage.cueball.CueballOptions;
 
 public class TestCurlyReader extends AbstractCurlyTestBase {
   private static final String TMP_TEST_CURLY_READER = "/tmp/TestCurlyReader";
 
   public void testReader() throws Exception {
+    doTestReader(1024);
+  }
+
+  public void testReaderWithSmallReadBuffer() throws Exception {
+    // records are bigger than the read buffer, so each one needs a second read
+    doTestReader(3);
+  }
+
+  public void testReaderSingleFlight() throws Exception {
+    doTestReader(getReader(1024, true));
+    doTestReader(getReader(3, true));
+    doTestBatchReader(getReader(3, true));
+  }
+
+  public void testReaderWithValueCache() throws Exception {
+    ValueCache cache = new ValueCache(1024, 1);
+    CurlyReader reader = getReader(3, false, cache);
+    doTestReader(reader);
+    assertEquals(0, cache.getHitCount());
+    assertEquals(3, cache.getMissCount());
+
+    doTestReader(reader);
+    assertEquals(3, cache.getHitCount());
+    assertEquals(3, cache.getMissCount());
+    doTestBatchReader(reader);
+    assertEquals(6, cache.getHitCount());
+
+    // an update that leaves the record file alone keeps its values cached
+    cache.invalidate(TMP_TEST_CURLY_READER);
+    doTestReader(reader);
+    assertEquals(9, cache.getHitCount());
+    assertEquals(3, cache.getMissCount());
+
+    // but once it's replaced, it all has to be read again
+    new File(TMP_TEST_CURLY_READER + "/00000.base.curly").delete();
+    cache.invalidate(TMP_TEST_CURLY_READER);
+    assertEquals(0, cache.getSize());
+    doTestReader(getReader(3, false, cache));
+    assertEquals(9, cache.getHitCount());
+    assertEquals(6, cache.getMissCount());
+  }
+
+  public void testRecordHeat() throws Exception {
+    getReader(1);
+    MapReader keyfileReader = new MapReader(
+        KEY1.array(), new byte[]{0, 0, 0},
+        KEY2.array(), new byte[]{5, 0, 0},
+        KEY3.array(), new byte[]{10, 0, 0}
+    );
+    RecordHeat.Partition heat = new RecordHeat(1024).getPartition(TMP_TEST_CURLY_READER);
+    CurlyReader reader = new CurlyReader(TMP_TEST_CURLY_READER, 1, keyfileReader, 3, new CurlyOptions(), null, null, null, heat);
+    doTestReader(reader);
+    doTestReader(reader);
+    // missing keys don't count
+    assertEquals(6, heat.getNumReads());
+    assertTrue(heat.getHeat(10) > 0);
+  }
+
+  public void testReaderWithValueLengths() throws Exception {
+    // a read buffer that's too small for any record doesn't matter when the
+    // value lengths are known
+    doTestReader(getReaderWithValueLengths(false));
+    doTestBatchReader(getReaderWithValueLengths(false));
+    doTestReader(getReaderWithValueLengths(true));
+  }
+
+  public void testTruncatedRecordFile() throws Exception {
+    new File(TMP_TEST_CURLY_READER).mkdirs();
+    OutputStream s = new FileOutputStream(TMP_TEST_CURLY_READER + "/00000.base.curly");
+    // the third record is cut short
+    s.write(EXPECTED_RECORD_FILE, 0, 12);
+    s.close();
+    CurlyReader[] readers = {
+        new CurlyReader(TMP_TEST_CURLY_READER, 1024,
+            new MapReader(KEY1.array(), new byte[]{0, 0, 0}, KEY3.array(), new byte[]{10, 0, 0})),
+        new CurlyReader(TMP_TEST_CURLY_READER, 1024,
+            new MapReader(KEY1.array(), new byte[]{0, 0, 0, 4}, KEY3.array(), new byte[]{10, 0, 0, 4}),
+            3, new CurlyOptions().setValueLengthSize(1), null, null, null, null)
+    };
+    for (CurlyReader reader : readers) {
+      Result result = new Result();
+      reader.get(KEY1, result);
+      assertEquals(VALUE1, result.getBuffer());
+      try {
+        reader.get(KEY3, result);
+        fail("should have thrown an exception");
+      } catch (EOFException e) {}
+    }
+  }
+
+  private CurlyReader getReaderWithValueLengths(boolean singleFlight) throws Exception {
+    getReader(1);
+    MapReader keyfileReader = new MapReader(
+        KEY1.array(), new byte[]{0, 0, 0, 4},
+        KEY2.array(), new byte[]{5, 0, 0, 4},
+        KEY3.array(), new byte[]{10, 0, 0, 4}
+    );
+    CurlyOptions options = new CurlyOptions()
+        .setKeyfileOptions(new CueballOptions().setSingleFlight(singleFlight))
+        .setValueLengthSize(1);
+    return new CurlyReader(TMP_TEST_CURLY_READER, 1, keyfileReader, 3, options, null, null, null, null);
+  }
+
+  public void testReaderWithInlineValues() throws Exception {
+    getReader(1);
+    // only the second key's value is in the record file
+    MapReader keyfileReader = new MapReader(
+        KEY1.array(), new byte[]{(byte) 0x84, 4, 3, 2, 1},
+        KEY2.array(), new byte[]{0, 5, 0, 0, 0},
+        KEY3.array(), new byte[]{(byte) 0x84, 12, 11, 10, 9}
+    );
+    CurlyReader reader = new CurlyReader(TMP_TEST_CURLY_READER, 1, keyfileReader, 3, new CurlyOptions().setInlineValueSize(4), null, null, null, null);
+    doTestReader(reader);
+    doTestBatchReader(reader);
+
+    keyfileReader = new MapReader(
+        KEY1.array(), new byte[]{(byte) 0x84, 4, 3, 2, 1},
+        KEY2.array(), new byte[]{0, 5, 0, 0, 4},
+        KEY3.array(), new byte[]{(byte) 0x84, 12, 11, 10, 9}
+    );
+    reader = new CurlyReader(TMP_TEST_CURLY_READER, 1, keyfileReader, 3, new CurlyOptions().setValueLengthSize(1).setInlineValueSize(4), null, null, null, null);
+    doTestReader(reader);
+    doTestBatchReader(reader);
+  }
+
+  public void testBlockCompressedReader() throws Exception {
+    Reader keyfileReader = writeBlockCompressed(TMP_TEST_CURLY_READER + "/00000.base.curly", KEY1, VALUE1, KEY2, VALUE2, KEY3, VALUE3);
+    doTestReader(getBlockCompressedReader(keyfileReader, null));
+    doTestBatchReader(getBlockCompressedReader(keyfileReader, null));
+
+    BlockCache cache = new BlockCache(1024, 1);
+    CurlyReader reader = getBlockCompressedReader(keyfileReader, cache);
+    doTestReader(reader);
+    doTestBatchReader(reader);
+    // two blocks, each read once
+    assertEquals(2, cache.getMissCount());
+    assertEquals(4, cache.getHitCount());
+  }
+
+  public void testBlockCompressedReaderWithLargeBlock() throws Exception {
+    // a block that compresses to more than the codec's bound on the block size
+    // takes a second read
+    byte[] bytes = new byte[200];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) (i * 0x9e3779b1 >>> 24);
+    }
+    ByteBuffer value = ByteBuffer.wrap(bytes);
+    Reader keyfileReader = writeBlockCompressed(TMP_TEST_CURLY_READER + "/00000.base.curly", KEY1, value, KEY2, VALUE2);
+    for (BlockCache cache : new BlockCache[]{null, new BlockCache(1024, 1)}) {
+      CurlyReader reader = getBlockCompressedReader(keyfileReader, cache);
+      Result result = new Result();
+      reader.get(KEY1, result);
+      assertTrue(result.isFound());
+      assertEquals(value, result.getBuffer());
+      reader.get(KEY2, result);
+      assertTrue(result.isFound());
+      assertEquals(VALUE2, result.getBuffer());
+    }
+  }
+
+  public void testBlockCompressedMerge() throws Exception {
+    MapReader base = writeBlockCompressed(TMP_TEST_CURLY_READER + "/00000.base.curly", KEY1, VALUE1, KEY2, VALUE2);
+    MapReader delta = writeBlockCompressed(TMP_TEST_CURLY_READER + "/00001.delta.curly", KEY3, VALUE3);
+    long[] offsetAdjustments = new CurlyMerger().merge(TMP_TEST_CURLY_READER + "/00000.base.curly",
+        new TreeSet<String>(Arrays.asList(TMP_TEST_CURLY_READER + "/00001.delta.curly")));
+    new File(TMP_TEST_CURLY_READER + "/00001.delta.curly").delete();
+
+    // the delta's offsets get shifted like the block offsets are
+    Result result = new Result();
+    delta.get(KEY3, result);
+    byte[] key3Offset = new byte[3];
+    result.getBuffer().get(key3Offset);
+    new CurlyUpdater.OffsetTransformer(3, new long[]{offsetAdjustments[1] << RecordFileBlocks.getIntraBlockOffsetBits(8)})
+        .transform(key3Offset, 0, 0);
+    Result key1Offset = new Result();
+    base.get(KEY1, key1Offset);
+    Result key2Offset = new Result();
+    base.get(KEY2, key2Offset);
+    MapReader merged = new MapReader(KEY1.array(), bytes(key1Offset.getBuffer()),
+        KEY2.array(), bytes(key2Offset.getBuffer()),
+        KEY3.array(), key3Offset);
+
+    doTestReader(getBlockCompressedReader(merged, null));
+  }
+
+  private static byte[] bytes(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return bytes;
+  }
+
+  private static MapReader writeBlockCompressed(String path, ByteBuffer... keysAndValues) throws Exception {
+    new File(TMP_TEST_CURLY_READER).mkdirs();
+    MapWriter keyfileWriter = new MapWriter();
+    CurlyWriter writer = new CurlyWriter(new FileOutputStream(path), keyfileWriter, 3, new CurlyOptions().setRecordFileBlockSize(8), new JavaGzipCompressionCodec());
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      writer.write(keysAndValues[i], keysAndValues[i + 1]);
+    }
+    writer.close();
+
+    byte[][] keyfile = new byte[keysAndValues.length][];
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      keyfile[i] = keysAndValues[i].array();
+      keyfile[i + 1] = bytes(keyfileWriter.map.get(keysAndValues[i]));
+    }
+    return new MapReader(keyfile);
+  }
+
+  private CurlyReader getBlockCompressedReader(Reader keyfileReader, BlockCache blockCache) throws Exception {
+    return new CurlyReader(TMP_TEST_CURLY_READER, 1, keyfileReader, 3, new CurlyOptions().setRecordFileBlockSize(8), new JavaGzipCompressionCodec(), null, blockCache, null);
+  }
+
+  public void testBatchReader() throws Exception {
+    doTestBatchReader(getReader(1024));
+    doTestBatchReader(getReader(3));
+  }
+
+  private void doTestBatchReader(CurlyReader reader) throws Exception {
+
+    ByteBuffer[] keys = new ByteBuffer[]{KEY3, KEY4, KEY1, KEY2};
+    Result[] results = new Result[keys.length];
+    for (int i = 0; i < results.length; i++) {
+      results[i] = new Result();
+    }
+    reader.get(keys, results);
+
+    assertTrue(results[0].isFound());
+    assertEquals(VALUE3, results[0].getBuffer());
+    assertFalse(results[1].isFound());
+    assertTrue(results[2].isFound());
+    assertEquals(VALUE1, results[2].getBuffer());
+    assertTrue(results[3].isFound());
+    assertEquals(VALUE2, results[3].getBuffer());
+  }
+
+  private CurlyReader getReader(int readBufferSize) throws Exception {
+    return getReader(readBufferSize, false);
+  }
+
+  private CurlyReader getReader(int readBufferSize, boolean singleFlight) throws Exception {
+    return getReader(readBufferSize, singleFlight, null);
+  }
+
+  private CurlyReader getReader(int readBufferSize, boolean singleFlight, ValueCache valueCache) throws Exception {
     new File(TMP_TEST_CURLY_READER).mkdirs();
     OutputStream s = new FileOutputStream(TMP_TEST_CURLY_READER + "/00000.base.curly");
     s.write(EXPECTED_RECORD_FILE);
@@ -38,8 +293,15 @@ public class TestCurlyReader extends AbstractCurlyTestBase {
         KEY3.array(), new byte[]{10, 0, 0}
     );
 
-    CurlyReader reader = new CurlyReader(TMP_TEST_CURLY_READER, 1024, keyfileReader);
+    CurlyOptions options = new CurlyOptions().setKeyfileOptions(new CueballOptions().setSingleFlight(singleFlight));
+    return new CurlyReader(TMP_TEST_CURLY_READER, readBufferSize, keyfileReader, 0, options, null, valueCache, null, null);
+  }
+
+  private void doTestReader(int readBufferSize) throws Exception {
+    doTestReader(getReader(readBufferSize));
+  }
 
+  private void doTestReader(CurlyReader reader) throws Exception {
     Result result = new Result();
 
     reader.get(KEY1, result);
@@ -25,6 +25,7 @@ import java.util.SortedSet;
 import junit.framework.TestCase;
 
 import com.rapleaf.hank.compress.NoCompressionCodec;
+import com.rapleaf.hank.storage.ValueCache;
 import com.rapleaf.hank.storage.cueball.MockCueballMerger;
 import com.rapleaf.hank.storage.cueball.MockFetcher;
 import com.rapleaf.hank.util.FsUtils;
@@ -68,6 +69,14 @@ public class TestCurlyUpdater extends TestCase {
 
     trans.transform(buf, 3, 0);
     assertEquals(ByteBuffer.wrap(new byte[]{50,0,0}), ByteBuffer.wrap(buf, 3, 3));
+
+    // with inline values, only the offsets behind a zero tag change
+    trans = new CurlyUpdater.OffsetTransformer(3, offsetAdjustments, true);
+    buf = new byte[]{0,1,0,0,(byte)0x83,1,0,0};
+    trans.transform(buf, 0, 1);
+    assertEquals(ByteBuffer.wrap(new byte[]{0,101,0,0}), ByteBuffer.wrap(buf, 0, 4));
+    trans.transform(buf, 4, 1);
+    assertEquals(ByteBuffer.wrap(new byte[]{(byte)0x83,1,0,0}), ByteBuffer.wrap(buf, 4, 4));
   }
 
   public void testBootstrap() throws Exception {
@@ -78,11 +87,18 @@ public class TestCurlyUpdater extends TestCase {
         "00001.delta.cueball", "00001.delta.curly");
     MockCurlyMerger curlyMerger = new MockCurlyMerger();
     MockCueballMerger cueballMerger = new MockCueballMerger();
+    ValueCache valueCache = new ValueCache(1024, 1);
+    int fileId = valueCache.getFileId(LOCAL_ROOT, LOCAL_ROOT + "/00000.base.curly");
+    valueCache.put(fileId, 0, ByteBuffer.wrap(new byte[]{1}));
     CurlyUpdater updater = new CurlyUpdater(LOCAL_ROOT, 12, 5,
-        fetcher, curlyMerger, cueballMerger, new NoCompressionCodec(), 1);
+        fetcher, curlyMerger, cueballMerger, new NoCompressionCodec(), 1, new CurlyOptions(), valueCache, null, null, null);
 
     updater.update(1);
 
+    // the cached values are stale now
+    assertNull(valueCache.get(fileId, 0));
+    assertEquals(0, valueCache.getSize());
+
     // make sure fetcher got the right args
     assertEquals(-1, fetcher.latestLocalVersion);
 
@@ -16,8 +16,10 @@
 package com.rapleaf.hank.storage.curly;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 
+import com.rapleaf.hank.compress.NoCompressionCodec;
 import com.rapleaf.hank.storage.MapWriter;
 
 public class TestCurlyWriter extends AbstractCurlyTestBase {
@@ -44,4 +46,104 @@ public class TestCurlyWriter extends AbstractCurlyTestBase {
     // verify that the record stream looks as expected
     assertEquals(ByteBuffer.wrap(EXPECTED_RECORD_FILE), ByteBuffer.wrap(s.toByteArray()));
   }
+
+  public void testWriteBlockCompressed() throws Exception {
+    ByteArrayOutputStream s = new ByteArrayOutputStream();
+    MapWriter keyfileWriter = new MapWriter();
+    CurlyWriter writer = new CurlyWriter(s, keyfileWriter, 3, new CurlyOptions().setRecordFileBlockSize(8), new NoCompressionCodec());
+
+    writer.write(KEY1, VALUE1);
+    writer.write(KEY2, VALUE2);
+    writer.write(KEY3, VALUE3);
+    writer.close();
+
+    // offsets are the block's file offset, shifted left 3 bits, plus the
+    // offset within the block
+    assertEquals(ByteBuffer.wrap(new byte[]{0, 0, 0}), keyfileWriter.map.get(KEY1));
+    assertEquals(ByteBuffer.wrap(new byte[]{5, 0, 0}), keyfileWriter.map.get(KEY2));
+    assertEquals(ByteBuffer.wrap(new byte[]{(byte) (18 << 3), 0, 0}), keyfileWriter.map.get(KEY3));
+
+    // the first block closes once it reaches 8 bytes
+    assertEquals(ByteBuffer.wrap(new byte[]{
+        10, 0, 0, 0, 10, 0, 0, 0,
+        4, 4, 3, 2, 1,
+        4, 8, 7, 6, 5,
+        5, 0, 0, 0, 5, 0, 0, 0,
+        4, 12, 11, 10, 9
+    }), ByteBuffer.wrap(s.toByteArray()));
+  }
+
+  public void testWriteValueLengths() throws Exception {
+    ByteArrayOutputStream s = new ByteArrayOutputStream();
+    MapWriter keyfileWriter = new MapWriter();
+    CurlyWriter writer = new CurlyWriter(s, keyfileWriter, 3, new CurlyOptions().setValueLengthSize(1), null);
+
+    writer.write(KEY1, VALUE1);
+    writer.write(KEY2, VALUE2);
+    writer.write(KEY3, VALUE3);
+
+    // each offset is followed by the length of its value
+    assertEquals(ByteBuffer.wrap(new byte[]{0, 0, 0, 4}), keyfileWriter.map.get(KEY1));
+    assertEquals(ByteBuffer.wrap(new byte[]{5, 0, 0, 4}), keyfileWriter.map.get(KEY2));
+    assertEquals(ByteBuffer.wrap(new byte[]{10, 0, 0, 4}), keyfileWriter.map.get(KEY3));
+
+    // and the record file is the same as ever
+    writer.close();
+    assertEquals(ByteBuffer.wrap(EXPECTED_RECORD_FILE), ByteBuffer.wrap(s.toByteArray()));
+
+    try {
+      new CurlyWriter(new ByteArrayOutputStream(), new MapWriter(), 3, new CurlyOptions().setValueLengthSize(1), null).write(KEY4, ByteBuffer.wrap(new byte[256]));
+      fail("should have thrown an exception");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  public void testWriteDeduped() throws Exception {
+    ByteArrayOutputStream s = new ByteArrayOutputStream();
+    MapWriter keyfileWriter = new MapWriter();
+    CurlyWriter writer = new CurlyWriter(s, keyfileWriter, 3, new CurlyOptions().setValueDedupBytes(1024), null);
+
+    writer.write(KEY1, VALUE1);
+    writer.write(KEY2, ByteBuffer.wrap(new byte[]{4, 3, 2, 1}));
+    writer.write(KEY3, VALUE3);
+    writer.close();
+
+    // the second key shares the first one's record
+    assertEquals(ByteBuffer.wrap(new byte[]{0, 0, 0}), keyfileWriter.map.get(KEY1));
+    assertEquals(ByteBuffer.wrap(new byte[]{0, 0, 0}), keyfileWriter.map.get(KEY2));
+    assertEquals(ByteBuffer.wrap(new byte[]{5, 0, 0}), keyfileWriter.map.get(KEY3));
+    assertEquals(ByteBuffer.wrap(new byte[]{4, 4, 3, 2, 1, 4, 12, 11, 10, 9}), ByteBuffer.wrap(s.toByteArray()));
+
+    // with only enough memory to remember one value, the first one is
+    // forgotten by the time it's repeated
+    s = new ByteArrayOutputStream();
+    keyfileWriter = new MapWriter();
+    writer = new CurlyWriter(s, keyfileWriter, 3, new CurlyOptions().setValueDedupBytes(4 + 3 + 64), null);
+    writer.write(KEY1, VALUE1);
+    writer.write(KEY3, VALUE3);
+    writer.write(KEY2, VALUE1);
+    writer.close();
+    assertEquals(ByteBuffer.wrap(new byte[]{10, 0, 0}), keyfileWriter.map.get(KEY2));
+    assertEquals(15, s.size());
+  }
+
+  public void testWriteInlineValues() throws Exception {
+    ByteArrayOutputStream s = new ByteArrayOutputStream();
+    MapWriter keyfileWriter = new MapWriter();
+    CurlyWriter writer = new CurlyWriter(s, keyfileWriter, 3, new CurlyOptions().setInlineValueSize(4), null);
+
+    writer.write(KEY1, VALUE1);
+    writer.write(KEY2, ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5}));
+    writer.write(KEY3, VALUE3);
+    writer.close();
+
+    // small values are tagged and inline, big ones get a tagged offset
+    assertEquals(ByteBuffer.wrap(new byte[]{(byte) 0x84, 4, 3, 2, 1}), keyfileWriter.map.get(KEY1));
+    assertEquals(ByteBuffer.wrap(new byte[]{0, 0, 0, 0, 0}), keyfileWriter.map.get(KEY2));
+    assertEquals(ByteBuffer.wrap(new byte[]{(byte) 0x84, 12, 11, 10, 9}), keyfileWriter.map.get(KEY3));
+
+    // and only the big ones are in the record file
+    assertEquals(ByteBuffer.wrap(new byte[]{5, 1, 2, 3, 4, 5}), ByteBuffer.wrap(s.toByteArray()));
+  }
 }
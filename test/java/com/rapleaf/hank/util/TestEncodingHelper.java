@@ -57,6 +57,14 @@ public class TestEncodingHelper extends TestCase {
     assertEquals(ByteBuffer.wrap(new byte[]{-1, -1, -1, -1, 0x07}), ByteBuffer.wrap(buffer, 0, 5));
   }
 
+  public void testGetVarIntSize() throws Exception {
+    assertEquals(1, EncodingHelper.getVarIntSize(0));
+    assertEquals(1, EncodingHelper.getVarIntSize(127));
+    assertEquals(2, EncodingHelper.getVarIntSize(128));
+    assertEquals(3, EncodingHelper.getVarIntSize(1 << 14));
+    assertEquals(5, EncodingHelper.getVarIntSize(0x7fffffff));
+  }
+
   public void testDecodeLittleEndianVarInt() throws Exception {
     assertEquals(1, EncodingHelper.decodeLittleEndianVarInt(ByteBuffer.wrap(new byte[]{1})));
     assertEquals(10, EncodingHelper.decodeLittleEndianVarInt(ByteBuffer.wrap(new byte[]{10})));